@@ -15,11 +15,14 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.View;
 
+import com.globallogic.rtsptestapp.BuildConfig;
 import com.globallogic.rtsptestapp.R;
 import com.globallogic.rtsptestapp.streaming.RtspServer;
 import com.globallogic.rtsptestapp.streaming.SessionBuilder;
+import com.globallogic.rtsptestapp.streaming.TelemetryHub;
 import com.mapbox.api.directions.v5.models.DirectionsResponse;
 import com.mapbox.api.directions.v5.models.DirectionsRoute;
+import com.mapbox.api.directions.v5.models.LegStep;
 import com.mapbox.geojson.Point;
 import com.mapbox.mapboxsdk.Mapbox;
 import com.mapbox.services.android.navigation.ui.v5.NavigationView;
@@ -168,6 +171,7 @@ public class NavigationController implements OnNavigationReadyCallback, Navigati
 
     private void stopNavigation() {
         updateWasNavigationStopped(true);
+        TelemetryHub.getInstance().clear();
         stopRecording();
     }
 
@@ -216,11 +220,23 @@ public class NavigationController implements OnNavigationReadyCallback, Navigati
 
     @Override
     public void onMilestoneEvent(RouteProgress routeProgress, String instruction, Milestone milestone) {
-
+        // Clients render the instruction natively, see TelemetryHub
+        LegStep step = routeProgress.currentLegProgress().upComingStep();
+        TelemetryHub.getInstance().publishManeuver(
+                routeProgress.currentLegProgress().currentStepProgress().distanceRemaining(),
+                step != null ? step.maneuver().type() : null,
+                step != null ? step.maneuver().modifier() : null,
+                instruction);
     }
 
     @Override
     public void onProgressChange(Location location, RouteProgress routeProgress) {
+        TelemetryHub telemetry = TelemetryHub.getInstance();
+        telemetry.publishLocation(location.getLatitude(), location.getLongitude(), location.getBearing(), location.getSpeed());
+        telemetry.publishProgress(routeProgress.distanceRemaining(), routeProgress.durationRemaining(),
+                routeProgress.currentLegProgress().currentStepProgress().distanceRemaining(),
+                routeProgress.fractionTraveled(),
+                routeProgress.currentState() == RouteProgressState.ROUTE_ARRIVED);
 
         if (routeProgress.currentState() == RouteProgressState.ROUTE_ARRIVED) {
             stopNavigation();
@@ -299,7 +315,10 @@ public class NavigationController implements OnNavigationReadyCallback, Navigati
                 .setVirtualDisplay(display)
                 .setPreviewOrientation(90)
                 .setContext(getApplicationContext())
-                .setVideoEncoder(SessionBuilder.VIDEO_H264);
+                .setVideoEncoder(SessionBuilder.VIDEO_H264)
+                .setTelemetryEnabled(true)
+                // Clients may only switch on the network emulator in debug builds
+                .setRemoteImpairmentAllowed(BuildConfig.DEBUG);
 
         mContext.startService(new Intent(mContext, RtspServer.class));
 
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *   
+ *   RFC 3640.  
+ *
+ *   Encapsulates the AAC access units produced by a MediaCodec in the AAC-hbr mode of the 
+ *   mpeg4-generic payload format. Each AU is preceded by a 16 bit AU-header: its size on 13 bits 
+ *   and an index delta of 0 on 3 bits, as consecutive AUs are always aggregated.<br />
+ *
+ *   Several AUs are aggregated in the same packet as long as the audio they carry fits in the 
+ *   budget set with {@link #setMaxPacketTime(int)}, which divides the packet rate of the stream. 
+ *   A packet is sent as soon as the next AU could not fit in it, so an AU never waits for more 
+ *   than the duration of the AUs already in the packet.
+ *
+ */
+public class AACPacketizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "AACPacketizer";
+
+	/** Default duration of the audio carried by a packet in ms, two AAC frames at 44.1 or 48 kHz. */
+	public final static int DEFAULT_MAX_PTIME = 50;
+
+	/** Number of samples in an AAC-LC frame. */
+	private final static int FRAME_SAMPLES = 1024;
+
+	private Thread t;
+	private int samplingRate = 44100;
+	private int maxPtime = DEFAULT_MAX_PTIME;
+
+	// AUs waiting to be sent, copied as the buffers of the encoder are given back right away
+	private final byte[] staging = new byte[RtpSocket.MAX_MTU];
+	private final int[] sizes = new int[64];
+	private int count = 0, stagedLength = 0;
+	private long aggregatedPackets = 0;
+
+	public AACPacketizer() {
+		super();
+		socket.setClockFrequency(samplingRate);
+	}
+
+	public void start() {
+		if (t==null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			source.close();
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** The clock of the RTP stream is the sampling rate. */
+	public void setSamplingRate(int samplingRate) {
+		this.samplingRate = samplingRate;
+		socket.setClockFrequency(samplingRate);
+	}
+
+	/**
+	 * Sets how much audio a packet may carry. Must be called before {@link #start()}.
+	 * @param ptime The duration in ms
+	 */
+	public void setMaxPacketTime(int ptime) {
+		maxPtime = ptime;
+	}
+
+	/** Returns the number of packets that carried more than one AU since the packetizer was created. */
+	public long getAggregatedPacketCount() {
+		return aggregatedPackets;
+	}
+
+	public void run() {
+		Log.d(TAG,"AAC packetizer started !");
+		count = stagedLength = 0;
+
+		try {
+			while (!Thread.interrupted()) {
+				EncodedFrame frame = current = source.take();
+				try {
+					// The AudioSpecificConfig is in the SDP
+					if (frame.isCodecConfig() || !frame.getBuffer().hasRemaining()) continue;
+					send(frame.getBuffer(), frame.getPresentationTime()*1000L);
+				} finally {
+					current = null;
+					frame.release();
+				}
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"AAC packetizer stopped !");
+	}
+
+	/** Adds an AU to the packet being built, and sends the packet when the next AU won't fit. */
+	private void send(ByteBuffer au, long timestamp) throws IOException, InterruptedException {
+		int length = au.remaining();
+		// The AU-headers-length field and one AU-header per AU
+		int max = maxPacketSize-rtphl-2;
+		long duration = FRAME_SAMPLES*1000000000L/samplingRate;
+
+		if (count > 0) {
+			// The AUs of a packet must be consecutive, the encoder may have skipped some
+			long expected = ts + count*duration;
+			if (stagedLength+2*(count+1)+length > max || count == sizes.length || Math.abs(timestamp-expected) > duration/2) {
+				flush();
+			}
+		}
+
+		if (2+length > max) {
+			sendFragments(au, timestamp);
+			return;
+		}
+
+		if (count == 0) ts = timestamp;
+		au.get(staging, stagedLength, length);
+		stagedLength += length;
+		sizes[count++] = length;
+
+		// Holding the packet for another AU would exceed the budget
+		if ((count+1)*FRAME_SAMPLES*1000L > (long)maxPtime*samplingRate) flush();
+	}
+
+	/** Sends the AUs waiting in a single packet. */
+	private void flush() throws IOException, InterruptedException {
+		if (count == 0) return;
+		buffer = socket.requestBuffer();
+		int offset = rtphl;
+		// AU-headers-length in bits
+		buffer[offset++] = (byte) ((count*16)>>8);
+		buffer[offset++] = (byte) ((count*16)&0xFF);
+		for (int i=0; i<count; i++) {
+			// AU-size on 13 bits, AU-Index(-delta) on 3 bits
+			buffer[offset++] = (byte) (sizes[i]>>5);
+			buffer[offset++] = (byte) ((sizes[i]&0x1F)<<3);
+		}
+		System.arraycopy(staging, 0, buffer, offset, stagedLength);
+		offset += stagedLength;
+		socket.updateTimestamp(ts);
+		// The packet holds complete AUs
+		socket.markNextPacket();
+		super.send(offset);
+		if (count > 1) aggregatedPackets++;
+		count = 0;
+		stagedLength = 0;
+	}
+
+	/** 
+	 * Sends an AU too big for a single packet in fragments, only the last one has the marker bit.
+	 * Each fragment repeats the AU-header with the size of the whole AU (RFC 3640, section 3.2.3).
+	 */
+	private void sendFragments(ByteBuffer au, long timestamp) throws IOException, InterruptedException {
+		int length = au.remaining();
+		int max = maxPacketSize-rtphl-4;
+		while (au.hasRemaining()) {
+			int len = Math.min(max, au.remaining());
+			buffer = socket.requestBuffer();
+			buffer[rtphl] = 0;
+			buffer[rtphl+1] = 16;
+			buffer[rtphl+2] = (byte) (length>>5);
+			buffer[rtphl+3] = (byte) ((length&0x1F)<<3);
+			au.get(buffer, rtphl+4, len);
+			socket.updateTimestamp(timestamp);
+			if (!au.hasRemaining()) socket.markNextPacket();
+			super.send(rtphl+4+len);
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.globallogic.rtsptestapp.streaming.exceptions.ConfNotSupportedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A class for streaming AAC-LC from the microphone of an android device using RTP.
+ * The audio is read with an AudioRecord, encoded by a MediaCodec and packetized by 
+ * an {@link AACPacketizer} (RFC 3640, mode AAC-hbr). 
+ * Call {@link #setDestinationAddress(java.net.InetAddress)}, {@link #setDestinationPorts(int)}, 
+ * {@link #setAudioQuality(AudioQuality)} and then {@link #start()}.
+ */
+public class AACStream extends AudioStream {
+
+	public final static String TAG = "AACStream";
+
+	/** There are 13 supported frequencies by ADTS. **/
+	public static final int[] AUDIO_SAMPLING_RATES = {
+		96000, // 0
+		88200, // 1
+		64000, // 2
+		48000, // 3
+		44100, // 4
+		32000, // 5
+		24000, // 6
+		22050, // 7
+		16000, // 8
+		12000, // 9
+		11025, // 10
+		8000,  // 11
+		7350,  // 12
+	};
+
+	/** Number of samples in an AAC-LC frame, the encoder is fed one frame at a time. */
+	private final static int FRAME_SAMPLES = 1024;
+
+	/** The timestamps follow the number of samples read until they drift that far away from the clock, in ns. */
+	private final static long MAX_DRIFT = 20000000L;
+
+	private int mConfig;
+	private int mMaxPtime = AACPacketizer.DEFAULT_MAX_PTIME;
+	private AudioRecord mAudioRecord = null;
+	private Thread mThread = null;
+	private long mStartTime = 0, mSamples = 0;
+
+	public AACStream() {
+		super();
+		mPacketizer = new AACPacketizer();
+	}
+
+	@Override
+	public void setMaxPacketTime(int ptime) {
+		mMaxPtime = ptime;
+	}
+
+	public synchronized void configure() throws IllegalStateException, IOException {
+		super.configure();
+		mQuality = mRequestedQuality.clone();
+
+		int samplingRateIndex = -1;
+		for (int i=0; i<AUDIO_SAMPLING_RATES.length; i++) {
+			if (AUDIO_SAMPLING_RATES[i] == mQuality.samplingRate) {
+				samplingRateIndex = i;
+				break;
+			}
+		}
+		if (samplingRateIndex < 0) {
+			throw new ConfNotSupportedException("AAC does not support a sampling rate of "+mQuality.samplingRate+" Hz !");
+		}
+
+		// AudioSpecificConfig: AAC-LC (2), the sampling rate index and one channel
+		mConfig = (2 & 0x1F) << 11 | (samplingRateIndex & 0x0F) << 7 | 1 << 3;
+
+		((AACPacketizer)mPacketizer).setSamplingRate(mQuality.samplingRate);
+	}
+
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			super.start();
+			Log.d(TAG,"Stream configuration: "+mQuality);
+		}
+	}
+
+	/** Stops the stream. */
+	public synchronized void stop() {
+		if (mStreaming) {
+			if (mThread != null) {
+				mThread.interrupt();
+				try {
+					mThread.join();
+				} catch (InterruptedException ignore) {}
+				mThread = null;
+			}
+			super.stop();
+			if (mAudioRecord != null) {
+				mAudioRecord.stop();
+				mAudioRecord.release();
+				mAudioRecord = null;
+			}
+		}
+	}
+
+	@Override
+	@SuppressLint({ "InlinedApi", "NewApi" })
+	protected void encodeWithMediaCodec() throws IOException {
+
+		Log.d(TAG,"Audio encoded using the MediaCodec API");
+
+		final int frameSize = 2*FRAME_SAMPLES;
+		final int bufferSize = Math.max(AudioRecord.getMinBufferSize(mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT), 4*frameSize);
+
+		mAudioRecord = new AudioRecord(mAudioSource, mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+		if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+			mAudioRecord.release();
+			mAudioRecord = null;
+			throw new ConfNotSupportedException("The microphone can't record at "+mQuality.samplingRate+" Hz !");
+		}
+
+		mMediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+		mEncoderOutput = MediaCodecFrameSource.attach(mMediaCodec);
+		final MediaCodecFrameSource encoder = mEncoderOutput;
+		MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, mQuality.samplingRate, 1);
+		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
+		format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, frameSize);
+		mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		mAudioRecord.startRecording();
+		mMediaCodec.start();
+
+		mSamples = 0;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!Thread.interrupted()) {
+						int index = encoder.dequeueInputBuffer(10000);
+						if (index < 0) continue;
+						ByteBuffer input = mMediaCodec.getInputBuffer(index);
+						input.clear();
+						// Blocks until a whole frame has been recorded
+						int len = mAudioRecord.read(input, frameSize);
+						if (len < 0) {
+							Log.e(TAG,"An error occured with the AudioRecord API: "+len);
+							len = 0;
+						}
+						mMediaCodec.queueInputBuffer(index, 0, len, presentationTime(len/2)/1000, 0);
+					}
+				} catch (IllegalStateException e) {
+					// The encoder has been stopped
+				} catch (InterruptedException ignore) {}
+			}
+		}, TAG);
+		mThread.start();
+
+		// The packetizer encapsulates the AUs in an RTP stream and send them over the network
+		((AACPacketizer)mPacketizer).setMaxPacketTime(mMaxPtime);
+		mPacketizer.setFrameSource(mEncoderOutput);
+		mPacketizer.start();
+
+		mStreaming = true;
+	}
+
+	/** 
+	 * Computes the capture time of the samples just read, on the {@link System#nanoTime()} time base 
+	 * like the frames of the video stream, so that both can be synchronized by the receiver. 
+	 * The time follows the number of samples read, so that it does not jitter with the scheduling 
+	 * of the thread, and is realigned on the clock if the microphone drifts.
+	 * @param samples The number of samples read
+	 * @return The capture time of the first of them in ns
+	 */
+	private long presentationTime(int samples) {
+		long rate = mQuality.samplingRate;
+		// The samples have just been recorded
+		long estimate = System.nanoTime() - samples*1000000000L/rate;
+		long time = mStartTime + mSamples*1000000000L/rate;
+		if (mSamples == 0 || Math.abs(time-estimate) > MAX_DRIFT) {
+			mStartTime = estimate;
+			mSamples = 0;
+			time = estimate;
+		}
+		mSamples += samples;
+		return time;
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public String getSessionDescription() throws IllegalStateException {
+		if (mConfig == 0) throw new IllegalStateException("You need to call configure() first !");
+		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 97\r\n" +
+				"a=rtpmap:97 mpeg4-generic/"+mQuality.samplingRate+"\r\n"+
+				"a=fmtp:97 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="+Integer.toHexString(mConfig)+"; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n" +
+				"a=maxptime:"+Math.max(mMaxPtime, FRAME_SAMPLES*1000/mQuality.samplingRate+1)+"\r\n";
+	}
+
+}
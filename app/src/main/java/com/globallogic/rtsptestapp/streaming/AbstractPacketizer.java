@@ -32,18 +32,24 @@ abstract public class AbstractPacketizer {
 
 	protected static final int rtphl = RtpSocket.RTP_HEADER_LENGTH;
 	
+	// Size of the IP and UDP headers
+	protected final static int UDP_OVERHEAD = 28;
+
 	// Maximum size of RTP packets
-	protected final static int MAXPACKETSIZE = RtpSocket.MTU-28;
+	protected int maxPacketSize = RtpSocket.MTU-UDP_OVERHEAD;
 
 	protected RtpSocket socket = null;
 	protected InputStream is = null;
+	protected EncodedFrameSource source = null;
+	/** The frame being sent, the time its first packet is sent is measured, see {@link EncodedFrame#markSent()}. */
+	protected EncodedFrame current = null;
 	protected byte[] buffer;
 	
+	/** Timestamp of the frame being sent in ns, the {@link RtpSocket} converts it to the clock of the stream. */
 	protected long ts = 0;
 
 	public AbstractPacketizer() {
 		int ssrc = new Random().nextInt();
-		ts = new Random().nextInt();
 		socket = new RtpSocket();
 		socket.setSSRC(ssrc);
 	}
@@ -63,7 +69,26 @@ abstract public class AbstractPacketizer {
 	public void setInputStream(InputStream is) {
 		this.is = is;
 	}
+
+	/** Sets the source of the frames to packetize, must be called before {@link #start()}. */
+	public void setFrameSource(EncodedFrameSource source) {
+		this.source = source;
+	}
 	
+	/**
+	 * Sets the MTU of the path to the destination, RTP packets are sized accordingly.
+	 * @param mtu The MTU in bytes, IP and UDP headers included
+	 */
+	public void setMtu(int mtu) {
+		socket.setMtu(mtu);
+		maxPacketSize = mtu-UDP_OVERHEAD;
+	}
+
+	/** See {@link RtpSocket#setClockOffset(long)}. */
+	public void setClockOffset(long offset) {
+		socket.setClockOffset(offset);
+	}
+
 	public void setTimeToLive(int ttl) throws IOException {
 		socket.setTimeToLive(ttl);
 	}
@@ -87,6 +112,7 @@ abstract public class AbstractPacketizer {
 	/** Updates data for RTCP SR and sends the packet. */
 	protected void send(int length) throws IOException {
 		socket.commitBuffer(length);
+		if (current != null) current.markSent();
 	}
 
 	/** For debugging purposes. */
@@ -96,7 +122,10 @@ abstract public class AbstractPacketizer {
 		return str;
 	}
 
-	/** Used in packetizers to estimate timestamps in RTP packets. */
+	/** 
+	 * Used in packetizers to estimate timestamps in RTP packets, when they read 
+	 * a stream that has no timestamps. Encoders give a presentation time for each frame.
+	 */
 	protected static class Statistics {
 
 		public final static String TAG = "Statistics";
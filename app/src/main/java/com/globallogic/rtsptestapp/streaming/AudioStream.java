@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.media.MediaRecorder;
+
+/** 
+ * Don't use this class directly.
+ */
+public abstract class AudioStream extends MediaStream {
+
+	protected int mAudioSource;
+	protected AudioQuality mRequestedQuality = AudioQuality.DEFAULT_AUDIO_QUALITY.clone();
+	protected AudioQuality mQuality = mRequestedQuality.clone();
+
+	public AudioStream() {
+		setAudioSource(MediaRecorder.AudioSource.MIC);
+	}
+
+	/** 
+	 * Sets the source of the audio, see {@link MediaRecorder.AudioSource}.
+	 * Changes will take effect next time you call {@link #start()}.
+	 */
+	public void setAudioSource(int audioSource) {
+		mAudioSource = audioSource;
+	}
+
+	/** 
+	 * Sets the configuration of the stream. You can call this method at any time 
+	 * and changes will take effect next time you call {@link #configure()}.
+	 * @param quality Quality of the stream
+	 */
+	public void setAudioQuality(AudioQuality quality) {
+		mRequestedQuality = quality.clone();
+	}
+
+	/** 
+	 * Returns the quality of the stream.  
+	 */
+	public AudioQuality getAudioQuality() {
+		return mQuality;
+	}
+
+	/**
+	 * Sets how much audio a packet may carry. Several frames of the encoder are sent in 
+	 * the same packet within that budget, the lower the more packets are sent.
+	 * Changes will take effect next time you call {@link #start()}.
+	 * @param ptime The duration in ms, one frame is always sent as soon as it is encoded
+	 */
+	public abstract void setMaxPacketTime(int ptime);
+
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the uplink between all the sessions of the server.
+ *
+ * Each {@link Session} owns a {@link Flow} that belongs to a traffic class. Classes have a
+ * weight and an optional rate cap, flows may have their own rate cap too. Every time an
+ * {@link RtpSocket} is about to send a packet it asks its flow when it is allowed to do so, 
+ * and the flow paces its packets at the rate the shaper gave it.<br />
+ *
+ * Rates are computed every {@link #PERIOD} from the demand of the flows, with a weighted max-min 
+ * fair share: the capacity is shared between the classes in proportion to their weight, and then 
+ * between the flows of each class, but a class or a flow that needs less than its share only 
+ * gets what it needs, the rest goes to the flows that had to wait. No capacity is left unused 
+ * while some flows want more: an operator console keeps its bandwidth when many passenger 
+ * screens are connected, and the screens get all of it when the console is idle.<br />
+ *
+ * Sending a packet only locks its flow, the shaper is only locked once per period 
+ * and when a flow becomes active.<br />
+ *
+ * Call {@link #getInstance()} to get access to the BandwidthShaper.
+ */
+public class BandwidthShaper {
+
+	public final static String TAG = "BandwidthShaper";
+
+	/** Class used when none was specified. */
+	public final static String CLASS_DEFAULT = "default";
+
+	/** Class that can be used for the operator console. */
+	public final static String CLASS_CONSOLE = "console";
+
+	/** Class that can be used for passenger screens. */
+	public final static String CLASS_PASSENGER = "passenger";
+
+	/** How often the rates of the flows are computed again (ns). */
+	public final static long PERIOD = 50000000L;
+
+	/** A flow that did not send anything for that long (ns) does not get a share of the uplink anymore. */
+	private final static long IDLE = 500000000L;
+
+	/** How long a flow can burst above its rate (ns). */
+	private final static long BURST = 20000000L;
+
+	/** Lowest rate a flow is given, in bit/s. */
+	private final static long MIN_RATE = 8000;
+
+	/** Used for the demand of a flow that had to wait, and for rates that are not limited. */
+	private final static long UNLIMITED = Long.MAX_VALUE;
+
+	/** Describes a traffic class. */
+	public static class TrafficClass {
+
+		public final String name;
+		public final int weight;
+		public final long maxBitrate;
+
+		// Statistics of the flows of the class that have been closed
+		private long mPackets = 0, mBytes = 0;
+		private long mMaxDelay = 0;
+		private double mDelaySum = 0;
+
+		/**
+		 * @param name The name of the class, a client can ask for it in the URI if its weight is not higher than its own class
+		 * @param weight The share of the uplink the class gets relative to the others
+		 * @param maxBitrate The maximum bitrate (bit/s) of all the flows of the class, 0 means no limit
+		 */
+		public TrafficClass(String name, int weight, long maxBitrate) {
+			this.name = name;
+			this.weight = weight>0 ? weight : 1;
+			this.maxBitrate = maxBitrate;
+		}
+
+	}
+
+	/** Queueing delay observed in a {@link TrafficClass}. */
+	public static class ClassStats {
+
+		public String name;
+
+		/** Number of packets sent. */
+		public long packets;
+
+		/** Number of bytes sent. */
+		public long bytes;
+
+		/** Average time spent by packets between the packetizer and the network in ms. */
+		public float averageDelay;
+
+		/** Worst time spent by a packet between the packetizer and the network in ms. */
+		public long maxDelay;
+
+		public String toString() {
+			return name+": "+packets+" packets, "+bytes/1000+" kB, delay avg "+averageDelay+" ms, max "+maxDelay+" ms";
+		}
+
+	}
+
+	/** 
+	 * The traffic of a {@link Session}, see {@link BandwidthShaper#createFlow(String, long)}. 
+	 * The sockets of a session share the flow, it is locked for each packet.
+	 */
+	public class Flow {
+
+		private final TrafficClass mClass;
+		private final long mMaxBitrate;
+
+		// The rate given by the shaper in bit/s, 0 means no limit
+		private long mRate = 0;
+		private long mNextSend = 0, mLastSend = 0;
+		private boolean mActive = false, mClosed = false;
+
+		// The demand since the rate was last computed
+		private long mSentBytes = 0;
+		private boolean mWaited = false;
+		private long mDemand = 0;
+
+		private long mPackets = 0, mBytes = 0;
+		private long mMaxDelay = 0;
+		private double mDelaySum = 0;
+
+		private Flow(TrafficClass trafficClass, long maxBitrate) {
+			mClass = trafficClass;
+			mMaxBitrate = maxBitrate;
+		}
+
+		/** Returns the name of the class of the flow. */
+		public String getTrafficClass() {
+			return mClass.name;
+		}
+
+		/** Returns the rate the flow is currently allowed to use in bit/s, 0 if it is not limited. */
+		public synchronized long getRate() {
+			return mRate;
+		}
+
+		/**
+		 * Asks the shaper if a packet can be sent now.
+		 * @param length Length of the packet in bytes
+		 * @return 0 if the packet may be sent right away, otherwise how long to wait in ns
+		 */
+		public long reserve(int length) {
+			long now = System.nanoTime();
+			boolean woken;
+			synchronized (this) {
+				if (mClosed) return 0;
+				woken = !mActive;
+				mActive = true;
+				mLastSend = now;
+			}
+			if (woken) {
+				// A flow that becomes active gets its share right away
+				allocate(now, this);
+			} else {
+				allocateIfDue(now);
+			}
+			synchronized (this) {
+				if (mRate <= 0) {
+					mSentBytes += length;
+					return 0;
+				}
+				if (mNextSend - now > 0) {
+					mWaited = true;
+					return mNextSend - now;
+				}
+				// A flow that was idle may only send a small burst above its rate
+				long start = mNextSend - (now - BURST) < 0 ? now - BURST : mNextSend;
+				mNextSend = start + length*8000000000L/mRate;
+				mSentBytes += length;
+				return 0;
+			}
+		}
+
+		/**
+		 * Records how long a packet stayed in the queue before it was sent.
+		 * @param length Length of the packet in bytes
+		 * @param delay Time spent by the packet in the queue in ns
+		 */
+		public synchronized void sent(int length, long delay) {
+			long ms = delay/1000000;
+			mPackets++;
+			mBytes += length;
+			mDelaySum += ms;
+			if (ms > mMaxDelay) mMaxDelay = ms;
+		}
+
+		/** The flow won't get a share of the uplink anymore. */
+		public void close() {
+			BandwidthShaper.this.close(this);
+		}
+
+	}
+
+	private final HashMap<String, TrafficClass> mClasses = new LinkedHashMap<>();
+	private final List<Flow> mFlows = new CopyOnWriteArrayList<>();
+	private final AtomicLong mAllocatedAt = new AtomicLong(System.nanoTime());
+	private long mMeasuredAt = System.nanoTime();
+	private long mCapacity = 0;
+
+	// The BandwidthShaper implements the singleton pattern
+	private static volatile BandwidthShaper sInstance = null;
+
+	private BandwidthShaper() {
+		defineClass(new TrafficClass(CLASS_DEFAULT, 1, 0));
+		defineClass(new TrafficClass(CLASS_CONSOLE, 4, 0));
+		defineClass(new TrafficClass(CLASS_PASSENGER, 1, 0));
+	}
+
+	/**
+	 * Returns a reference to the {@link BandwidthShaper}.
+	 * @return The reference to the {@link BandwidthShaper}
+	 */
+	public static BandwidthShaper getInstance() {
+		if (sInstance == null) {
+			synchronized (BandwidthShaper.class) {
+				if (sInstance == null) {
+					sInstance = new BandwidthShaper();
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Sets the capacity of the uplink shared by all the sessions.
+	 * @param bitrate The capacity in bit/s, 0 means that only the rate caps are enforced
+	 */
+	public synchronized void setCapacity(long bitrate) {
+		mCapacity = bitrate;
+		allocate(System.nanoTime(), null);
+	}
+
+	public synchronized long getCapacity() {
+		return mCapacity;
+	}
+
+	/** Adds a traffic class or replaces the class with the same name. */
+	public synchronized void defineClass(TrafficClass trafficClass) {
+		mClasses.put(trafficClass.name, trafficClass);
+	}
+
+	/** Indicates if a class with that name has been defined. */
+	public synchronized boolean hasClass(String name) {
+		return mClasses.containsKey(name);
+	}
+
+	/** Returns the class with that name, or null if it has not been defined. */
+	public synchronized TrafficClass getTrafficClass(String name) {
+		return name != null ? mClasses.get(name) : null;
+	}
+
+	/**
+	 * Creates the flow of a session.
+	 * @param className The name of the class of the flow, the default class is used if it is unknown
+	 * @param maxBitrate The maximum bitrate of the flow in bit/s, 0 means no limit
+	 */
+	public synchronized Flow createFlow(String className, long maxBitrate) {
+		TrafficClass trafficClass = className != null ? mClasses.get(className) : null;
+		if (trafficClass == null) trafficClass = mClasses.get(CLASS_DEFAULT);
+		Flow flow = new Flow(trafficClass, maxBitrate);
+		mFlows.add(flow);
+		return flow;
+	}
+
+	/** Returns the queueing delay observed in each class since the server started. */
+	public synchronized Map<String, ClassStats> getClassStats() {
+		Map<String, ClassStats> stats = new LinkedHashMap<>();
+		for (TrafficClass c : mClasses.values()) {
+			ClassStats s = new ClassStats();
+			s.name = c.name;
+			s.packets = c.mPackets;
+			s.bytes = c.mBytes;
+			s.maxDelay = c.mMaxDelay;
+			double delay = c.mDelaySum;
+			for (Flow flow : mFlows) {
+				if (flow.mClass != c) continue;
+				synchronized (flow) {
+					s.packets += flow.mPackets;
+					s.bytes += flow.mBytes;
+					s.maxDelay = Math.max(s.maxDelay, flow.mMaxDelay);
+					delay += flow.mDelaySum;
+				}
+			}
+			s.averageDelay = s.packets > 0 ? (float) (delay/s.packets) : 0;
+			stats.put(c.name, s);
+		}
+		return stats;
+	}
+
+	/** Computes the rates again if the last time was more than {@link #PERIOD} ago, called for each packet. */
+	private void allocateIfDue(long now) {
+		long last = mAllocatedAt.get();
+		// Only one of the threads that find the rates out of date computes them
+		if (now - last > PERIOD && mAllocatedAt.compareAndSet(last, now)) allocate(now, null);
+	}
+
+	/**
+	 * Gives each active flow its rate.
+	 * @param woken A flow that just became active, it is assumed to want as much as it can get 
+	 * until its demand is measured. If null, the demand of all the flows is measured.
+	 */
+	private synchronized void allocate(long now, Flow woken) {
+		mAllocatedAt.set(now);
+		long elapsed = now - mMeasuredAt;
+		boolean measure = woken == null && elapsed > 0;
+		if (measure) mMeasuredAt = now;
+
+		// The demand of each flow: as much as it can get if it had to wait, what it sent otherwise
+		for (Flow flow : mFlows) {
+			synchronized (flow) {
+				if (!flow.mActive || now - flow.mLastSend > IDLE) {
+					flow.mActive = false;
+					flow.mDemand = 0;
+				} else if (flow == woken) {
+					flow.mDemand = UNLIMITED;
+				} else if (measure) {
+					long sent = flow.mSentBytes*8000000000L/elapsed;
+					// Some headroom, so that a flow whose demand grows slowly does not have to wait
+					flow.mDemand = flow.mWaited || flow.mRate <= 0 ? UNLIMITED : sent + sent/4 + MIN_RATE;
+				}
+				if (measure) {
+					flow.mSentBytes = 0;
+					flow.mWaited = false;
+				}
+			}
+		}
+
+		// The capacity is shared between the classes, and then between the flows of each class
+		List<TrafficClass> classes = new ArrayList<>(mClasses.values());
+		long[] classDemands = new long[classes.size()];
+		int[] classWeights = new int[classes.size()];
+		for (int i=0; i<classes.size(); i++) {
+			TrafficClass c = classes.get(i);
+			long demand = 0;
+			for (Flow flow : mFlows) {
+				if (flow.mClass == c) demand = add(demand, cap(flow.mDemand, flow.mMaxBitrate));
+			}
+			classDemands[i] = cap(demand, c.maxBitrate);
+			classWeights[i] = c.weight;
+		}
+		long[] classRates = share(mCapacity > 0 ? mCapacity : UNLIMITED, classDemands, classWeights);
+
+		for (int i=0; i<classes.size(); i++) {
+			TrafficClass c = classes.get(i);
+			List<Flow> flows = new ArrayList<>();
+			for (Flow flow : mFlows) {
+				if (flow.mClass == c) flows.add(flow);
+			}
+			long[] demands = new long[flows.size()];
+			int[] weights = new int[flows.size()];
+			for (int j=0; j<flows.size(); j++) {
+				demands[j] = cap(flows.get(j).mDemand, flows.get(j).mMaxBitrate);
+				weights[j] = 1;
+			}
+			// Without a capacity, only the cap of the class has to be shared
+			long budget = cap(mCapacity > 0 ? classRates[i] : UNLIMITED, c.maxBitrate);
+			long[] rates = share(budget, demands, weights);
+			for (int j=0; j<flows.size(); j++) {
+				Flow flow = flows.get(j);
+				long rate = cap(rates[j], flow.mMaxBitrate);
+				synchronized (flow) {
+					// Nothing to share: the flow is only limited by its own cap
+					if (budget == UNLIMITED) rate = flow.mMaxBitrate > 0 ? flow.mMaxBitrate : UNLIMITED;
+					flow.mRate = rate == UNLIMITED ? 0 : Math.max(rate, MIN_RATE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Weighted max-min fair share of a capacity: the items that need less than their share 
+	 * get what they need, the others share the rest in proportion to their weight. 
+	 * Capacity left once every item got what it needs is shared by weight too.
+	 * @param capacity The capacity, {@link #UNLIMITED} if there is no limit
+	 * @param demands What each item needs, 0 if it is idle
+	 * @return The share of each item
+	 */
+	private static long[] share(long capacity, long[] demands, int[] weights) {
+		long[] shares = new long[demands.length];
+		if (capacity == UNLIMITED) {
+			System.arraycopy(demands, 0, shares, 0, demands.length);
+			return shares;
+		}
+		boolean[] done = new boolean[demands.length];
+		long remaining = capacity;
+		while (true) {
+			long totalWeight = 0;
+			for (int i=0; i<demands.length; i++) {
+				if (!done[i] && demands[i] > 0) totalWeight += weights[i];
+			}
+			if (totalWeight == 0) break;
+			boolean satisfied = false;
+			for (int i=0; i<demands.length; i++) {
+				if (done[i] || demands[i] <= 0) continue;
+				if (demands[i] <= remaining/totalWeight*weights[i]) {
+					shares[i] = demands[i];
+					remaining -= demands[i];
+					done[i] = satisfied = true;
+				}
+			}
+			if (!satisfied) {
+				for (int i=0; i<demands.length; i++) {
+					if (!done[i] && demands[i] > 0) shares[i] = remaining/totalWeight*weights[i];
+				}
+				return shares;
+			}
+		}
+		// Everybody got what it needs, the rest is headroom
+		long totalWeight = 0;
+		for (int i=0; i<demands.length; i++) {
+			if (demands[i] > 0) totalWeight += weights[i];
+		}
+		for (int i=0; i<demands.length && totalWeight > 0; i++) {
+			if (demands[i] > 0) shares[i] += remaining/totalWeight*weights[i];
+		}
+		return shares;
+	}
+
+	/** Applies a cap where 0 means no limit. */
+	private static long cap(long rate, long cap) {
+		return cap > 0 ? Math.min(rate, cap) : rate;
+	}
+
+	private static long add(long a, long b) {
+		return a > UNLIMITED - b ? UNLIMITED : a + b;
+	}
+
+	private synchronized void close(Flow flow) {
+		TrafficClass c = flow.mClass;
+		synchronized (flow) {
+			flow.mClosed = true;
+			c.mPackets += flow.mPackets;
+			c.mBytes += flow.mBytes;
+			c.mDelaySum += flow.mDelaySum;
+			c.mMaxDelay = Math.max(c.mMaxDelay, flow.mMaxDelay);
+		}
+		mFlows.remove(flow);
+	}
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+/**
+ * Stamps each access unit of a H.264 stream with the wall clock time at which it was captured, 
+ * so that a receiver whose clock is synchronized (NTP) can measure the glass to glass latency.<br />
+ *
+ * The packetizer inserts a user_data_unregistered SEI (H.264, section D.1.6) before the first 
+ * slice of each access unit. It carries {@link #UUID}, the capture time as a 64 bit NTP timestamp 
+ * and a frame counter, so that receivers also see the frames that were lost. The capture time 
+ * can also be sent in the abs-capture-time RTP header extension (see {@link #EXTENSION_URI}), 
+ * in the packet of the SEI.<br />
+ *
+ * Receivers use {@link #parseSei(byte[], int, int)} or {@link #parseExtension(byte[], int)} 
+ * and feed a {@link Meter} with the results.
+ */
+public class CaptureTime {
+
+	public final static String TAG = "CaptureTime";
+
+	/** The SEI is inserted before each access unit. */
+	public final static int SEI = 0x01;
+
+	/** The abs-capture-time RTP header extension is added to the packet of the SEI, implies {@link #SEI}. */
+	public final static int EXTENSION = 0x02;
+
+	/** URI of the abs-capture-time header extension, in the a=extmap line of the SDP. */
+	public final static String EXTENSION_URI = "http://www.webrtc.org/experiments/rtp-hdrext/abs-capture-time";
+
+	/** Identifier of the header extension, in the a=extmap line of the SDP. */
+	public final static int EXTENSION_ID = 1;
+
+	/** Length of the header extension written by {@link #writeExtension(byte[], int, long)}. */
+	public final static int EXTENSION_LENGTH = 16;
+
+	/** Identifies our user_data_unregistered SEI among those the encoder may produce. */
+	public final static byte[] UUID = new byte[] {
+		(byte)0x8b, (byte)0x3f, (byte)0x5c, (byte)0x2e, (byte)0x41, (byte)0x6d, (byte)0x4a, (byte)0x97, 
+		(byte)0xb1, (byte)0x0c, (byte)0xe4, (byte)0x52, (byte)0x7a, (byte)0xd9, (byte)0x13, (byte)0x6f 
+	};
+
+	/** Seconds between the NTP epoch (1900) and the unix epoch (1970). */
+	private final static long NTP_OFFSET = 2208988800L;
+
+	// payloadType 5, payloadSize, UUID, capture time, frame counter
+	private final static int PAYLOAD_LENGTH = 16+8+8;
+
+	private final int mFlags;
+	private final byte[] mRbsp = new byte[3+PAYLOAD_LENGTH+1];
+	private long mClockOffset;
+	private boolean mOffsetGiven = false;
+	private long mFrame = 0;
+
+	/** 
+	 * @param flags {@link #SEI}, {@link #EXTENSION} or both
+	 */
+	public CaptureTime(int flags) {
+		mFlags = flags;
+		reset();
+	}
+
+	/** 
+	 * Resets the frame counter, and synchronizes with the wall clock again unless 
+	 * the offset was given with {@link #setClockOffset(long)}.
+	 */
+	public void reset() {
+		mFrame = 0;
+		if (!mOffsetGiven) mClockOffset = System.currentTimeMillis()*1000000L - System.nanoTime();
+	}
+
+	/**
+	 * Sets the offset between the wall clock and the {@link System#nanoTime()} time base, the one 
+	 * of the {@link Session} so that the capture times match the NTP timestamps of its sender reports.
+	 * @param offset The offset in ns, 0 to measure it when the stream starts
+	 */
+	public void setClockOffset(long offset) {
+		mOffsetGiven = offset != 0;
+		if (mOffsetGiven) {
+			mClockOffset = offset;
+		} else {
+			reset();
+		}
+	}
+
+	public boolean hasExtension() {
+		return (mFlags & EXTENSION) != 0;
+	}
+
+	/**
+	 * Converts the presentation time given by the encoder to the wall clock time.
+	 * @param timestamp The presentation time in ns, on the {@link System#nanoTime()} time base like 
+	 * the frames of the camera and of an input surface 
+	 * @return A 64 bit NTP timestamp
+	 */
+	public long toNtp(long timestamp) {
+		long wallclock = timestamp + mClockOffset;
+		long seconds = wallclock/1000000000L + NTP_OFFSET;
+		long fraction = ((wallclock%1000000000L) << 32)/1000000000L;
+		return seconds << 32 | fraction;
+	}
+
+	/**
+	 * Writes the SEI NAL unit of the next frame, emulation prevention bytes included.
+	 * @param buffer The buffer, there must be room for 56 bytes
+	 * @param offset Where the NAL unit starts
+	 * @param ntp The capture time, see {@link #toNtp(long)}
+	 * @return The length of the NAL unit
+	 */
+	public int writeSei(byte[] buffer, int offset, long ntp) {
+		mRbsp[0] = 6; // nal_ref_idc 0, nal_unit_type 6
+		mRbsp[1] = 5; // user_data_unregistered
+		mRbsp[2] = PAYLOAD_LENGTH;
+		System.arraycopy(UUID, 0, mRbsp, 3, UUID.length);
+		setLong(mRbsp, ntp, 19);
+		setLong(mRbsp, mFrame++, 27);
+		mRbsp[35] = (byte) 0x80; // rbsp_trailing_bits
+		byte[] nal = SpsRewriter.escape(mRbsp);
+		System.arraycopy(nal, 0, buffer, offset, nal.length);
+		return nal.length;
+	}
+
+	/**
+	 * Writes the header extension (RFC 8285, one-byte header) with the abs-capture-time 
+	 * element, right after the fixed RTP header. The X bit must be set in the RTP header.
+	 * @return {@link #EXTENSION_LENGTH}
+	 */
+	public static int writeExtension(byte[] buffer, int offset, long ntp) {
+		buffer[offset] = (byte) 0xBE;
+		buffer[offset+1] = (byte) 0xDE;
+		buffer[offset+2] = 0;
+		buffer[offset+3] = (EXTENSION_LENGTH-4)/4;
+		// Only the absolute capture timestamp, without the estimated clock offset
+		buffer[offset+4] = (byte) (EXTENSION_ID<<4 | 7);
+		setLong(buffer, ntp, offset+5);
+		buffer[offset+13] = buffer[offset+14] = buffer[offset+15] = 0;
+		return EXTENSION_LENGTH;
+	}
+
+	/** The capture time and the counter of a frame, as seen by a receiver. */
+	public static class Sample {
+
+		/** The capture time as a 64 bit NTP timestamp. */
+		public long ntp;
+
+		/** The frame counter, -1 if it comes from the header extension. */
+		public long frame = -1;
+
+		/** Returns the capture time in ms, on the {@link System#currentTimeMillis()} time base. */
+		public long getCaptureTime() {
+			return ((ntp >>> 32) - NTP_OFFSET)*1000 + ((ntp & 0xFFFFFFFFL)*1000 >>> 32);
+		}
+
+		/**
+		 * Returns the time elapsed since the frame was captured.
+		 * @param wallclock The time at which the frame was rendered, as returned by {@link System#currentTimeMillis()}
+		 */
+		public long getLatency(long wallclock) {
+			return wallclock - getCaptureTime();
+		}
+
+	}
+
+	/**
+	 * Parses a SEI NAL unit received by a client. 
+	 * @param nal The NAL unit, without start code, emulation prevention bytes included
+	 * @return The sample, or null if the NAL unit does not carry our user_data_unregistered SEI
+	 */
+	public static Sample parseSei(byte[] nal, int offset, int length) {
+		if (length < 2 || (nal[offset]&0x1F) != 6) return null;
+		byte[] escaped = new byte[length];
+		System.arraycopy(nal, offset, escaped, 0, length);
+		byte[] rbsp = SpsRewriter.unescape(escaped, 1);
+		int i = 0;
+		// A SEI NAL unit may contain several messages
+		while (i < rbsp.length && (rbsp[i]&0xFF) != 0x80) {
+			int type = 0, size = 0;
+			while (i < rbsp.length && (rbsp[i]&0xFF) == 0xFF) type += rbsp[i++]&0xFF;
+			if (i >= rbsp.length) return null;
+			type += rbsp[i++]&0xFF;
+			while (i < rbsp.length && (rbsp[i]&0xFF) == 0xFF) size += rbsp[i++]&0xFF;
+			if (i >= rbsp.length) return null;
+			size += rbsp[i++]&0xFF;
+			if (i+size > rbsp.length) return null;
+			if (type == 5 && size >= PAYLOAD_LENGTH && matches(rbsp, i)) {
+				Sample sample = new Sample();
+				sample.ntp = getLong(rbsp, i+16);
+				sample.frame = getLong(rbsp, i+24);
+				return sample;
+			}
+			i += size;
+		}
+		return null;
+	}
+
+	/**
+	 * Looks for the abs-capture-time element in the header extension of a RTP packet received by a client.
+	 * @param packet The RTP packet, its fixed header starts at 0
+	 * @param length The length of the packet
+	 * @return The sample, or null if the packet has no abs-capture-time element
+	 */
+	public static Sample parseExtension(byte[] packet, int length) {
+		if (length < 12 || (packet[0]&0x10) == 0) return null;
+		int i = 12 + 4*(packet[0]&0x0F);
+		if (i+4 > length || (packet[i]&0xFF) != 0xBE || (packet[i+1]&0xFF) != 0xDE) return null;
+		int end = i+4 + 4*((packet[i+2]&0xFF)<<8 | packet[i+3]&0xFF);
+		if (end > length) return null;
+		i += 4;
+		while (i < end) {
+			int id = (packet[i]&0xFF)>>4, size = (packet[i]&0x0F)+1;
+			if (id == 0) {
+				// Padding
+				i++;
+				continue;
+			}
+			if (id == 15 || i+1+size > end) return null;
+			if (id == EXTENSION_ID && size >= 8) {
+				Sample sample = new Sample();
+				sample.ntp = getLong(packet, i+1);
+				return sample;
+			}
+			i += 1+size;
+		}
+		return null;
+	}
+
+	/** 
+	 * Computes the latency of the frames received by a client, and counts the frames lost 
+	 * with the counter of the SEI. A receiver keeps one per stream, and can chart the values 
+	 * returned by {@link #push(Sample, long)} or poll the statistics.
+	 */
+	public static class Meter {
+
+		private long mCount = 0, mLost = 0, mLastFrame = -1;
+		private long mMin = Long.MAX_VALUE, mMax = Long.MIN_VALUE, mLast = 0;
+		private double mAverage = 0;
+
+		/**
+		 * @param sample The sample of a frame
+		 * @param wallclock The time at which the frame was rendered, as returned by {@link System#currentTimeMillis()}
+		 * @return The latency of the frame in ms
+		 */
+		public synchronized long push(Sample sample, long wallclock) {
+			long latency = sample.getLatency(wallclock);
+			if (sample.frame >= 0) {
+				if (mLastFrame >= 0 && sample.frame > mLastFrame+1) mLost += sample.frame-mLastFrame-1;
+				mLastFrame = sample.frame;
+			}
+			mCount++;
+			mLast = latency;
+			mMin = Math.min(mMin, latency);
+			mMax = Math.max(mMax, latency);
+			// Moving average over about 32 frames
+			mAverage = mCount == 1 ? latency : mAverage + (latency-mAverage)/32;
+			return latency;
+		}
+
+		public synchronized void reset() {
+			mCount = mLost = 0;
+			mLastFrame = -1;
+			mMin = Long.MAX_VALUE;
+			mMax = Long.MIN_VALUE;
+			mLast = 0;
+			mAverage = 0;
+		}
+
+		/** Number of frames measured. */
+		public synchronized long getCount() {
+			return mCount;
+		}
+
+		/** Number of frames lost according to the frame counter. */
+		public synchronized long getLost() {
+			return mLost;
+		}
+
+		/** Latency of the last frame in ms. */
+		public synchronized long getLast() {
+			return mLast;
+		}
+
+		public synchronized long getMin() {
+			return mCount > 0 ? mMin : 0;
+		}
+
+		public synchronized long getMax() {
+			return mCount > 0 ? mMax : 0;
+		}
+
+		/** Moving average of the latency in ms. */
+		public synchronized long getAverage() {
+			return Math.round(mAverage);
+		}
+
+		public synchronized String toString() {
+			return "latency "+getLast()+" ms (avg "+getAverage()+", min "+getMin()+", max "+getMax()+"), "+mCount+" frames, "+mLost+" lost";
+		}
+
+	}
+
+	private static boolean matches(byte[] data, int offset) {
+		for (int i=0; i<UUID.length; i++) {
+			if (data[offset+i] != UUID[i]) return false;
+		}
+		return true;
+	}
+
+	private static void setLong(byte[] buffer, long n, int offset) {
+		for (int i=7; i>=0; i--) {
+			buffer[offset+i] = (byte) (n & 0xFF);
+			n >>>= 8;
+		}
+	}
+
+	private static long getLong(byte[] buffer, int offset) {
+		long n = 0;
+		for (int i=0; i<8; i++) n = n << 8 | buffer[offset+i]&0xFF;
+		return n;
+	}
+
+}
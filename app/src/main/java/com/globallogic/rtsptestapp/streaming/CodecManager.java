@@ -24,6 +24,7 @@ import android.media.MediaCodecList;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -40,8 +41,9 @@ public class CodecManager {
 		MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar
 	};		
 
-	private static Codec[] sEncoders = null;
-	private static Codec[] sDecoders = null;
+	// Lists of codecs indexed by mime type
+	private static final HashMap<String, Codec[]> sEncoders = new HashMap<>();
+	private static final HashMap<String, Codec[]> sDecoders = new HashMap<>();
 
 	static class Codec {
 		public Codec(String name, Integer[] formats) {
@@ -58,7 +60,8 @@ public class CodecManager {
 	 */
 	@SuppressLint("NewApi")
 	public synchronized static Codec[] findEncodersForMimeType(String mimeType) {
-		if (sEncoders != null) return sEncoders;
+		Codec[] cached = sEncoders.get(mimeType);
+		if (cached != null) return cached;
 
 		ArrayList<Codec> encoders = new ArrayList<>();
 
@@ -94,18 +97,69 @@ public class CodecManager {
 			}
 		}
 
-		sEncoders = (Codec[]) encoders.toArray(new Codec[encoders.size()]);
-		return sEncoders;
+		Codec[] result = (Codec[]) encoders.toArray(new Codec[encoders.size()]);
+		sEncoders.put(mimeType, result);
+		return result;
 
 	}
 
+	/**
+	 * Finds an encoder for the mime type that will be fed through a Surface, 
+	 * so its color formats don't matter. Hardware encoders are preferred.
+	 * @return The name of the encoder, or null if there is none for the mime type
+	 */
+	public synchronized static String findSurfaceEncoder(String mimeType) {
+		Codec[] encoders = findEncodersForMimeType(mimeType);
+		for (Codec codec : encoders) {
+			if (!isSoftware(codec.name)) return codec.name;
+		}
+		return encoders.length > 0 ? encoders[0].name : null;
+	}
+
+	/**
+	 * Same as {@link #findSurfaceEncoder(String)}, but the encoder must also support the 
+	 * resolution and the frame rate.
+	 * @return The name of the encoder, or null if no encoder supports that configuration
+	 */
+	@SuppressLint("NewApi")
+	public synchronized static String findSurfaceEncoder(String mimeType, int width, int height, int framerate) {
+		String software = null;
+		for (Codec codec : findEncodersForMimeType(mimeType)) {
+			if (!supports(codec.name, mimeType, width, height, framerate)) continue;
+			if (!isSoftware(codec.name)) return codec.name;
+			if (software == null) software = codec.name;
+		}
+		return software;
+	}
+
+	@SuppressLint("NewApi")
+	private static boolean supports(String name, String mimeType, int width, int height, int framerate) {
+		for (int j = MediaCodecList.getCodecCount() - 1; j >= 0; j--) {
+			MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(j);
+			if (!codecInfo.isEncoder() || !codecInfo.getName().equals(name)) continue;
+			try {
+				MediaCodecInfo.VideoCapabilities video = codecInfo.getCapabilitiesForType(mimeType).getVideoCapabilities();
+				return video != null && video.areSizeAndRateSupported(width, height, framerate);
+			} catch (Exception e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isSoftware(String name) {
+		String n = name.toLowerCase();
+		return n.startsWith("omx.google.") || n.startsWith("c2.android.");
+	}
+
 	/**
 	 * Lists all decoders that claim to support a color format that we know how to use.
 	 * @return A list of those decoders
 	 */
 	@SuppressLint("NewApi")
 	public synchronized static Codec[] findDecodersForMimeType(String mimeType) {
-		if (sDecoders != null) return sDecoders;
+		Codec[] cached = sDecoders.get(mimeType);
+		if (cached != null) return cached;
 		ArrayList<Codec> decoders = new ArrayList<>();
 
 		// We loop through the decoders, apparently this can take up to a sec (testes on a GS3)
@@ -140,18 +194,19 @@ public class CodecManager {
 			}
 		}
 
-		sDecoders = (Codec[]) decoders.toArray(new Codec[decoders.size()]);
+		Codec[] result = (Codec[]) decoders.toArray(new Codec[decoders.size()]);
 
 		// We will use the decoder from google first, it seems to work properly on many phones
-		for (int i=0;i<sDecoders.length;i++) {
-			if (sDecoders[i].name.equalsIgnoreCase("omx.google.h264.decoder")) {
-				Codec codec = sDecoders[0];
-				sDecoders[0] = sDecoders[i];
-				sDecoders[i] = codec;
+		for (int i=0;i<result.length;i++) {
+			if (result[i].name.equalsIgnoreCase("omx.google.h264.decoder")) {
+				Codec codec = result[0];
+				result[0] = result[i];
+				result[i] = codec;
 			} 
 		}
 
-		return sDecoders;
+		sDecoders.put(mimeType, result);
+		return result;
 	}
 
 }
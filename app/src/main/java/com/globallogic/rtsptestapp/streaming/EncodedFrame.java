@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An access unit, or codec configuration data, given by an {@link EncodedFrameSource}.<br />
+ *
+ * Frames are pooled by their source: a frame must be given back with {@link #release()} 
+ * once the packetizer is done with it, and must not be used after that. Threads that 
+ * read the frame on behalf of the packetizer take a reference with {@link #retain()}, 
+ * the frame goes back to its source when the last reference is released.<br />
+ *
+ * The NAL units of an H.264 or H.265 frame in the Annex B format are located by {@link #scanNalUnits()}, 
+ * sources call it beforehand when they can, so that the packetizer does not have to.
+ */
+public final class EncodedFrame {
+
+	public final static int FLAG_KEY_FRAME = 0x01;
+	public final static int FLAG_CODEC_CONFIG = 0x02;
+	public final static int FLAG_END_OF_STREAM = 0x04;
+
+	private final EncodedFrameSource mSource;
+	private final AtomicInteger mReferences = new AtomicInteger();
+	private ByteBuffer mBuffer;
+	private long mPresentationTime;
+	private int mFlags;
+	private int mIndex = -1;
+
+	// Start and end of each NAL unit, mNalCount is -1 until the frame is scanned
+	private int[] mNalUnits = new int[32];
+	private int mNalCount = -1;
+	private NalUnitScanner mScanner;
+
+	// On the System.nanoTime() time base, mSentAt is 0 until the first packet is sent
+	private long mAvailableAt, mSentAt;
+
+	public EncodedFrame(EncodedFrameSource source) {
+		mSource = source;
+	}
+
+	/**
+	 * Called by the source before handing the frame over.
+	 * @param buffer The data is between the position and the limit of the buffer
+	 * @param presentationTime The presentation time in us
+	 * @param flags {@link #FLAG_KEY_FRAME}, {@link #FLAG_CODEC_CONFIG}, {@link #FLAG_END_OF_STREAM}
+	 */
+	public void set(ByteBuffer buffer, long presentationTime, int flags) {
+		mBuffer = buffer;
+		mPresentationTime = presentationTime;
+		mFlags = flags;
+		mNalCount = -1;
+		mAvailableAt = System.nanoTime();
+		mSentAt = 0;
+		mReferences.set(1);
+	}
+
+	/** The data is between the position and the limit of the buffer, it must not be modified. */
+	public ByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	/** Returns the presentation time of the frame in us. */
+	public long getPresentationTime() {
+		return mPresentationTime;
+	}
+
+	public int getFlags() {
+		return mFlags;
+	}
+
+	public boolean isKeyFrame() {
+		return (mFlags & FLAG_KEY_FRAME) != 0;
+	}
+
+	public boolean isCodecConfig() {
+		return (mFlags & FLAG_CODEC_CONFIG) != 0;
+	}
+
+	public boolean isEndOfStream() {
+		return (mFlags & FLAG_END_OF_STREAM) != 0;
+	}
+
+	/** The index of the buffer in its source, for instance the index of an output buffer of a MediaCodec. */
+	public int getIndex() {
+		return mIndex;
+	}
+
+	public void setIndex(int index) {
+		mIndex = index;
+	}
+
+	/** 
+	 * Locates the NAL units of the frame, if it holds H.264 or H.265 data in the Annex B format.
+	 * Does nothing if the frame has already been scanned.
+	 */
+	public void scanNalUnits() {
+		if (mNalCount >= 0) return;
+		if (mScanner == null) mScanner = new NalUnitScanner();
+		mNalCount = 0;
+		mScanner.reset(mBuffer);
+		while (mScanner.next()) {
+			if (2*mNalCount+2 > mNalUnits.length) {
+				int[] units = new int[2*mNalUnits.length];
+				System.arraycopy(mNalUnits, 0, units, 0, mNalUnits.length);
+				mNalUnits = units;
+			}
+			mNalUnits[2*mNalCount] = mScanner.start();
+			mNalUnits[2*mNalCount+1] = mScanner.end();
+			mNalCount++;
+		}
+	}
+
+	/** Returns the number of NAL units of the frame, see {@link #scanNalUnits()}. */
+	public int getNalCount() {
+		scanNalUnits();
+		return mNalCount;
+	}
+
+	/** Index in the buffer of the header of a NAL unit. */
+	public int getNalStart(int i) {
+		return mNalUnits[2*i];
+	}
+
+	/** Index in the buffer of the byte after a NAL unit. */
+	public int getNalEnd(int i) {
+		return mNalUnits[2*i+1];
+	}
+
+	/** 
+	 * Called by the packetizer when it hands a packet of the frame over to the {@link RtpSocket}.
+	 * Only the first call counts, see {@link #getLatency()}.
+	 */
+	public void markSent() {
+		if (mSentAt == 0) mSentAt = System.nanoTime();
+	}
+
+	/** 
+	 * Returns the time between the moment the frame became available and the moment 
+	 * its first packet was handed to the {@link RtpSocket} in us, or -1 if nothing was sent.
+	 */
+	public long getLatency() {
+		return mSentAt == 0 ? -1 : (mSentAt - mAvailableAt)/1000;
+	}
+
+	/** Takes a reference to the frame, for another thread that reads it. */
+	public void retain() {
+		mReferences.incrementAndGet();
+	}
+
+	/** Releases a reference to the frame, it goes back to its source with the last one. */
+	public void release() {
+		if (mReferences.decrementAndGet() == 0) mSource.recycle(this);
+	}
+
+}
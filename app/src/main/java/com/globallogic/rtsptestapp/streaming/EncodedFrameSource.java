@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Hands encoded frames to a packetizer, one access unit (or codec configuration data) at a time,
+ * with its presentation time and flags. Frames are pooled by the source, see {@link EncodedFrame}.<br />
+ *
+ * Implemented by {@link MediaCodecFrameSource} for the encoders of the phone, and by {@link FrameQueue} 
+ * for frames produced by the application, read from a file or generated by a test.
+ */
+public interface EncodedFrameSource extends Closeable {
+
+	/**
+	 * Waits for the next frame. Only the thread of the packetizer may call it.
+	 * @return The frame, it must be given back with {@link EncodedFrame#release()}
+	 * @throws IOException The source was closed, or failed
+	 */
+	EncodedFrame take() throws IOException;
+
+	/** 
+	 * Called by {@link EncodedFrame#release()} when the last reference to the frame is released, 
+	 * possibly from another thread than the packetizer. 
+	 */
+	void recycle(EncodedFrame frame);
+
+	/** Unblocks {@link #take()}, which throws an IOException from then on. */
+	@Override
+	void close();
+
+}
@@ -114,6 +114,20 @@ public class EncoderDebugger {
 		return debugger;
 	}
 
+	/**
+	 * Replaces the parameter sets stored for a resolution with the ones the encoder produced 
+	 * while streaming, if the result of the test is stored.
+	 */
+	public synchronized static void saveParameterSets(SharedPreferences prefs, int width, int height, String b64sps, String b64pps) {
+		String resolution = width+"x"+height+"-";
+		if (!prefs.getBoolean(PREF_PREFIX+resolution+"success", false)) return;
+		if (b64sps.equals(prefs.getString(PREF_PREFIX+resolution+"sps", "")) && b64pps.equals(prefs.getString(PREF_PREFIX+resolution+"pps", ""))) return;
+		Editor editor = prefs.edit();
+		editor.putString(PREF_PREFIX+resolution+"sps", b64sps);
+		editor.putString(PREF_PREFIX+resolution+"pps", b64pps);
+		editor.apply();
+	}
+
 	public String getB64PPS() {
 		return mB64PPS;
 	}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecInfo.EncoderCapabilities;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A named set of encoder settings that trade latency for bandwidth, applied by 
+ * {@link VideoStream} when it configures the encoder. Each key is only set if the 
+ * encoder says it supports it, or if the version of Android knows it, so a profile 
+ * never prevents the encoder from starting: at worst the encoder uses its defaults.<br />
+ *
+ * The cost of each profile depends a lot on the encoder of the phone, measure it 
+ * with {@link CaptureTime} and the bitrate reported by the {@link Session}.
+ */
+public class EncoderProfile {
+
+	public final static String TAG = "EncoderProfile";
+
+	// Added in Android 11 and 10, not in the SDK the app is compiled with
+	private final static String KEY_LATENCY = "latency";
+	private final static String KEY_MAX_B_FRAMES = "max-bframes";
+	private final static int SDK_LATENCY = 30, SDK_MAX_B_FRAMES = 29;
+
+	private final static int UNSET = -1;
+
+	/** The defaults of the encoder, only the bitrate, the frame rate and the key frame interval are set. */
+	public final static EncoderProfile DEFAULT = new EncoderProfile("default", UNSET, UNSET, UNSET, 0, false, false);
+
+	/** 
+	 * Each frame leaves the encoder as soon as possible: real time priority, constant bitrate 
+	 * so that frames never burst, no B-frames, one frame in flight in the encoder, and a clock 
+	 * high enough to encode a frame in half a frame interval. Key frames are replaced by a 
+	 * gradual intra refresh spread over the key frame interval, so that no frame is much 
+	 * larger than the others; clients still get a key frame when they ask for one.
+	 */
+	public final static EncoderProfile ULTRA_LOW_LATENCY = new EncoderProfile("ultra-low-latency", 
+			EncoderCapabilities.BITRATE_MODE_CBR, 0, 1, 2, true, true);
+
+	/** Real time priority and no B-frames, but variable bitrate and periodic key frames. */
+	public final static EncoderProfile BALANCED = new EncoderProfile("balanced", 
+			EncoderCapabilities.BITRATE_MODE_VBR, 0, UNSET, 0, false, true);
+
+	/** 
+	 * Variable bitrate and B-frames if the encoder uses them, the encoder may keep 
+	 * several frames to compress them better. Best with a long key frame interval.
+	 */
+	public final static EncoderProfile BANDWIDTH_SAVER = new EncoderProfile("bandwidth-saver", 
+			EncoderCapabilities.BITRATE_MODE_VBR, 1, UNSET, 0, false, false);
+
+	private final static EncoderProfile[] PROFILES = {DEFAULT, ULTRA_LOW_LATENCY, BALANCED, BANDWIDTH_SAVER};
+
+	private final String mName;
+	private final int mBitrateMode, mPriority, mLatency;
+	private final float mOperatingRate;
+	private final boolean mIntraRefresh, mNoBFrames;
+
+	/**
+	 * @param bitrateMode One of the modes of {@link EncoderCapabilities}, or -1 for the default of the encoder
+	 * @param priority 0 for real time, 1 for best effort, or -1 for the default
+	 * @param latency The number of frames the encoder may keep, or -1 for the default
+	 * @param operatingRate The rate the encoder is clocked for, as a multiple of the frame rate, or 0 for the default
+	 * @param intraRefresh Replaces periodic key frames by a gradual intra refresh
+	 * @param noBFrames Disables B-frames, they delay the output of the encoder by at least a frame
+	 */
+	public EncoderProfile(String name, int bitrateMode, int priority, int latency, float operatingRate, boolean intraRefresh, boolean noBFrames) {
+		mName = name;
+		mBitrateMode = bitrateMode;
+		mPriority = priority;
+		mLatency = latency;
+		mOperatingRate = operatingRate;
+		mIntraRefresh = intraRefresh;
+		mNoBFrames = noBFrames;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Returns the profile with that name.
+	 * @throws IllegalArgumentException No profile has that name
+	 */
+	public static EncoderProfile parse(String name) {
+		for (EncoderProfile profile : PROFILES) {
+			if (profile.mName.equalsIgnoreCase(name)) return profile;
+		}
+		throw new IllegalArgumentException("The encoder profile must be one of default, ultra-low-latency, balanced or bandwidth-saver !");
+	}
+
+	/**
+	 * Adds the keys of the profile supported by the encoder to its format. 
+	 * Must be called once the bitrate, the frame rate and the key frame interval are set.
+	 * @param format The format the encoder will be configured with
+	 * @param capabilities The capabilities of the encoder for the mime type of the format
+	 * @param quality The quality of the stream
+	 * @param keyFrameInterval The interval between two key frames in seconds
+	 */
+	public void apply(MediaFormat format, CodecCapabilities capabilities, VideoQuality quality, int keyFrameInterval) {
+		if (mBitrateMode != UNSET) {
+			EncoderCapabilities encoder = capabilities.getEncoderCapabilities();
+			if (encoder != null && encoder.isBitrateModeSupported(mBitrateMode)) {
+				format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode);
+			} else {
+				Log.w(TAG, "Bitrate mode "+mBitrateMode+" not supported by the encoder");
+			}
+		}
+
+		if (mPriority != UNSET) format.setInteger(MediaFormat.KEY_PRIORITY, mPriority);
+
+		if (mOperatingRate > 0) {
+			// Falls back to the frame rate if the encoder can't go faster
+			float rate = quality.framerate*mOperatingRate;
+			MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+			if (video == null || !video.areSizeAndRateSupported(quality.resX, quality.resY, rate)) rate = quality.framerate;
+			format.setFloat(MediaFormat.KEY_OPERATING_RATE, rate);
+		}
+
+		if (mIntraRefresh) {
+			if (capabilities.isFeatureSupported(CodecCapabilities.FEATURE_IntraRefresh)) {
+				format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, Math.max(1, quality.framerate*keyFrameInterval));
+				// Only the first frame is a key frame
+				format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, -1);
+			} else {
+				Log.w(TAG, "Intra refresh not supported by the encoder, periodic key frames are used");
+			}
+		}
+
+		if (mLatency != UNSET && Build.VERSION.SDK_INT >= SDK_LATENCY) format.setInteger(KEY_LATENCY, mLatency);
+		if (mNoBFrames && Build.VERSION.SDK_INT >= SDK_MAX_B_FRAMES) format.setInteger(KEY_MAX_B_FRAMES, 0);
+	}
+
+	public String toString() {
+		return mName;
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * An {@link EncodedFrameSource} fed by the application: frames read from a file, generated by a test, 
+ * or produced by an encoder that is not a MediaCodec, are copied in with {@link #offer(byte[], int, int, long, int)} 
+ * and handed to the packetizer in order. The buffers of the frames are pooled and only grow.
+ */
+public class FrameQueue implements EncodedFrameSource {
+
+	public final static String TAG = "FrameQueue";
+
+	private final ArrayDeque<EncodedFrame> mQueue = new ArrayDeque<>();
+	private final ArrayDeque<EncodedFrame> mFree = new ArrayDeque<>();
+	private final int mCapacity;
+	private boolean mClosed = false;
+
+	/** @param capacity The number of frames the queue can hold */
+	public FrameQueue(int capacity) {
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Queues a frame, never blocks.
+	 * @param data The frame, copied before this method returns
+	 * @param presentationTime The presentation time in us
+	 * @param flags See {@link EncodedFrame#getFlags()}
+	 * @return False if the queue is full or closed, the frame is dropped
+	 */
+	public synchronized boolean offer(byte[] data, int offset, int length, long presentationTime, int flags) {
+		if (mClosed || mQueue.size() >= mCapacity) return false;
+		EncodedFrame frame = mFree.poll();
+		if (frame == null) frame = new EncodedFrame(this);
+		ByteBuffer buffer = frame.getBuffer();
+		if (buffer == null || buffer.capacity() < length) buffer = ByteBuffer.allocate(Math.max(length, 64*1024));
+		buffer.clear();
+		buffer.put(data, offset, length);
+		buffer.flip();
+		frame.set(buffer, presentationTime, flags);
+		mQueue.add(frame);
+		notifyAll();
+		return true;
+	}
+
+	/** Returns the number of frames waiting to be taken. */
+	public synchronized int size() {
+		return mQueue.size();
+	}
+
+	@Override
+	public synchronized EncodedFrame take() throws IOException {
+		try {
+			while (!mClosed && mQueue.isEmpty()) wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("The packetizer was interrupted");
+		}
+		if (mClosed) throw new IOException("This FrameQueue was closed");
+		return mQueue.poll();
+	}
+
+	@Override
+	public synchronized void recycle(EncodedFrame frame) {
+		mFree.add(frame);
+	}
+
+	@Override
+	public synchronized void close() {
+		mClosed = true;
+		mQueue.clear();
+		notifyAll();
+	}
+
+}
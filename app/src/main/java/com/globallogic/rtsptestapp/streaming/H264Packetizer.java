@@ -18,10 +18,15 @@
 
 package com.globallogic.rtsptestapp.streaming;
 
-import android.annotation.SuppressLint;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 
@@ -29,8 +34,9 @@ import java.io.IOException;
  *   
  *   H.264 streaming over RTP.
  *   
- *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
- *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
+ *   Must be fed with an {@link EncodedFrameSource}, the frames of the source contain NAL units 
+ *   preceded by start codes. It can also read an InputStream containing H.264 NAL units preceded 
+ *   by their length (4 bytes), the stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
  */
 public class H264Packetizer extends AbstractPacketizer implements Runnable {
@@ -41,11 +47,27 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	private int naluLength = 0;
 	private long delay = 0, oldtime = 0;
 	private Statistics stats = new Statistics();
-	private byte[] sps = null, pps = null, stapa = null;
+	private ParameterSetCache parameterSets = new ParameterSetCache();
+	// Parameter sets found in the stream since the last slice
+	private boolean spsInBand = false, ppsInBand = false;
 	byte[] header = new byte[5];	
-	private int count = 0;
 	private int streamType = 1;
 
+	// Small NAL units waiting to be aggregated in a STAP-A, a start of -1 is the SEI of the capture time
+	private int[] aggregated = new int[64];
+	private int aggregatedCount = 0, aggregatedLength = 1;
+	private long aggregatedPackets = 0;
+
+	// Number of FU-A fragments a worker fills in one go
+	private final static int JOB_PACKETS = 16;
+	private int threads = 1;
+	private ExecutorService workers = null;
+
+	// Stamps the access units with their capture time, null if disabled
+	private CaptureTime captureTime = null;
+	private long clockOffset = 0;
+	private final byte[] sei = new byte[64];
+
 
 	public H264Packetizer() {
 		super();
@@ -54,57 +76,89 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	public void start() {
 		if (t == null) {
+			if (threads > 1) workers = Executors.newFixedThreadPool(threads, workerFactory);
 			t = new Thread(this);
 			t.start();
 		}
 	}
 
+	/**
+	 * Sets the number of threads that split large NAL units in FU-A packets. With more than one, 
+	 * the thread of the packetizer only scans the output buffers of the encoder, and runs of 
+	 * fragments are filled in parallel by a pool of workers, directly in the FIFO of the 
+	 * {@link RtpSocket} which keeps them in order. Only worth it for very high bitrates.
+	 * Must be called before {@link #start()}.
+	 * @param threads The number of workers, 1 means that everything is done by the packetizer
+	 */
+	public void setParallelism(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Inserts the capture time of each access unit in the stream, see {@link CaptureTime}.
+	 * Only the buffers of the encoder can be stamped, not a stream read by {@link #send()}.
+	 * Must be called before {@link #start()}.
+	 * @param flags {@link CaptureTime#SEI}, {@link CaptureTime#EXTENSION}, both or 0 to disable it
+	 */
+	public void setCaptureTime(int flags) {
+		captureTime = flags != 0 ? new CaptureTime(flags) : null;
+		if (captureTime != null) captureTime.setClockOffset(clockOffset);
+	}
+
+	/** The capture times are stamped with the clock of the session, like the sender reports. */
+	@Override
+	public void setClockOffset(long offset) {
+		super.setClockOffset(offset);
+		clockOffset = offset;
+		if (captureTime != null) captureTime.setClockOffset(offset);
+	}
+
 	public void stop() {
 		if (t != null) {
 			try {
-				is.close();
+				if (is != null) is.close();
 			} catch (IOException e) {}
+			if (source != null) source.close();
 			t.interrupt();
 			try {
 				t.join();
 			} catch (InterruptedException e) {}
 			t = null;
+			if (workers != null) {
+				// The jobs left must complete the buffers they reserved, and release the buffers of the encoder
+				workers.shutdown();
+				try {
+					workers.awaitTermination(1, TimeUnit.SECONDS);
+				} catch (InterruptedException ignore) {}
+				workers = null;
+			}
 		}
 	}
 
 	public void setStreamParameters(byte[] pps, byte[] sps) {
-		this.pps = pps;
-		this.sps = sps;
-
-		// A STAP-A NAL (NAL type 24) containing the sps and pps of the stream
-		if (pps != null && sps != null) {
-			// STAP-A NAL header + NALU 1 (SPS) size + NALU 2 (PPS) size = 5 bytes
-			stapa = new byte[sps.length + pps.length + 5];
-
-			// STAP-A NAL header is 24
-			stapa[0] = 24;
-
-			// Write NALU 1 size into the array (NALU 1 is the SPS).
-			stapa[1] = (byte) (sps.length >> 8);
-			stapa[2] = (byte) (sps.length & 0xFF);
+		parameterSets.update(sps, pps);
+	}	
 
-			// Write NALU 2 size into the array (NALU 2 is the PPS).
-			stapa[sps.length + 3] = (byte) (pps.length >> 8);
-			stapa[sps.length + 4] = (byte) (pps.length & 0xFF);
+	/** 
+	 * Sets the cache that holds the SPS and the PPS of the stream. The packetizer keeps it 
+	 * up to date with the parameter sets produced by the encoder.
+	 */
+	public void setParameterSetCache(ParameterSetCache cache) {
+		parameterSets = cache;
+	}
 
-			// Write NALU 1 into the array, then write NALU 2 into the array.
-			System.arraycopy(sps, 0, stapa, 3, sps.length);
-			System.arraycopy(pps, 0, stapa, 5 + sps.length, pps.length);
-		}
-	}	
+	public ParameterSetCache getParameterSetCache() {
+		return parameterSets;
+	}
 
 	public void run() {
 		long duration = 0;
 		Log.d(TAG,"H264 packetizer started !");
 		stats.reset();
-		count = 0;
+		spsInBand = ppsInBand = false;
+		if (captureTime != null) captureTime.reset();
 
-		if (is instanceof MediaCodecInputStream) {
+		if (source != null) {
 			streamType = 1;
 			socket.setCacheSize(0);
 		} else {
@@ -115,6 +169,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		try {
 			while (!Thread.interrupted()) {
 
+				// The buffers of the encoder carry their own presentation time
+				if (streamType == 1) {
+					sendBuffer();
+					continue;
+				}
+
 				oldtime = System.nanoTime();
 				// We read a NAL units from the input stream and we send them
 				send();
@@ -138,69 +198,35 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	 * Reads a NAL unit in the FIFO and sends it.
 	 * If it is too big, we split it in FU-A units (RFC 3984).
 	 */
-	@SuppressLint("NewApi")
 	private void send() throws IOException, InterruptedException {
 		int sum = 1, len = 0, type;
 
-		if (streamType == 0) {
-			// NAL units are preceeded by their length, we parse the length
-			fill(header,0,5);
-			ts += delay;
-			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
-			}
-		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-		}
+		// NAL units are preceeded by their length, we parse the length
+		fill(header,0,5);
+		ts += delay;
+		naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+		if (naluLength>100000 || naluLength<0) resync();
 
 		// Parses the NAL unit type
 		type = header[4]&0x1F;
-
-
-		// The stream already contains NAL unit type 7 or 8, we don't need 
-		// to add them to the stream ourselves
-		if (type == 7 || type == 8) {
-			Log.v(TAG,"SPS or PPS present in the stream.");
-			count++;
-			if (count>4) {
-				sps = null;
-				pps = null;
-			}
-		}
-
-		// We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-		// Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-		if (type == 5 && sps != null && pps != null) {
-			buffer = socket.requestBuffer();
-			socket.markNextPacket();
-			socket.updateTimestamp(ts);
-			System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
-			super.send(rtphl+stapa.length);
-		}
+		boolean keyFrame = type == 5 || type == 7;
+		sendParameterSets(type);
 
 		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
 
 		// Small NAL unit => Single NAL unit 
-		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
+		if (naluLength<=maxPacketSize-rtphl-2) {
 			buffer = socket.requestBuffer();
+			if (keyFrame) socket.markKeyFrame();
 			buffer[rtphl] = header[4];
 			len = fill(buffer, rtphl+1,  naluLength-1);
+			if (type == 7 || type == 8) parameterSets.onNalUnit(ByteBuffer.wrap(buffer), rtphl, rtphl+naluLength);
+			if (type == 7 && parameterSets.isVuiRewriting()) {
+				// Receivers get the rewritten SPS, see SpsRewriter
+				byte[] sps = parameterSets.getSps();
+				System.arraycopy(sps, 0, buffer, rtphl, sps.length);
+				naluLength = sps.length;
+			}
 			socket.updateTimestamp(ts);
 			socket.markNextPacket();
 			super.send(naluLength+rtphl);
@@ -216,12 +242,15 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 			header[0] = (byte) ((header[4] & 0x60) & 0xFF); // FU indicator NRI
 			header[0] += 28;
 
+			int size = fragmentSize(naluLength);
+
 			while (sum < naluLength) {
 				buffer = socket.requestBuffer();
+				if (keyFrame && sum == 1) socket.markKeyFrame();
 				buffer[rtphl] = header[0];
 				buffer[rtphl+1] = header[1];
 				socket.updateTimestamp(ts);
-				if ((len = fill(buffer, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
+				if ((len = fill(buffer, rtphl+2,  naluLength-sum > size ? size : naluLength-sum  ))<0) return; sum += len;
 				// Last packet before next NAL
 				if (sum >= naluLength) {
 					// End bit on
@@ -236,6 +265,339 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Takes a frame from the source and sends all the NAL units it contains. 
+	 * The payloads are copied from the buffer of the frame straight into the RTP packets, 
+	 * and the frame is released as soon as the last packet is queued.
+	 * Consecutive small NAL units share the same timestamp and are aggregated in STAP-A packets.
+	 */
+	private void sendBuffer() throws IOException, InterruptedException {
+		EncodedFrame frame = current = source.take();
+		ByteBuffer nal = frame.getBuffer();
+		try {
+			if (frame.isCodecConfig()) {
+				// The parameter sets will be sent with the first IDR, with its timestamp
+				parameterSets.onCodecConfig(nal);
+				return;
+			}
+			ts = frame.getPresentationTime()*1000L;
+			int limit = nal.limit();
+			int max = maxPacketSize-rtphl-2;
+			boolean stamped = captureTime == null;
+			int count = frame.getNalCount();
+			for (int i=0; i<count; i++) {
+				int start = frame.getNalStart(i), end = frame.getNalEnd(i);
+				// The frame holds one access unit, the marker bit goes on its last packet
+				boolean more = i+1 < count;
+				int type = nal.get(start)&0x1F;
+				if (type == 7 || type == 8) parameterSets.onNalUnit(nal, start, end);
+				if (type == 5 && !(spsInBand && ppsInBand)) sendAggregate(nal, false);
+				sendParameterSets(type);
+
+				if (!stamped && type >= 1 && type <= 5) {
+					// The SEI goes right before the first slice of the access unit
+					stampCaptureTime(nal, max);
+					stamped = true;
+				}
+
+				if (type == 7 && parameterSets.isVuiRewriting()) {
+					// Receivers get the rewritten SPS, see SpsRewriter
+					sendAggregate(nal, false);
+					sendNalUnit(ByteBuffer.wrap(parameterSets.getSps()), !more);
+					continue;
+				}
+
+				if (end-start <= max) {
+					if (aggregatedLength+2+end-start > max) sendAggregate(nal, false);
+					aggregate(start, end);
+					if (!more) sendAggregate(nal, true);
+				} else {
+					sendAggregate(nal, false);
+					nal.limit(end);
+					nal.position(start);
+					sendNalUnit(nal, !more);
+					nal.limit(limit);
+				}
+			}
+		} finally {
+			aggregatedCount = 0;
+			aggregatedLength = 1;
+			current = null;
+			// The workers may still read the frame, they release their own references
+			frame.release();
+		}
+	}
+
+	/** 
+	 * Adds the SEI with the capture time of the access unit to the NAL units waiting to be aggregated. 
+	 * With the header extension it is sent right away in its own packet, the one that carries the extension.
+	 */
+	private void stampCaptureTime(ByteBuffer nal, int max) throws IOException, InterruptedException {
+		long ntp = captureTime.toNtp(ts);
+		if (captureTime.hasExtension()) {
+			sendAggregate(nal, false);
+			int offset = rtphl;
+			buffer = socket.requestBuffer();
+			socket.markExtension();
+			offset += CaptureTime.writeExtension(buffer, offset, ntp);
+			offset += captureTime.writeSei(buffer, offset, ntp);
+			socket.updateTimestamp(ts);
+			super.send(offset);
+		} else {
+			int length = captureTime.writeSei(sei, 0, ntp);
+			if (aggregatedLength+2+length > max) sendAggregate(nal, false);
+			aggregate(-1, length);
+		}
+	}
+
+	/** Returns the number of STAP-A packets sent since the packetizer was created. */
+	public long getAggregatedPacketCount() {
+		return aggregatedPackets;
+	}
+
+	private void aggregate(int start, int end) {
+		if (2*aggregatedCount+2 > aggregated.length) {
+			int[] array = new int[aggregated.length*2];
+			System.arraycopy(aggregated, 0, array, 0, aggregated.length);
+			aggregated = array;
+		}
+		aggregated[2*aggregatedCount] = start;
+		aggregated[2*aggregatedCount+1] = end;
+		aggregatedCount++;
+		aggregatedLength += 2+(start < 0 ? end : end-start);
+	}
+
+	/**
+	 * Sends the NAL units waiting to be aggregated, in a STAP-A (RFC 6184, section 5.7.1) 
+	 * or in a single NAL unit packet if there is only one.
+	 * @param last True if the last of them is the last NAL unit of the access unit
+	 */
+	private void sendAggregate(ByteBuffer nal, boolean last) throws IOException, InterruptedException {
+		if (aggregatedCount == 0) return;
+		int limit = nal.limit();
+
+		if (aggregatedCount == 1 && aggregated[0] < 0) {
+			sendNalUnit(ByteBuffer.wrap(sei, 0, aggregated[1]), last);
+		} else if (aggregatedCount == 1) {
+			nal.limit(aggregated[1]);
+			nal.position(aggregated[0]);
+			sendNalUnit(nal, last);
+		} else {
+			int offset = rtphl+1, nri = 0;
+			boolean keyFrame = false;
+			buffer = socket.requestBuffer();
+			for (int i=0; i<aggregatedCount; i++) {
+				int start = aggregated[2*i], end = aggregated[2*i+1];
+				boolean stamp = start < 0;
+				int length = stamp ? end : end-start;
+				byte nalHeader = stamp ? sei[0] : nal.get(start);
+				int type = nalHeader&0x1F;
+				// The NRI of the STAP-A is the highest NRI of the NAL units it contains
+				nri = Math.max(nri, nalHeader&0x60);
+				keyFrame |= type == 5 || type == 7;
+				buffer[offset++] = (byte) (length>>8);
+				buffer[offset++] = (byte) (length&0xFF);
+				if (stamp) {
+					System.arraycopy(sei, 0, buffer, offset, length);
+				} else {
+					nal.limit(end);
+					nal.position(start);
+					nal.get(buffer, offset, length);
+					// The next NAL units are after the limit
+					nal.limit(limit);
+				}
+				offset += length;
+			}
+			// STAP-A NAL header is 24
+			buffer[rtphl] = (byte) (nri + 24);
+			if (keyFrame) socket.markKeyFrame();
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			super.send(offset);
+			aggregatedPackets++;
+		}
+
+		nal.limit(limit);
+		aggregatedCount = 0;
+		aggregatedLength = 1;
+	}
+
+	/**
+	 * Sends the NAL unit between the position and the limit of the buffer, 
+	 * in a single packet or split in FU-A units (RFC 3984).
+	 * @param last True if it is the last NAL unit of the access unit
+	 */
+	private void sendNalUnit(ByteBuffer nal, boolean last) throws IOException, InterruptedException {
+		int length = nal.remaining();
+		byte nalHeader = nal.get(nal.position());
+		int type = nalHeader&0x1F;
+		boolean keyFrame = type == 5 || type == 7;
+
+		// Small NAL unit => Single NAL unit 
+		if (length<=maxPacketSize-rtphl-2) {
+			buffer = socket.requestBuffer();
+			if (keyFrame) socket.markKeyFrame();
+			nal.get(buffer, rtphl, length);
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			super.send(length+rtphl);
+			return;
+		}
+
+		// Large NAL unit => Split nal unit 
+		byte indicator = (byte) ((nalHeader & 0x60) + 28); // FU indicator NRI
+		byte fuHeader = (byte) ((nalHeader & 0x1F) | 0x80); // FU header type, start bit
+		int size = fragmentSize(length);
+		nal.get();
+
+		if (workers != null && current != null) {
+			sendFragments(nal, size, indicator, fuHeader, keyFrame, last);
+			return;
+		}
+
+		while (nal.hasRemaining()) {
+			int len = Math.min(size, nal.remaining());
+			buffer = socket.requestBuffer();
+			if (keyFrame && (fuHeader & 0x80) != 0) socket.markKeyFrame();
+			buffer[rtphl] = indicator;
+			buffer[rtphl+1] = fuHeader;
+			socket.updateTimestamp(ts);
+			// A single bulk copy per packet
+			nal.get(buffer, rtphl+2, len);
+			// Last packet before next NAL
+			if (!nal.hasRemaining()) {
+				// End bit on
+				buffer[rtphl+1] |= 0x40;
+				if (last) socket.markNextPacket();
+			}
+			super.send(len+rtphl+2);
+			// Switch start bit
+			fuHeader &= 0x7F;
+		}
+	}
+
+	/**
+	 * Reserves the packets of the FU-A fragments of the NAL unit in the FIFO and lets the 
+	 * workers fill them, by runs of {@link #JOB_PACKETS}. 
+	 * @param nal The NAL unit, its header has already been read
+	 */
+	private void sendFragments(ByteBuffer nal, int size, byte indicator, byte fuHeader, boolean keyFrame, boolean last) throws InterruptedException {
+		int end = nal.limit();
+		int count = (nal.remaining()+size-1)/size;
+		for (int first=0; first<count; first+=JOB_PACKETS) {
+			int packets = Math.min(JOB_PACKETS, count-first);
+			int from = nal.position()+first*size;
+			FragmentJob job = new FragmentJob(nal.duplicate(), from, Math.min(end, from+packets*size), size, socket.reserveBuffers(packets), packets);
+			job.indicator = indicator;
+			job.fuHeader = (byte) (first == 0 ? fuHeader : fuHeader & 0x7F);
+			job.keyFrame = keyFrame && first == 0;
+			job.end = first+packets == count;
+			job.last = last && job.end;
+			job.timestamp = ts;
+			job.frame = current;
+			current.retain();
+			workers.execute(job);
+		}
+		nal.position(end);
+		// The packets are in the FIFO of the RtpSocket, even if the workers still fill them
+		current.markSent();
+	}
+
+	/** Fills consecutive FU-A packets reserved in the FIFO, run by a worker. */
+	private class FragmentJob implements Runnable {
+
+		private final ByteBuffer nal;
+		private final int from, to, size, slot, packets;
+		byte indicator, fuHeader;
+		boolean keyFrame, end, last;
+		long timestamp;
+		EncodedFrame frame;
+
+		FragmentJob(ByteBuffer nal, int from, int to, int size, int slot, int packets) {
+			this.nal = nal;
+			this.from = from;
+			this.to = to;
+			this.size = size;
+			this.slot = slot;
+			this.packets = packets;
+		}
+
+		@Override
+		public void run() {
+			int count = socket.getBufferCount();
+			int i = 0;
+			try {
+				for (; i<packets; i++) {
+					int s = (slot+i)%count, offset = from+i*size;
+					int len = Math.min(size, to-offset);
+					byte[] packet = socket.getBuffer(s);
+					packet[rtphl] = indicator;
+					packet[rtphl+1] = i == 0 ? fuHeader : (byte) (fuHeader & 0x7F);
+					if (end && i == packets-1) packet[rtphl+1] |= 0x40;
+					nal.limit(offset+len);
+					nal.position(offset);
+					nal.get(packet, rtphl+2, len);
+					socket.setTimestamp(s, timestamp);
+					if (keyFrame && i == 0) socket.setKeyFrame(s);
+					if (last && i == packets-1) socket.setMarker(s);
+					socket.completeBuffer(s, len+rtphl+2);
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Fragment lost: "+e.getMessage());
+				// The packets reserved must be completed anyway, or the FIFO would stall
+				for (; i<packets; i++) socket.completeBuffer((slot+i)%count, rtphl);
+			} finally {
+				frame.release();
+			}
+		}
+
+	}
+
+	private final static ThreadFactory workerFactory = new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, TAG+"-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/** 
+	 * The NAL unit is split in fragments of about the same size, rather than in full 
+	 * fragments followed by a tiny one, with the same number of packets.
+	 * @param naluLength The length of the NAL unit, its header included
+	 */
+	private int fragmentSize(int naluLength) {
+		int max = maxPacketSize-rtphl-2;
+		int count = (naluLength-1+max-1)/max;
+		return (naluLength-1+count-1)/count;
+	}
+
+	/**
+	 * Sends the SPS and the PPS in a STAP-A before each IDR, unless the stream already 
+	 * contains them right before that IDR. 
+	 * Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+	 */
+	private void sendParameterSets(int type) throws IOException, InterruptedException {
+		if (type == 7) {
+			spsInBand = true;
+		} else if (type == 8) {
+			ppsInBand = true;
+		} else if (type == 5 && !(spsInBand && ppsInBand)) {
+			byte[] stapa = parameterSets.getStapA();
+			if (stapa != null) {
+				buffer = socket.requestBuffer();
+				socket.markKeyFrame();
+				socket.updateTimestamp(ts);
+				System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
+				super.send(rtphl+stapa.length);
+			}
+		}
+		// Parameter sets only count as in-band for the slices that follow them directly
+		if (type >= 1 && type <= 5) spsInBand = ppsInBand = false;
+	}
+
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
 		int sum = 0, len;
 		while (sum<length) {
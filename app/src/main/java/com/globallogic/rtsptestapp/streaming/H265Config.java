@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the VPS, SPS and PPS of the HEVC streams of an encoder, they are needed in the 
+ * session description (RFC 7798, section 7.1). A few blank frames are encoded until the 
+ * encoder outputs its configuration. The result is saved in the shared preferences, 
+ * like {@link EncoderDebugger} does for H.264.
+ */
+public class H265Config {
+
+	public final static String TAG = "H265Config";
+
+	/** Prefix that will be used for all shared preferences saved by libstreaming. */
+	private static final String PREF_PREFIX = "libstreaming-hevc-";
+
+	/** Will be incremented every time the probe is modified. */
+	private static final int VERSION = 1;
+
+	/** How long we wait for the encoder to output its configuration, in ms. */
+	private static final long TIMEOUT = 3000;
+
+	/** NAL unit types of the parameter sets. */
+	public static final int NAL_VPS = 32, NAL_SPS = 33, NAL_PPS = 34;
+
+	private String mVPS, mSPS, mPPS;
+
+	public H265Config(String vps, String sps, String pps) {
+		mVPS = vps;
+		mSPS = sps;
+		mPPS = pps;
+	}
+
+	/** Base64 encoded VPS, null if unknown. */
+	public String getB64VPS() {
+		return mVPS;
+	}
+
+	/** Base64 encoded SPS, null if unknown. */
+	public String getB64SPS() {
+		return mSPS;
+	}
+
+	/** Base64 encoded PPS, null if unknown. */
+	public String getB64PPS() {
+		return mPPS;
+	}
+
+	/** Indicates if the three parameter sets are known. */
+	public boolean isComplete() {
+		return mVPS != null && mSPS != null && mPPS != null;
+	}
+
+	/**
+	 * Returns the parameter sets of the encoder for that resolution. 
+	 * @param prefs Used to save the result of the probe, may be null
+	 * @param encoderName The name of the encoder
+	 * @return The parameter sets, some of them are null if the encoder did not output them
+	 */
+	public synchronized static H265Config probe(SharedPreferences prefs, String encoderName, int width, int height) {
+		String key = PREF_PREFIX+encoderName+"-"+width+"x"+height+"-";
+		if (prefs != null && prefs.getInt(key+"version", 0) == VERSION) {
+			return new H265Config(prefs.getString(key+"vps", null), 
+					prefs.getString(key+"sps", null), prefs.getString(key+"pps", null));
+		}
+
+		H265Config config = new H265Config(null, null, null);
+		try {
+			config.encode(encoderName, width, height);
+		} catch (Exception e) {
+			Log.e(TAG, "Could not probe "+encoderName+": "+e.getMessage());
+		}
+
+		if (prefs != null && config.isComplete()) {
+			Editor editor = prefs.edit();
+			editor.putInt(key+"version", VERSION);
+			editor.putString(key+"vps", config.mVPS);
+			editor.putString(key+"sps", config.mSPS);
+			editor.putString(key+"pps", config.mPPS);
+			editor.apply();
+		}
+		return config;
+	}
+
+	/** Encodes blank frames until the encoder outputs its configuration. */
+	@SuppressLint("InlinedApi")
+	private void encode(String encoderName, int width, int height) throws Exception {
+		MediaCodec encoder = MediaCodec.createByCodecName(encoderName);
+		MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_HEVC, width, height);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, 1000000);
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, 20);
+		format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+
+		try {
+			encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			encoder.start();
+
+			MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			int frameSize = width*height*3/2;
+			long start = System.currentTimeMillis(), pts = 0;
+
+			while (!isComplete() && System.currentTimeMillis() - start < TIMEOUT) {
+				int index = encoder.dequeueInputBuffer(10000);
+				if (index >= 0) {
+					ByteBuffer input = encoder.getInputBuffer(index);
+					int size = Math.min(frameSize, input.capacity());
+					input.clear();
+					// A gray frame
+					for (int i=0; i<size; i++) input.put((byte) 0x80);
+					encoder.queueInputBuffer(index, 0, size, pts, 0);
+					pts += 50000;
+				}
+
+				index = encoder.dequeueOutputBuffer(info, 10000);
+				if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					ByteBuffer csd = encoder.getOutputFormat().getByteBuffer("csd-0");
+					if (csd != null) parse(csd);
+				} else if (index >= 0) {
+					if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+						ByteBuffer output = encoder.getOutputBuffer(index);
+						output.limit(info.offset+info.size);
+						output.position(info.offset);
+						parse(output);
+					}
+					encoder.releaseOutputBuffer(index, false);
+				}
+			}
+		} finally {
+			try {
+				encoder.stop();
+			} catch (Exception ignore) {}
+			encoder.release();
+		}
+
+		if (!isComplete()) Log.e(TAG, "The encoder did not output its VPS, SPS and PPS");
+	}
+
+	/** Finds the parameter sets in a buffer in the Annex B format. */
+	private void parse(ByteBuffer buffer) {
+		NalUnitScanner scanner = new NalUnitScanner().reset(buffer);
+		while (scanner.next()) {
+			int type = (buffer.get(scanner.start())>>1)&0x3F;
+			if (type != NAL_VPS && type != NAL_SPS && type != NAL_PPS) continue;
+			byte[] nal = new byte[scanner.end()-scanner.start()];
+			for (int i=0; i<nal.length; i++) nal[i] = buffer.get(scanner.start()+i);
+			String b64 = Base64.encodeToString(nal, 0, nal.length, Base64.NO_WRAP);
+			if (type == NAL_VPS) mVPS = b64;
+			else if (type == NAL_SPS) mSPS = b64;
+			else mPPS = b64;
+		}
+	}
+
+}
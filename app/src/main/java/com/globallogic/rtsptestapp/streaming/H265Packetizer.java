@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 
+ *   RFC 7798.
+ *   
+ *   H.265 streaming over RTP.
+ *   
+ *   Must be fed with an {@link EncodedFrameSource}, the frames of the source contain 
+ *   NAL units preceded by start codes. Small NAL units are sent as they are or aggregated 
+ *   in aggregation packets (AP), large ones are split in fragmentation units (FU).
+ *   
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "H265Packetizer";
+
+	/** Payload header types defined by RFC 7798. */
+	private final static int TYPE_AP = 48, TYPE_FU = 49;
+
+	private Thread t = null;
+	private byte[] vps = null, sps = null, pps = null;
+	// Parameter sets found in the stream since the last slice
+	private boolean vpsInBand = false, spsInBand = false, ppsInBand = false;
+
+	// Small NAL units waiting to be aggregated in an AP
+	private int[] aggregated = new int[64];
+	private int aggregatedCount = 0, aggregatedLength = 2;
+
+	public H265Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			source.close();
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** 
+	 * Sets the parameter sets of the stream, they are sent before each IRAP picture 
+	 * unless the encoder already puts them in the stream.
+	 */
+	public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+		this.vps = vps;
+		this.sps = sps;
+		this.pps = pps;
+	}
+
+	public void run() {
+		Log.d(TAG,"H265 packetizer started !");
+		vpsInBand = spsInBand = ppsInBand = false;
+		socket.setCacheSize(0);
+
+		try {
+			while (!Thread.interrupted()) {
+				send();
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"H265 packetizer stopped !");
+	}
+
+	/** Returns the type of the NAL unit whose header starts at that index. */
+	private static int typeOf(ByteBuffer buffer, int index) {
+		return (buffer.get(index)>>1)&0x3F;
+	}
+
+	/** BLA, IDR and CRA pictures can be decoded on their own. */
+	private static boolean isKeyFrame(int type) {
+		return (type >= 16 && type <= 21) || type == H265Config.NAL_VPS;
+	}
+
+	/**
+	 * Takes an output buffer of the encoder and sends all the NAL units it contains, 
+	 * and gives the buffer back to the encoder as soon as the last packet is queued.
+	 */
+	private void send() throws IOException, InterruptedException {
+		EncodedFrame frame = current = source.take();
+		ByteBuffer nal = frame.getBuffer();
+		try {
+			ts = frame.getPresentationTime()*1000L;
+			int limit = nal.limit();
+			int max = maxPacketSize-rtphl-3;
+			int count = frame.getNalCount();
+			for (int i=0; i<count; i++) {
+				int start = frame.getNalStart(i), end = frame.getNalEnd(i);
+				// The frame holds one access unit, the marker bit goes on its last packet
+				boolean more = i+1 < count;
+				if (end-start < 2) continue;
+				int type = typeOf(nal, start);
+				if (needsParameterSets(type)) sendAggregate(nal, false);
+				sendParameterSets(type);
+
+				if (end-start <= max) {
+					if (aggregatedLength+2+end-start > max) sendAggregate(nal, false);
+					aggregate(start, end);
+					if (!more) sendAggregate(nal, true);
+				} else {
+					sendAggregate(nal, false);
+					nal.limit(end);
+					nal.position(start);
+					sendNalUnit(nal, !more);
+					nal.limit(limit);
+				}
+			}
+			sendAggregate(nal, true);
+		} finally {
+			aggregatedCount = 0;
+			aggregatedLength = 2;
+			current = null;
+			frame.release();
+		}
+	}
+
+	/**
+	 * Sends the NAL unit between the position and the limit of the buffer, 
+	 * in a single NAL unit packet or split in FUs (RFC 7798, section 4.4.3).
+	 * @param last True if it is the last NAL unit of the access unit
+	 */
+	private void sendNalUnit(ByteBuffer nal, boolean last) throws IOException, InterruptedException {
+		int length = nal.remaining();
+		byte header0 = nal.get(nal.position()), header1 = nal.get(nal.position()+1);
+		int type = (header0>>1)&0x3F;
+		boolean keyFrame = isKeyFrame(type);
+
+		// Small NAL unit => Single NAL unit 
+		if (length<=maxPacketSize-rtphl-3) {
+			buffer = socket.requestBuffer();
+			if (keyFrame) socket.markKeyFrame();
+			nal.get(buffer, rtphl, length);
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			super.send(length+rtphl);
+			return;
+		}
+
+		// Large NAL unit => FUs, the payload header keeps the F bit, the layer id and the temporal id of the NAL unit
+		byte payloadHeader0 = (byte) ((header0 & 0x81) | (TYPE_FU << 1));
+		byte fuHeader = (byte) (0x80 | type); // Start bit
+		int size = fragmentSize(length);
+		nal.position(nal.position()+2);
+
+		while (nal.hasRemaining()) {
+			int len = Math.min(size, nal.remaining());
+			buffer = socket.requestBuffer();
+			if (keyFrame && (fuHeader & 0x80) != 0) socket.markKeyFrame();
+			buffer[rtphl] = payloadHeader0;
+			buffer[rtphl+1] = header1;
+			buffer[rtphl+2] = fuHeader;
+			socket.updateTimestamp(ts);
+			nal.get(buffer, rtphl+3, len);
+			// Last packet before next NAL
+			if (!nal.hasRemaining()) {
+				// End bit on
+				buffer[rtphl+2] |= 0x40;
+				if (last) socket.markNextPacket();
+			}
+			super.send(len+rtphl+3);
+			// Switch start bit
+			fuHeader &= 0x7F;
+		}
+	}
+
+	/** 
+	 * The NAL unit is split in fragments of about the same size. 
+	 * @param naluLength The length of the NAL unit, its 2 byte header included
+	 */
+	private int fragmentSize(int naluLength) {
+		int max = maxPacketSize-rtphl-3;
+		int count = (naluLength-2+max-1)/max;
+		return (naluLength-2+count-1)/count;
+	}
+
+	private void aggregate(int start, int end) {
+		if (2*aggregatedCount+2 > aggregated.length) {
+			int[] array = new int[aggregated.length*2];
+			System.arraycopy(aggregated, 0, array, 0, aggregated.length);
+			aggregated = array;
+		}
+		aggregated[2*aggregatedCount] = start;
+		aggregated[2*aggregatedCount+1] = end;
+		aggregatedCount++;
+		aggregatedLength += 2+end-start;
+	}
+
+	/**
+	 * Sends the NAL units waiting to be aggregated, in an AP (RFC 7798, section 4.4.2) 
+	 * or in a single NAL unit packet if there is only one.
+	 * @param last True if the last of them is the last NAL unit of the access unit
+	 */
+	private void sendAggregate(ByteBuffer nal, boolean last) throws IOException, InterruptedException {
+		if (aggregatedCount == 0) return;
+		int limit = nal.limit();
+
+		if (aggregatedCount == 1) {
+			nal.limit(aggregated[1]);
+			nal.position(aggregated[0]);
+			sendNalUnit(nal, last);
+		} else {
+			int offset = rtphl+2, f = 0, layer = 0x3F, tid = 7;
+			boolean keyFrame = false;
+			buffer = socket.requestBuffer();
+			for (int i=0; i<aggregatedCount; i++) {
+				int start = aggregated[2*i], end = aggregated[2*i+1], length = end-start;
+				int header = (nal.get(start)&0xFF)<<8 | (nal.get(start+1)&0xFF);
+				// F is set if one of the NAL units has it, the layer id and temporal id are the lowest ones
+				f |= header & 0x8000;
+				layer = Math.min(layer, (header>>3)&0x3F);
+				tid = Math.min(tid, header&0x07);
+				keyFrame |= isKeyFrame((header>>9)&0x3F);
+				buffer[offset++] = (byte) (length>>8);
+				buffer[offset++] = (byte) (length&0xFF);
+				nal.limit(end);
+				nal.position(start);
+				nal.get(buffer, offset, length);
+				// The next NAL units are after the limit
+				nal.limit(limit);
+				offset += length;
+			}
+			int header = f | TYPE_AP<<9 | layer<<3 | tid;
+			buffer[rtphl] = (byte) (header>>8);
+			buffer[rtphl+1] = (byte) (header&0xFF);
+			if (keyFrame) socket.markKeyFrame();
+			socket.updateTimestamp(ts);
+			if (last) socket.markNextPacket();
+			super.send(offset);
+		}
+
+		nal.limit(limit);
+		aggregatedCount = 0;
+		aggregatedLength = 2;
+	}
+
+	/** True for an IRAP picture that the VPS, the SPS and the PPS of the stream don't directly precede. */
+	private boolean needsParameterSets(int type) {
+		return type >= 16 && type <= 21 && !(vpsInBand && spsInBand && ppsInBand) 
+				&& vps != null && sps != null && pps != null;
+	}
+
+	/**
+	 * Sends the VPS, the SPS and the PPS in an AP before each IRAP picture, unless the stream 
+	 * already contains them right before it. They allow the stream to be decoded even if no SDP 
+	 * was sent to the decoder, or if the encoder only sends them with the first picture.
+	 */
+	private void sendParameterSets(int type) throws IOException, InterruptedException {
+		if (type == H265Config.NAL_VPS) {
+			vpsInBand = true;
+		} else if (type == H265Config.NAL_SPS) {
+			spsInBand = true;
+		} else if (type == H265Config.NAL_PPS) {
+			ppsInBand = true;
+		} else if (needsParameterSets(type) && 2 + 2+vps.length + 2+sps.length + 2+pps.length <= maxPacketSize-rtphl) {
+			buffer = socket.requestBuffer();
+			int offset = rtphl;
+			// Same layer id and temporal id as the VPS
+			buffer[offset++] = (byte) ((vps[0] & 0x81) | (TYPE_AP << 1));
+			buffer[offset++] = vps[1];
+			for (byte[] ps : new byte[][] {vps, sps, pps}) {
+				buffer[offset++] = (byte) (ps.length>>8);
+				buffer[offset++] = (byte) (ps.length&0xFF);
+				System.arraycopy(ps, 0, buffer, offset, ps.length);
+				offset += ps.length;
+			}
+			socket.markKeyFrame();
+			socket.updateTimestamp(ts);
+			super.send(offset);
+		}
+		// Parameter sets only count as in-band for the slices that follow them directly
+		if (type < H265Config.NAL_VPS) vpsInBand = spsInBand = ppsInBand = false;
+	}
+
+}
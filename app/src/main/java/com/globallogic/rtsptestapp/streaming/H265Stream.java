@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.util.Base64;
+
+import com.globallogic.rtsptestapp.streaming.exceptions.ConfNotSupportedException;
+
+import java.io.IOException;
+
+/**
+ * A {@link VideoStream} encoded in H.265 by a hardware encoder when the device has one, 
+ * and packetized according to RFC 7798.
+ */
+public class H265Stream extends VideoStream {
+
+	protected final static String TAG = "H265Stream";
+
+	private H265Config mHevcConfig;
+
+	/** 
+	 * @param camera Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 */
+	public H265Stream(int camera) {
+		super(camera, MediaFormat.MIMETYPE_VIDEO_HEVC, MediaRecorder.VideoEncoder.HEVC, new H265Packetizer());
+	}
+
+	/**
+	 * Finds an HEVC encoder with the {@link CodecManager} and the VPS, SPS and PPS of its streams.
+	 * @throws ConfNotSupportedException The device has no HEVC encoder
+	 */
+	@Override
+	protected void configureEncoder() throws IOException {
+		mEncoderName = CodecManager.findSurfaceEncoder(mMimeType, mQuality.resX, mQuality.resY, mQuality.framerate);
+		if (mEncoderName == null) {
+			throw new ConfNotSupportedException("No HEVC encoder supports "+mQuality.resX+"x"+mQuality.resY+" at "+mQuality.framerate+" fps !");
+		}
+		mHevcConfig = H265Config.probe(mSettings, mEncoderName, mQuality.resX, mQuality.resY);
+	}
+
+	@Override
+	protected void setStreamParameters() {
+		if (mHevcConfig.isComplete()) {
+			((H265Packetizer)mPacketizer).setStreamParameters(
+					Base64.decode(mHevcConfig.getB64VPS(), Base64.NO_WRAP),
+					Base64.decode(mHevcConfig.getB64SPS(), Base64.NO_WRAP),
+					Base64.decode(mHevcConfig.getB64PPS(), Base64.NO_WRAP));
+		}
+	}
+
+	/**
+	 * Returns a description of the stream using SDP (RFC 7798, section 7.2). 
+	 * The parameter sets are left out if the encoder did not give them, the receiver 
+	 * will then find them in the stream.
+	 */
+	@Override
+	public synchronized String getSessionDescription() throws IllegalStateException {
+		if (mHevcConfig == null) throw new IllegalStateException("You need to call configure() first !");
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+				"a=rtpmap:96 H265/90000\r\n" +
+				(mHevcConfig.isComplete() ? "a=fmtp:96 sprop-vps="+mHevcConfig.getB64VPS()+";sprop-sps="+mHevcConfig.getB64SPS()+";sprop-pps="+mHevcConfig.getB64PPS()+"\r\n" : "");
+	}
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Writes to the TCP connection of a client from its own thread, so that a client whose 
+ * TCP window is closed never blocks the {@link RtpEventLoop} nor the other clients.<br />
+ *
+ * RTP packets interleaved in the connection (RFC 2326, section 10.12) are queued with 
+ * {@link #offer(byte, byte[], int, boolean)}. When the queue is full, packets are skipped 
+ * until the next key frame so that the client can decode again as soon as it catches up. 
+ * A client that stays behind for longer than the timeout is disconnected.<br />
+ *
+ * Everything else written to the stream (RTSP responses, RTCP) is never skipped.
+ */
+public class InterleavedConsumer extends OutputStream implements Runnable {
+
+	public final static String TAG = "InterleavedConsumer";
+
+	/** Counters of a consumer, see {@link #getStats()}. */
+	public static class Stats {
+
+		/** Bytes waiting to be written. */
+		public long queuedBytes;
+
+		/** Age of the oldest packet waiting to be written, in ms. */
+		public long lag;
+
+		/** Number of RTP packets written. */
+		public long sentPackets;
+
+		/** Number of RTP packets skipped. */
+		public long skippedPackets;
+
+		/** Number of times the consumer had to wait for a key frame. */
+		public long skippedFrames;
+
+		public boolean disconnected;
+
+		public String toString() {
+			return "lag "+lag+" ms ("+queuedBytes/1000+" kB), "+sentPackets+" packets sent, "+
+					skippedPackets+" skipped in "+skippedFrames+" gaps"+(disconnected ? ", disconnected" : "");
+		}
+
+	}
+
+	private static class Packet {
+		byte[] data;
+		int length;
+		long queuedAt;
+		boolean media;
+	}
+
+	private final OutputStream mOutput;
+	private final Closeable mConnection;
+	private final ArrayDeque<Packet> mQueue = new ArrayDeque<>();
+	private final ArrayDeque<Packet> mFree = new ArrayDeque<>();
+	private final Thread mThread;
+
+	private int mCapacity = 512*1024;
+	private long mTimeout = 5000;
+	private long mQueuedBytes = 0;
+	private boolean mSkipping = false, mClosed = false;
+	private long mSkippingSince = 0;
+	private long mSentPackets = 0, mSkippedPackets = 0, mSkippedFrames = 0;
+
+	/**
+	 * @param output The output stream of the connection
+	 * @param connection Closed when the client is disconnected, usually the socket of the client
+	 */
+	public InterleavedConsumer(OutputStream output, Closeable connection) {
+		mOutput = output;
+		mConnection = connection;
+		mThread = new Thread(this, TAG);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Sets the size of the queue. When it is full, RTP packets are skipped until the next key frame.
+	 * @param capacity The size in bytes
+	 */
+	public synchronized void setCapacity(int capacity) {
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Sets how long the client may stay behind before being disconnected.
+	 * @param timeout The timeout in ms, 0 means never
+	 */
+	public synchronized void setTimeout(long timeout) {
+		mTimeout = timeout;
+	}
+
+	/**
+	 * Queues a RTP or RTCP packet. Never blocks.
+	 * @param channel The interleaved channel identifier
+	 * @param buffer The packet, copied before this method returns
+	 * @param length The length of the packet
+	 * @param keyFrame True if the packet is the first of a key frame
+	 * @return False if the packet was skipped
+	 */
+	public synchronized boolean offer(byte channel, byte[] buffer, int length, boolean keyFrame) {
+		if (mClosed) return false;
+		long now = System.nanoTime();
+
+		if (mTimeout > 0 && (lag(now) > mTimeout || (mSkipping && (now - mSkippingSince)/1000000 > mTimeout))) {
+			Log.w(TAG, "Client too slow, lag: "+lag(now)+" ms");
+			disconnect();
+			return false;
+		}
+
+		if (mSkipping) {
+			// We resume with some room left in the queue, so that the key frame is not cut right away
+			if (keyFrame && mQueuedBytes + length + 4 <= mCapacity/2) {
+				mSkipping = false;
+			} else {
+				mSkippedPackets++;
+				return false;
+			}
+		} else if (mQueuedBytes + length + 4 > mCapacity) {
+			mSkipping = true;
+			mSkippingSince = now;
+			mSkippedPackets++;
+			mSkippedFrames++;
+			return false;
+		}
+
+		Packet packet = obtain(length + 4, now);
+		packet.media = true;
+		packet.data[0] = '$';
+		packet.data[1] = channel;
+		packet.data[2] = (byte) (length>>8);
+		packet.data[3] = (byte) (length&0xFF);
+		System.arraycopy(buffer, 0, packet.data, 4, length);
+		enqueue(packet);
+		return true;
+	}
+
+	/** Queues data that must not be skipped, like a RTSP response. Never blocks. */
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+		if (mClosed) throw new IOException("Client disconnected");
+		Packet packet = obtain(length, System.nanoTime());
+		packet.media = false;
+		System.arraycopy(buffer, offset, packet.data, 0, length);
+		enqueue(packet);
+		if (mQueuedBytes > 2L*mCapacity) {
+			Log.w(TAG, "Client too slow, "+mQueuedBytes/1000+" kB queued");
+			disconnect();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	/** Disconnects the client. */
+	@Override
+	public void close() {
+		disconnect();
+	}
+
+	/** Indicates if the client has been disconnected. */
+	public synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	public synchronized Stats getStats() {
+		Stats stats = new Stats();
+		stats.queuedBytes = mQueuedBytes;
+		stats.lag = lag(System.nanoTime());
+		stats.sentPackets = mSentPackets;
+		stats.skippedPackets = mSkippedPackets;
+		stats.skippedFrames = mSkippedFrames;
+		stats.disconnected = mClosed;
+		return stats;
+	}
+
+	private long lag(long now) {
+		Packet packet = mQueue.peek();
+		return packet != null ? (now - packet.queuedAt)/1000000 : 0;
+	}
+
+	private Packet obtain(int length, long now) {
+		Packet packet = mFree.poll();
+		if (packet == null) packet = new Packet();
+		if (packet.data == null || packet.data.length < length) {
+			packet.data = new byte[Math.max(length, MtuProbe.ETHERNET_MTU)];
+		}
+		packet.length = length;
+		packet.queuedAt = now;
+		return packet;
+	}
+
+	private void enqueue(Packet packet) {
+		mQueue.add(packet);
+		mQueuedBytes += packet.length;
+		notifyAll();
+	}
+
+	private synchronized void disconnect() {
+		if (mClosed) return;
+		mClosed = true;
+		mQueue.clear();
+		mQueuedBytes = 0;
+		notifyAll();
+		// Unblocks the writer and the thread that reads the requests of the client
+		try {
+			mConnection.close();
+		} catch (IOException ignore) {}
+	}
+
+	@Override
+	public void run() {
+		Packet packet = null;
+		try {
+			while (true) {
+				synchronized (this) {
+					if (packet != null && !mClosed) {
+						mQueuedBytes -= packet.length;
+						if (packet.media) mSentPackets++;
+						mFree.add(packet);
+					}
+					while (!mClosed && mQueue.isEmpty()) wait();
+					if (mClosed) break;
+					// The packet stays in the queue while it is written, so that the lag accounts for it
+					packet = mQueue.peek();
+				}
+				mOutput.write(packet.data, 0, packet.length);
+				synchronized (this) {
+					if (!mClosed) mQueue.poll();
+				}
+			}
+		} catch (InterruptedException ignore) {
+		} catch (IOException e) {
+			Log.d(TAG, "Client disconnected: "+e.getMessage());
+		} finally {
+			disconnect();
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+/**
+ * Decides when the encoder of a stream should produce a key frame on demand.
+ * 
+ * Requests come from RTCP feedback sent by the receivers, PLI and FIR (RFC 4585 and RFC 5104), 
+ * and from the RTSP connection. They are coalesced and rate limited: a request is dropped 
+ * if a key frame was sent after it was made, and two key frames are never forced closer than 
+ * {@link #setMinInterval(long)}, a request made too early is delayed until that interval has 
+ * elapsed. That way the encoder can use long GOPs, and a burst of requests from the viewers 
+ * of a stream only costs one key frame.
+ */
+public class KeyFrameRequester {
+
+	public final static String TAG = "KeyFrameRequester";
+
+	/** Default minimum time between two forced key frames, in ms. */
+	public final static long DEFAULT_MIN_INTERVAL = 500;
+
+	/** RTCP payload specific feedback (RFC 4585). */
+	private final static int RTCP_PSFB = 206;
+
+	/** Feedback message types of PSFB packets. */
+	private final static int FMT_PLI = 1, FMT_FIR = 4;
+
+	/** Called on the {@link RtpEventLoop} when the encoder should produce a key frame. */
+	public interface Listener {
+		void onKeyFrameRequested();
+	}
+
+	private Listener mListener;
+	private RtpEventLoop mLoop;
+	private RtpEventLoop.Timer mTimer;
+	private long mMinInterval = DEFAULT_MIN_INTERVAL*1000000L;
+	private long mLastForced = 0, mRequestedAt = 0;
+	private boolean mPending = false;
+	private int mLastFirSeq = -1;
+	private int mRequests = 0, mForced = 0;
+
+	public KeyFrameRequester() {}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** Sets the {@link RtpEventLoop} on which the listener is called. */
+	public synchronized void setEventLoop(RtpEventLoop loop) {
+		mLoop = loop;
+	}
+
+	/**
+	 * Sets the minimum time between two forced key frames.
+	 * @param interval The interval in ms
+	 */
+	public synchronized void setMinInterval(long interval) {
+		mMinInterval = interval*1000000L;
+	}
+
+	/** Returns the number of requests received, see {@link #request()}. */
+	public synchronized int getRequestCount() {
+		return mRequests;
+	}
+
+	/** Returns the number of key frames that have actually been asked to the encoder. */
+	public synchronized int getForcedCount() {
+		return mForced;
+	}
+
+	/** Forgets the previous requests, called when the encoder is restarted. */
+	public synchronized void reset() {
+		if (mTimer != null) mTimer.cancel();
+		mTimer = null;
+		mPending = false;
+		mLastForced = 0;
+		mLastFirSeq = -1;
+	}
+
+	/** Asks for a key frame. Can be called from any thread. */
+	public synchronized void request() {
+		mRequests++;
+		if (mPending || mLoop == null) return;
+		long now = System.nanoTime();
+		mPending = true;
+		mRequestedAt = now;
+		long wait = mLastForced == 0 ? 0 : mLastForced + mMinInterval - now;
+		if (wait > 0) {
+			mTimer = mLoop.scheduleNanos(mForce, wait);
+		} else {
+			mLoop.execute(mForce);
+		}
+	}
+
+	/** 
+	 * Called by the {@link RtpSocket} when a key frame is sent, the requests 
+	 * made before are satisfied. 
+	 */
+	public synchronized void onKeyFrame() {
+		if (mPending && System.nanoTime() - mRequestedAt >= 0) {
+			mPending = false;
+			if (mTimer != null) mTimer.cancel();
+			mTimer = null;
+		}
+	}
+
+	private final Runnable mForce = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (KeyFrameRequester.this) {
+				mTimer = null;
+				// A key frame may have been sent in the meantime
+				if (!mPending) return;
+				mPending = false;
+				mLastForced = System.nanoTime();
+				mForced++;
+			}
+			Log.d(TAG, "Key frame requested");
+			if (mListener != null) mListener.onKeyFrameRequested();
+		}
+	};
+
+	/**
+	 * Looks for PLI and FIR messages in a compound RTCP packet sent by a receiver. 
+	 * @param buffer The packet
+	 * @param offset Where the packet starts in the buffer
+	 * @param length Length of the packet
+	 * @param ssrc The SSRC of our stream, feedback about other streams is ignored
+	 */
+	public void onRtcp(byte[] buffer, int offset, int length, int ssrc) {
+		int end = offset + length;
+		while (end - offset >= 4) {
+			if ((buffer[offset] & 0xC0) != 0x80) return;
+			int fmt = buffer[offset] & 0x1F;
+			int pt = buffer[offset+1] & 0xFF;
+			int size = (((buffer[offset+2] & 0xFF) << 8 | (buffer[offset+3] & 0xFF)) + 1)*4;
+			if (size > end - offset) return;
+			if (pt == RTCP_PSFB && size >= 12) {
+				if (fmt == FMT_PLI && getInt(buffer, offset+8) == ssrc) {
+					request();
+				} else if (fmt == FMT_FIR) {
+					// The SSRC of the media source is in the FCI entries, it must be ignored in the header
+					for (int fci = offset+12; fci+8 <= offset+size; fci += 8) {
+						if (getInt(buffer, fci) == ssrc) onFir(buffer[fci+4] & 0xFF);
+					}
+				}
+			}
+			offset += size;
+		}
+	}
+
+	/** A FIR that is repeated with the same sequence number was already handled (RFC 5104, section 4.3.1). */
+	private void onFir(int seq) {
+		synchronized (this) {
+			if (seq == mLastFirSeq) return;
+			mLastFirSeq = seq;
+		}
+		request();
+	}
+
+	private static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) << 24 | (buffer[offset+1] & 0xFF) << 16 | (buffer[offset+2] & 0xFF) << 8 | (buffer[offset+3] & 0xFF);
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link EncodedFrameSource} that gives the output buffers of a MediaCodec to a packetizer, 
+ * without copying them: each frame is a view of an output buffer, which goes back to the 
+ * encoder when the frame is released.<br />
+ *
+ * The encoder is driven in asynchronous mode: its callbacks run on a dedicated thread and 
+ * queue events, in order, that the packetizer takes as soon as they arrive, see {@link #attach(MediaCodec)}. 
+ * Changes of the output format and errors are reported to the {@link Listener} on the thread 
+ * of the packetizer, in order with the frames.
+ */
+@SuppressLint("NewApi")
+public class MediaCodecFrameSource implements EncodedFrameSource {
+
+	public final String TAG = "MediaCodecFrameSource"; 
+
+	/** Called on the thread of the packetizer, between two frames. */
+	public interface Listener {
+
+		void onOutputFormatChanged(MediaFormat format);
+
+		/** If the error is neither transient nor recoverable the source is closed right after. */
+		void onError(MediaCodec.CodecException e);
+
+	}
+
+	private final static Object CLOSED = new Object();
+
+	private final MediaCodec mMediaCodec;
+	private final HandlerThread mThread;
+	// Frames, formats and errors, in the order of the callbacks
+	private final LinkedBlockingQueue<Object> mEvents = new LinkedBlockingQueue<>();
+	private final LinkedBlockingQueue<Integer> mInputBuffers = new LinkedBlockingQueue<>();
+	private final ArrayDeque<EncodedFrame> mFree = new ArrayDeque<>();
+	private volatile boolean mClosed = false, mAnnexB = false;
+	private volatile Listener mListener;
+
+	private long mLatency = 0, mMaxLatency = 0;
+	
+	public MediaFormat mMediaFormat;
+
+	private MediaCodecFrameSource(MediaCodec mediaCodec) {
+		mMediaCodec = mediaCodec;
+		mThread = new HandlerThread(TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Drives the encoder in asynchronous mode, its callbacks are called on a dedicated thread.
+	 * Must be called before the encoder is configured.
+	 * @param mediaCodec The encoder
+	 * @return The source of the frames of the encoder
+	 */
+	public static MediaCodecFrameSource attach(MediaCodec mediaCodec) {
+		MediaCodecFrameSource source = new MediaCodecFrameSource(mediaCodec);
+		mediaCodec.setCallback(source.mCallback, new Handler(source.mThread.getLooper()));
+		return source;
+	}
+
+	private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+
+		@Override
+		public void onInputBufferAvailable(MediaCodec codec, int index) {
+			mInputBuffers.offer(index);
+		}
+
+		@Override
+		public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+			ByteBuffer buffer = codec.getOutputBuffer(index);
+			buffer.limit(info.offset + info.size);
+			buffer.position(info.offset);
+			int flags = 0;
+			if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) flags |= EncodedFrame.FLAG_KEY_FRAME;
+			if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) flags |= EncodedFrame.FLAG_CODEC_CONFIG;
+			if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) flags |= EncodedFrame.FLAG_END_OF_STREAM;
+			EncodedFrame frame = obtain();
+			frame.set(buffer, info.presentationTimeUs, flags);
+			frame.setIndex(index);
+			// Done here rather than on the thread of the packetizer
+			if (mAnnexB) frame.scanNalUnits();
+			mEvents.offer(frame);
+		}
+
+		@Override
+		public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+			mEvents.offer(format);
+		}
+
+		@Override
+		public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+			mEvents.offer(e);
+		}
+
+	};
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** 
+	 * Set it if the encoder outputs H.264 or H.265 in the Annex B format, the NAL units of 
+	 * the frames are located before they are handed over, see {@link EncodedFrame#scanNalUnits()}.
+	 */
+	public void setAnnexB(boolean annexB) {
+		mAnnexB = annexB;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+		mEvents.offer(CLOSED);
+		mThread.quitSafely();
+	}
+
+	@Override
+	public EncodedFrame take() throws IOException {
+		while (!mClosed) {
+			Object event;
+			try {
+				event = mEvents.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("The packetizer was interrupted");
+			}
+			Listener listener = mListener;
+			if (event instanceof EncodedFrame) {
+				return (EncodedFrame) event;
+			} else if (event instanceof MediaFormat) {
+				mMediaFormat = (MediaFormat) event;
+				Log.i(TAG,mMediaFormat.toString());
+				if (listener != null) listener.onOutputFormatChanged(mMediaFormat);
+			} else if (event instanceof MediaCodec.CodecException) {
+				MediaCodec.CodecException error = (MediaCodec.CodecException) event;
+				Log.e(TAG,"Encoder error: "+error.getDiagnosticInfo());
+				if (listener != null) listener.onError(error);
+				if (!error.isTransient() && !error.isRecoverable()) {
+					close();
+					throw new IOException("The encoder failed: "+error.getDiagnosticInfo());
+				}
+			}
+		}
+		throw new IOException("This source was closed");
+	}
+
+	/** Gives the output buffer back to the encoder. */
+	@Override
+	public void recycle(EncodedFrame frame) {
+		try {
+			mMediaCodec.releaseOutputBuffer(frame.getIndex(), false);
+		} catch (IllegalStateException e) {
+			// The encoder has been stopped in the meantime
+			Log.w(TAG, "Could not release buffer: "+e.getMessage());
+		}
+		long latency = frame.getLatency();
+		synchronized (mFree) {
+			if (latency >= 0) {
+				mLatency = mLatency == 0 ? latency : (15*mLatency + latency)/16;
+				if (latency > mMaxLatency) mMaxLatency = latency;
+			}
+			frame.set(null, 0, 0);
+			mFree.add(frame);
+		}
+	}
+
+	private EncodedFrame obtain() {
+		synchronized (mFree) {
+			EncodedFrame frame = mFree.poll();
+			return frame != null ? frame : new EncodedFrame(this);
+		}
+	}
+
+	/**
+	 * Waits for an input buffer of the encoder, for encoders fed with buffers rather than a surface.
+	 * @param timeout The timeout in us
+	 * @return The index of the buffer, or {@link MediaCodec#INFO_TRY_AGAIN_LATER}
+	 */
+	public int dequeueInputBuffer(long timeout) throws InterruptedException {
+		Integer index = mInputBuffers.poll(timeout, TimeUnit.MICROSECONDS);
+		return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+	}
+
+	/** 
+	 * Returns the average time between the moment the encoder outputs a buffer and 
+	 * the moment its first packet is handed to the {@link RtpSocket}, in us.
+	 */
+	public long getOutputLatency() {
+		synchronized (mFree) {
+			return mLatency;
+		}
+	}
+
+	/** Returns the longest time measured by {@link #getOutputLatency()}, in us. */
+	public long getMaxOutputLatency() {
+		synchronized (mFree) {
+			return mMaxLatency;
+		}
+	}
+
+}
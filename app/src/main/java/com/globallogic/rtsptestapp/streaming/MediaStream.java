@@ -92,6 +92,9 @@ public abstract class MediaStream implements Stream {
 
 	protected MediaRecorder mMediaRecorder;
 	protected MediaCodec mMediaCodec;
+	/** Guards {@link #mMediaCodec} for the threads that change its parameters, they never take the monitor of the stream. */
+	protected final Object mCodecLock = new Object();
+	protected MediaCodecFrameSource mEncoderOutput;
 	
 	static {
 		// We determine whether or not the MediaCodec API should be used
@@ -153,13 +156,12 @@ public abstract class MediaStream implements Stream {
 	public void setDestinationPorts(int rtpPort, int rtcpPort) {
 		mRtpPort = rtpPort;
 		mRtcpPort = rtcpPort;
-		mOutputStream = null;
 	}	
 
 	/**
 	 * If a TCP is used as the transport protocol for the RTP session,
 	 * the output stream to which RTP packets will be written to must
-	 * be specified with this method.
+	 * be specified with this method. Set it to null to go back to UDP.
 	 */ 
 	public void setOutputStream(OutputStream stream, byte channelIdentifier) {
 		mOutputStream = stream;
@@ -195,6 +197,69 @@ public abstract class MediaStream implements Stream {
 		return mPacketizer.getRtpSocket().getLocalPorts();
 	}
 
+	/**
+	 * Sets the {@link RtpEventLoop} that will send the RTP and RTCP packets of the stream.
+	 * All the streams of a {@link Session} share the same loop.
+	 */
+	public void setEventLoop(RtpEventLoop loop) {
+		mPacketizer.getRtpSocket().setEventLoop(loop);
+	}
+
+	/**
+	 * Sets the offset between the wall clock and the {@link System#nanoTime()} time base used 
+	 * by the RTCP sender reports and the {@link CaptureTime}. The streams of a {@link Session} 
+	 * share the same offset, so that receivers can synchronize them.
+	 * @param offset The offset in ns
+	 */
+	public void setClockOffset(long offset) {
+		mPacketizer.setClockOffset(offset);
+	}
+
+	/**
+	 * Sets the MTU of the path to the destination, RTP packets are sized accordingly.
+	 * Must not be called while streaming.
+	 * @param mtu The MTU in bytes, IP and UDP headers included
+	 */
+	public void setMtu(int mtu) {
+		mPacketizer.setMtu(mtu);
+	}
+
+	/**
+	 * Sends the packets of the stream through an emulated bad network. 
+	 * @param impairment The emulated network, or null to send packets directly
+	 */
+	public void setNetworkImpairment(NetworkImpairment impairment) {
+		mPacketizer.getRtpSocket().setNetworkImpairment(impairment);
+	}
+
+	/**
+	 * Enables RTP and RTCP multiplexing on a single port (RFC 5761).
+	 * Must be called before {@link #getLocalPorts()}.
+	 */
+	public void setRtcpMux(boolean mux) {
+		mPacketizer.getRtpSocket().setRtcpMux(mux);
+	}
+
+	/**
+	 * Handles an RTCP packet sent by the receiver over the RTSP connection.
+	 * Packets sent over UDP are received by the {@link RtpSocket} itself.
+	 */
+	public void receiveRtcp(byte[] buffer, int offset, int length) {
+		mPacketizer.getRtpSocket().receiveRtcp(buffer, offset, length);
+	}
+
+	/** Gives the ports used by the stream back to the {@link RtpPortPool}. */
+	public void releasePorts() {
+		mPacketizer.getRtpSocket().close();
+	}
+
+	/**
+	 * Sets the flow of the {@link BandwidthShaper} that the packets of the stream belong to.
+	 */
+	public void setBandwidthFlow(BandwidthShaper.Flow flow) {
+		mPacketizer.getRtpSocket().setFlow(flow);
+	}
+
 	/**
 	 * Sets the streaming method that will be used.
 	 * 
@@ -229,6 +294,14 @@ public abstract class MediaStream implements Stream {
 		return mPacketizer;
 	}
 
+	/**
+	 * Returns the average time output buffers of the encoder wait before their first 
+	 * packet is sent, in us. See {@link MediaCodecFrameSource#getOutputLatency()}.
+	 */
+	public long getEncoderLatency() {
+		return !mStreaming || mEncoderOutput == null ? 0 : mEncoderOutput.getOutputLatency();
+	}
+
 	/**
 	 * Returns an approximation of the bit rate consumed by the stream in bit per seconde.
 	 */
@@ -282,10 +355,24 @@ public abstract class MediaStream implements Stream {
 					mPacketizer.stop();
 				} else {
 					mPacketizer.stop();
-					mMediaCodec.stop();
-					mMediaCodec.release();
-					mMediaCodec = null;
+					MediaCodec codec;
+					synchronized (mCodecLock) {
+						codec = mMediaCodec;
+						mMediaCodec = null;
+					}
+					try {
+						if (codec != null) {
+							codec.stop();
+							codec.release();
+						}
+					} finally {
+						// Quits the thread of the callbacks of the encoder, even if the encoder failed to stop
+						if (mEncoderOutput != null) mEncoderOutput.close();
+						mEncoderOutput = null;
+					}
 				}
+				// The next start begins with an empty FIFO and a new pacing
+				mPacketizer.getRtpSocket().reset();
 			} catch (Exception e) {
 				e.printStackTrace();
 			}	
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Finds the MTU that can be used to send RTP packets to a destination.
+ * The MTU of the interface the packets leave from is used, it is capped to 1500 bytes
+ * unless jumbo frames are allowed.
+ */
+public class MtuProbe {
+
+	public final static String TAG = "MtuProbe";
+
+	/** MTU of an ethernet link. */
+	public final static int ETHERNET_MTU = 1500;
+
+	/** Smallest MTU we accept to use. */
+	public final static int MIN_MTU = 576;
+
+	/**
+	 * Returns the MTU of the path to the destination.
+	 * @param destination The destination of the RTP packets
+	 * @param jumbo Set to true to allow packets bigger than {@link #ETHERNET_MTU}
+	 * @return The MTU in bytes, {@link RtpSocket#MTU} if it could not be determined
+	 */
+	public static int probe(InetAddress destination, boolean jumbo) {
+		int mtu = RtpSocket.MTU;
+		DatagramChannel channel = null;
+		try {
+			// Connecting a UDP socket sends nothing, but tells us which local address, and thus which interface, is used
+			channel = DatagramChannel.open();
+			channel.connect(new InetSocketAddress(destination, 9));
+			InetAddress local = ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+			NetworkInterface itf = NetworkInterface.getByInetAddress(local);
+			if (itf != null && itf.getMTU() > 0) {
+				mtu = itf.getMTU();
+				Log.d(TAG, "MTU of "+itf.getName()+": "+mtu);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Could not determine the MTU: "+e.getMessage());
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (Exception ignore) {}
+			}
+		}
+		return clamp(mtu, jumbo);
+	}
+
+	/** Keeps the MTU between {@link #MIN_MTU} and {@link RtpSocket#MAX_MTU}, or {@link #ETHERNET_MTU} without jumbo frames. */
+	public static int clamp(int mtu, boolean jumbo) {
+		int max = jumbo ? RtpSocket.MAX_MTU : ETHERNET_MTU;
+		return Math.max(MIN_MTU, Math.min(max, mtu));
+	}
+
+}
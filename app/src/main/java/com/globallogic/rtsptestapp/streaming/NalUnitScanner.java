@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a buffer of H.264 or H.265 data in the Annex B format into NAL units.
+ * Encoders may output several NAL units in one buffer (SPS, PPS and an IDR, or several slices), 
+ * preceded by 3 or 4 byte start codes. A buffer that does not start with a start code is a single NAL unit.<br />
+ *
+ * The buffer is scanned eight bytes at a time: a start code begins with a zero byte, so a 
+ * word without any zero byte is skipped at once. Only absolute reads are used, the position 
+ * and the limit of the buffer may be changed between two calls to {@link #next()}.
+ */
+public class NalUnitScanner {
+
+	private final static long ONES = 0x0101010101010101L;
+	private final static long HIGHS = 0x8080808080808080L;
+
+	private ByteBuffer mBuffer;
+	private int mLimit, mStart, mEnd, mNext;
+
+	/**
+	 * Starts scanning the buffer, between its position and its limit.
+	 * @return This scanner
+	 */
+	public NalUnitScanner reset(ByteBuffer buffer) {
+		mBuffer = buffer;
+		mLimit = buffer.limit();
+		mStart = mEnd = -1;
+		int sc = findStartCode(buffer, buffer.position(), mLimit);
+		// Data before the first start code, if any, is a NAL unit too
+		mNext = sc == buffer.position() ? sc+3 : buffer.position();
+		return this;
+	}
+
+	/**
+	 * Finds the next NAL unit.
+	 * @return False if there is no NAL unit left in the buffer
+	 */
+	public boolean next() {
+		if (mNext < 0 || mNext >= mLimit) return false;
+		mStart = mNext;
+		int sc = findStartCode(mBuffer, mStart, mLimit);
+		if (sc < 0) {
+			mEnd = mLimit;
+			mNext = -1;
+		} else {
+			mEnd = sc;
+			mNext = sc+3;
+		}
+		// The first byte of a 4 byte start code, or trailing zero bytes
+		while (mEnd > mStart && mBuffer.get(mEnd-1) == 0) mEnd--;
+		// An empty NAL unit is skipped (two start codes in a row)
+		return mEnd > mStart || next();
+	}
+
+	/** Index of the first byte (the NAL header) of the current NAL unit. */
+	public int start() {
+		return mStart;
+	}
+
+	/** Index of the byte after the current NAL unit. */
+	public int end() {
+		return mEnd;
+	}
+
+	/**
+	 * Finds the next 0x000001 sequence of the buffer.
+	 * @param buffer The buffer, only absolute reads are used
+	 * @param from Index where the search starts
+	 * @param to Index where the search stops
+	 * @return The index of the first zero byte of the sequence, or -1 if there is none
+	 */
+	public static int findStartCode(ByteBuffer buffer, int from, int to) {
+		int i = from;
+		while (i+8 <= to) {
+			long word = buffer.getLong(i);
+			// Nonzero only if at least one byte of the word is zero
+			if (((word - ONES) & ~word & HIGHS) == 0) {
+				i += 8;
+				continue;
+			}
+			for (int end = i+8; i < end; i++) {
+				if (buffer.get(i) == 0 && isStartCode(buffer, i, to)) return i;
+			}
+		}
+		for (; i+2 < to; i++) {
+			if (buffer.get(i) == 0 && isStartCode(buffer, i, to)) return i;
+		}
+		return -1;
+	}
+
+	private static boolean isStartCode(ByteBuffer buffer, int i, int to) {
+		return i+2 < to && buffer.get(i+1) == 0 && buffer.get(i+2) == 1;
+	}
+
+}
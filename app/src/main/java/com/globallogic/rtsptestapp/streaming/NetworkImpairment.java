@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Emulates a bad network in front of the {@link RtpSocket}, so that pacing and bitrate 
+ * adaptation can be tuned with reproducible conditions, over the loopback interface for example.
+ * Packets can be lost at random or in bursts (Gilbert-Elliott model), delayed with some jitter, 
+ * reordered, duplicated, and the bandwidth of the link can be capped.<br />
+ *
+ * The class does not depend on Android nor on the clock: packets are given to 
+ * {@link #offer(ByteBuffer, long)} and come out of {@link #flush(long, Output)} once their 
+ * time has come. With the same seed, the same packets are lost, delayed and reordered.
+ */
+public class NetworkImpairment implements Cloneable {
+
+	public final static String TAG = "NetworkImpairment";
+
+	/** Receives the packets that leave the emulated network. */
+	public interface Output {
+		/** @return false if the packet could not be sent yet, it then stays in the network */
+		boolean send(ByteBuffer packet) throws IOException;
+	}
+
+	/** A packet waiting in the emulated network. */
+	private static class Packet implements Comparable<Packet> {
+
+		ByteBuffer buffer;
+		long departure, order;
+
+		@Override
+		public int compareTo(Packet other) {
+			if (departure != other.departure) return departure - other.departure < 0 ? -1 : 1;
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+
+	}
+
+	private float mLoss = 0, mDuplicate = 0, mReorder = 0;
+	private float mGoodToBad = 0, mBadToGood = 1, mLossInBad = 1, mLossInGood = 0;
+	private long mDelay = 0, mJitter = 0, mBandwidth = 0, mQueueLimit = 1000;
+	private long mSeed;
+
+	private Random mRandom;
+	private boolean mBad = false;
+	private long mLinkFree = 0, mOrder = 0;
+	private final PriorityQueue<Packet> mQueue = new PriorityQueue<>();
+	private final ArrayDeque<Packet> mFree = new ArrayDeque<>();
+
+	private long mOffered = 0, mLost = 0, mDuplicated = 0, mReordered = 0;
+
+	public NetworkImpairment() {
+		setSeed(System.nanoTime());
+	}
+
+	/** 
+	 * Sets the seed of the random number generator and resets the state of the emulator.
+	 * Two emulators with the same configuration and seed behave exactly the same.
+	 */
+	public NetworkImpairment setSeed(long seed) {
+		mSeed = seed;
+		reset();
+		return this;
+	}
+
+	/** Returns the seed set with {@link #setSeed(long)}. */
+	public long getSeed() {
+		return mSeed;
+	}
+
+	/**
+	 * Loses packets independently from each other.
+	 * @param percent Probability that a packet is lost, in percent
+	 */
+	public NetworkImpairment setLoss(float percent) {
+		mLoss = percent/100;
+		return this;
+	}
+
+	/**
+	 * Loses packets in bursts with the Gilbert-Elliott model. The channel is either in a good or in a bad state, 
+	 * the state may change before each packet.
+	 * @param p Probability to go from the good to the bad state, in percent
+	 * @param r Probability to go from the bad to the good state, in percent
+	 * @param lossInBad Probability that a packet is lost in the bad state, in percent
+	 * @param lossInGood Probability that a packet is lost in the good state, in percent
+	 */
+	public NetworkImpairment setBurstLoss(float p, float r, float lossInBad, float lossInGood) {
+		mGoodToBad = p/100;
+		mBadToGood = r/100;
+		mLossInBad = lossInBad/100;
+		mLossInGood = lossInGood/100;
+		return this;
+	}
+
+	/**
+	 * Delays all the packets.
+	 * @param delay The mean delay in ms
+	 * @param jitter The delay of each packet is picked uniformly between delay-jitter and delay+jitter (ms)
+	 */
+	public NetworkImpairment setDelay(long delay, long jitter) {
+		mDelay = delay;
+		mJitter = jitter;
+		return this;
+	}
+
+	/**
+	 * Reorders packets: the selected packets are not delayed and overtake the packets in flight.
+	 * Only has an effect with a delay.
+	 * @param percent Probability that a packet is reordered, in percent
+	 */
+	public NetworkImpairment setReorder(float percent) {
+		mReorder = percent/100;
+		return this;
+	}
+
+	/**
+	 * Duplicates packets.
+	 * @param percent Probability that a packet is sent twice, in percent
+	 */
+	public NetworkImpairment setDuplicate(float percent) {
+		mDuplicate = percent/100;
+		return this;
+	}
+
+	/**
+	 * Caps the bandwidth of the link. Packets wait for the link to be free, 
+	 * and are dropped when they would wait longer than the queue limit.
+	 * @param bitrate The bandwidth in bit/s, 0 means no limit
+	 * @param queueLimit The maximum time a packet waits for the link in ms
+	 */
+	public NetworkImpairment setBandwidth(long bitrate, long queueLimit) {
+		mBandwidth = bitrate;
+		mQueueLimit = queueLimit;
+		return this;
+	}
+
+	/** Drops the packets in flight, resets the state, the statistics and the random number generator. */
+	public synchronized void reset() {
+		mRandom = new Random(mSeed);
+		mBad = false;
+		mLinkFree = mOrder = 0;
+		mOffered = mLost = mDuplicated = mReordered = 0;
+		Packet packet;
+		while ((packet = mQueue.poll()) != null) mFree.add(packet);
+	}
+
+	/**
+	 * Gives a packet to the emulated network. The content of the packet is copied, from its 
+	 * position to its limit, so that the buffer can be reused right away.
+	 * @param buffer The packet
+	 * @param now The current time in ns
+	 * @return The number of copies of the packet that will come out of the network, 0 if it is lost
+	 */
+	public synchronized int offer(ByteBuffer buffer, long now) {
+		int length = buffer.remaining();
+		mOffered++;
+
+		// Random and burst losses
+		if (mGoodToBad > 0) {
+			if (mBad) {
+				if (mRandom.nextFloat() < mBadToGood) mBad = false;
+			} else {
+				if (mRandom.nextFloat() < mGoodToBad) mBad = true;
+			}
+			if (mRandom.nextFloat() < (mBad ? mLossInBad : mLossInGood)) {
+				mLost++;
+				return 0;
+			}
+		}
+		if (mLoss > 0 && mRandom.nextFloat() < mLoss) {
+			mLost++;
+			return 0;
+		}
+
+		// Time at which the packet leaves the bottleneck
+		long departure = now;
+		if (mBandwidth > 0) {
+			long start = mLinkFree - now > 0 ? mLinkFree : now;
+			if (start - now > mQueueLimit*1000000L) {
+				// Tail drop, the queue of the bottleneck is full
+				mLost++;
+				return 0;
+			}
+			mLinkFree = start + length*8000000000L/mBandwidth;
+			departure = mLinkFree;
+		}
+
+		// Propagation delay and jitter
+		if (mDelay > 0 || mJitter > 0) {
+			if (mReorder > 0 && mRandom.nextFloat() < mReorder) {
+				mReordered++;
+			} else {
+				long delay = mDelay*1000000L;
+				if (mJitter > 0) delay += (long) ((mRandom.nextDouble()*2-1)*mJitter*1000000L);
+				departure += Math.max(0, delay);
+			}
+		}
+
+		int copies = 1;
+		enqueue(buffer, departure);
+		if (mDuplicate > 0 && mRandom.nextFloat() < mDuplicate) {
+			mDuplicated++;
+			copies++;
+			buffer.position(buffer.position()-length);
+			enqueue(buffer, departure);
+		}
+		return copies;
+	}
+
+	private void enqueue(ByteBuffer buffer, long departure) {
+		Packet packet = mFree.poll();
+		if (packet == null) packet = new Packet();
+		if (packet.buffer == null || packet.buffer.capacity() < buffer.remaining()) {
+			packet.buffer = ByteBuffer.allocate(Math.max(MtuProbe.ETHERNET_MTU, buffer.remaining()));
+		}
+		packet.buffer.clear();
+		packet.buffer.put(buffer);
+		packet.buffer.flip();
+		packet.departure = departure;
+		packet.order = mOrder++;
+		mQueue.add(packet);
+	}
+
+	/**
+	 * Returns the time at which the next packet leaves the network.
+	 * @return The time in ns, or -1 if the network is empty
+	 */
+	public synchronized long nextDeparture() {
+		Packet packet = mQueue.peek();
+		return packet != null ? packet.departure : -1;
+	}
+
+	/**
+	 * Sends the packets whose time has come. Stops at the first packet the output 
+	 * can't take, it is sent again by the next call.
+	 * @param now The current time in ns
+	 * @param output Where the packets are sent
+	 * @return The number of packets sent
+	 */
+	public synchronized int flush(long now, Output output) throws IOException {
+		int count = 0;
+		Packet packet;
+		while ((packet = mQueue.peek()) != null && packet.departure - now <= 0) {
+			packet.buffer.rewind();
+			try {
+				if (!output.send(packet.buffer)) break;
+			} catch (IOException e) {
+				// Dropped, it would fail again and again otherwise
+				mFree.add(mQueue.poll());
+				throw e;
+			}
+			mFree.add(mQueue.poll());
+			count++;
+		}
+		return count;
+	}
+
+	/** Returns the number of packets given to {@link #offer(ByteBuffer, long)}. */
+	public synchronized long getOfferedCount() {
+		return mOffered;
+	}
+
+	/** Returns the number of packets lost. */
+	public synchronized long getLostCount() {
+		return mLost;
+	}
+
+	/** Returns the number of packets duplicated. */
+	public synchronized long getDuplicatedCount() {
+		return mDuplicated;
+	}
+
+	/** Returns the number of packets that were not delayed and may have overtaken others. */
+	public synchronized long getReorderedCount() {
+		return mReordered;
+	}
+
+	/** Returns a new emulator with the same configuration and seed, and an empty network. */
+	public NetworkImpairment clone() {
+		return new NetworkImpairment()
+		.setLoss(mLoss*100)
+		.setBurstLoss(mGoodToBad*100, mBadToGood*100, mLossInBad*100, mLossInGood*100)
+		.setDelay(mDelay, mJitter)
+		.setReorder(mReorder*100)
+		.setDuplicate(mDuplicate*100)
+		.setBandwidth(mBandwidth, mQueueLimit)
+		.setSeed(mSeed);
+	}
+
+	/**
+	 * Parses a configuration like "loss:2,delay:50:10,reorder:1,dup:0.5,rate:2000,ge:5:30:100:0,seed:42".
+	 * <ul><li>loss:percent</li>
+	 * <li>ge:p:r[:lossInBad[:lossInGood]] in percent, see {@link #setBurstLoss(float, float, float, float)}</li>
+	 * <li>delay:ms[:jitter]</li>
+	 * <li>reorder:percent</li>
+	 * <li>dup:percent</li>
+	 * <li>rate:kbps[:queue limit in ms]</li>
+	 * <li>seed:number</li></ul>
+	 * @throws IllegalArgumentException The configuration is invalid
+	 */
+	public static NetworkImpairment parse(String config) {
+		NetworkImpairment impairment = new NetworkImpairment();
+		try {
+			for (String option : config.split(",")) {
+				String[] v = option.trim().split(":");
+				String name = v[0].toLowerCase();
+				if (name.equals("loss")) {
+					impairment.setLoss(Float.parseFloat(v[1]));
+				} else if (name.equals("ge")) {
+					impairment.setBurstLoss(Float.parseFloat(v[1]), Float.parseFloat(v[2]), 
+							v.length>3 ? Float.parseFloat(v[3]) : 100, v.length>4 ? Float.parseFloat(v[4]) : 0);
+				} else if (name.equals("delay")) {
+					impairment.setDelay(Long.parseLong(v[1]), v.length>2 ? Long.parseLong(v[2]) : 0);
+				} else if (name.equals("reorder")) {
+					impairment.setReorder(Float.parseFloat(v[1]));
+				} else if (name.equals("dup")) {
+					impairment.setDuplicate(Float.parseFloat(v[1]));
+				} else if (name.equals("rate")) {
+					impairment.setBandwidth(Long.parseLong(v[1])*1000, v.length>2 ? Long.parseLong(v[2]) : 1000);
+				} else if (name.equals("seed")) {
+					impairment.setSeed(Long.parseLong(v[1]));
+				} else {
+					throw new IllegalArgumentException("Unknown impairment: "+name);
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Invalid impairment: "+config);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid impairment: "+config);
+		}
+		return impairment;
+	}
+
+}
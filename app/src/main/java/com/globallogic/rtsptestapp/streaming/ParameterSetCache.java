@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps the SPS and the PPS of an H.264 stream as the live encoder produces them.
+ * 
+ * It can be seeded with the parameter sets found by the {@link EncoderDebugger}, then it is fed 
+ * with the codec config buffers of the encoder and with the SPS and PPS found in the stream. 
+ * Every time one of them changes, for instance when the encoder is reconfigured, the version 
+ * is incremented and the {@link Listener} is notified so that the session description can be 
+ * updated. The packetizer uses {@link #getStapA()} to send them in-band before IDRs.<br />
+ *
+ * By default, the SPS handed out is rewritten by the {@link SpsRewriter} so that receivers 
+ * don't buffer frames before displaying them. It is rewritten once for each version.
+ */
+public class ParameterSetCache {
+
+	public final static String TAG = "ParameterSetCache";
+
+	public final static int NAL_SPS = 7;
+	public final static int NAL_PPS = 8;
+
+	/** Called from the thread of the packetizer when the parameter sets change. */
+	public interface Listener {
+		void onParameterSetsChanged(ParameterSetCache cache);
+	}
+
+	private Listener mListener;
+	private byte[] mSps, mPps, mStapA, mRewrittenSps;
+	private boolean mRewriting = true;
+	private int mVersion = 0;
+	private final NalUnitScanner mScanner = new NalUnitScanner();
+
+	public ParameterSetCache() {}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** 
+	 * Enables or disables the rewriting of the VUI of the SPS, see {@link SpsRewriter}. 
+	 * The parameter sets produced by the encoder are sent as they are when disabled.
+	 */
+	public synchronized void setVuiRewriting(boolean enabled) {
+		mRewriting = enabled;
+		mRewrittenSps = null;
+		mStapA = null;
+	}
+
+	public synchronized boolean isVuiRewriting() {
+		return mRewriting;
+	}
+
+	/**
+	 * Sets both parameter sets, the version is only incremented if one of them changes.
+	 * @param sps The SPS, its NAL header included, or null if unknown
+	 * @param pps The PPS, its NAL header included, or null if unknown
+	 */
+	public void update(byte[] sps, byte[] pps) {
+		boolean changed;
+		synchronized (this) {
+			changed = set(sps, NAL_SPS) | set(pps, NAL_PPS);
+		}
+		if (changed) notifyChange();
+	}
+
+	/** 
+	 * Reads the parameter sets in a buffer of the encoder flagged with BUFFER_FLAG_CODEC_CONFIG, 
+	 * or in the csd-0 and csd-1 buffers of its output format. The buffer is not modified. 
+	 */
+	public void onCodecConfig(ByteBuffer buffer) {
+		if (buffer == null) return;
+		ByteBuffer data = buffer.duplicate();
+		boolean more = mScanner.reset(data).next();
+		while (more) {
+			int start = mScanner.start(), end = mScanner.end();
+			onNalUnit(data, start, end);
+			more = mScanner.next();
+		}
+	}
+
+	/**
+	 * Called for every NAL unit of the stream, SPS and PPS are compared with the cached ones.
+	 * @return True if the NAL unit is an SPS or a PPS
+	 */
+	public boolean onNalUnit(ByteBuffer buffer, int start, int end) {
+		int type = buffer.get(start)&0x1F;
+		if (type != NAL_SPS && type != NAL_PPS) return false;
+		boolean changed;
+		synchronized (this) {
+			byte[] current = type == NAL_SPS ? mSps : mPps;
+			// Nothing is allocated when the encoder repeats the same parameter set
+			if (current != null && current.length == end-start && equals(buffer, start, current)) return true;
+			byte[] nal = new byte[end-start];
+			for (int i=0; i<nal.length; i++) nal[i] = buffer.get(start+i);
+			changed = set(nal, type);
+		}
+		if (changed) notifyChange();
+		return true;
+	}
+
+	/** Returns true once both the SPS and the PPS are known. */
+	public synchronized boolean isComplete() {
+		return mSps != null && mPps != null;
+	}
+
+	/** Incremented every time the SPS or the PPS changes. */
+	public synchronized int getVersion() {
+		return mVersion;
+	}
+
+	/** Returns the SPS that should be sent to the receivers, rewritten if needed. */
+	public synchronized byte[] getSps() {
+		if (mSps == null || !mRewriting) return mSps;
+		if (mRewrittenSps == null) mRewrittenSps = SpsRewriter.rewrite(mSps);
+		return mRewrittenSps;
+	}
+
+	/** Returns the SPS as the encoder produced it. */
+	public synchronized byte[] getEncoderSps() {
+		return mSps;
+	}
+
+	public synchronized byte[] getPps() {
+		return mPps;
+	}
+
+	public synchronized String getB64SPS() {
+		byte[] sps = getSps();
+		return sps != null ? Base64.encodeToString(sps, Base64.NO_WRAP) : null;
+	}
+
+	public synchronized String getB64PPS() {
+		return mPps != null ? Base64.encodeToString(mPps, Base64.NO_WRAP) : null;
+	}
+
+	/** Returns the profile-level-id of the SDP (RFC 6184), the 3 bytes following the NAL header of the SPS. */
+	public synchronized String getProfileLevel() {
+		return mSps != null && mSps.length >= 4 ? MP4Parser.toHexString(mSps, 1, 3) : null;
+	}
+
+	/** 
+	 * Returns the payload of a STAP-A (NAL type 24) containing the SPS and the PPS, 
+	 * or null if one of them is unknown. It is only rebuilt when they change. 
+	 */
+	public synchronized byte[] getStapA() {
+		if (mStapA == null && mSps != null && mPps != null) {
+			byte[] sps = getSps();
+			// STAP-A NAL header + NALU 1 (SPS) size + NALU 2 (PPS) size = 5 bytes
+			byte[] stapa = new byte[sps.length + mPps.length + 5];
+			// The NRI of the STAP-A is the highest NRI of the NAL units it contains
+			stapa[0] = (byte) (Math.max(sps[0]&0x60, mPps[0]&0x60) + 24);
+			stapa[1] = (byte) (sps.length >> 8);
+			stapa[2] = (byte) (sps.length & 0xFF);
+			System.arraycopy(sps, 0, stapa, 3, sps.length);
+			stapa[sps.length + 3] = (byte) (mPps.length >> 8);
+			stapa[sps.length + 4] = (byte) (mPps.length & 0xFF);
+			System.arraycopy(mPps, 0, stapa, 5 + sps.length, mPps.length);
+			mStapA = stapa;
+		}
+		return mStapA;
+	}
+
+	private boolean set(byte[] nal, int type) {
+		if (nal == null) return false;
+		byte[] current = type == NAL_SPS ? mSps : mPps;
+		if (Arrays.equals(current, nal)) return false;
+		if (type == NAL_SPS) mSps = nal; else mPps = nal;
+		mStapA = null;
+		mRewrittenSps = null;
+		mVersion++;
+		return true;
+	}
+
+	private void notifyChange() {
+		Log.d(TAG, "Parameter sets changed, version "+getVersion());
+		if (mListener != null) mListener.onParameterSetsChanged(this);
+	}
+
+	private static boolean equals(ByteBuffer buffer, int start, byte[] nal) {
+		for (int i=0; i<nal.length; i++) {
+			if (buffer.get(start+i) != nal[i]) return false;
+		}
+		return true;
+	}
+
+}
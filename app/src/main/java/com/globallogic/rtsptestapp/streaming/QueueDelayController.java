@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+/**
+ * Sender side bitrate adaptation that does not rely on any feedback from the receiver.
+ * The {@link RtpSocket} reports how long each packet waited in its FIFO and how full
+ * the FIFO is. When our own uplink or the socket buffer becomes the bottleneck, the
+ * delay grows and the target bitrate is lowered. Once the queue drains, the bitrate
+ * is slowly restored up to the bitrate that was originally requested.
+ */
+public class QueueDelayController {
+
+	public final static String TAG = "QueueDelayController";
+
+	/** Length of the window over which queue delay and occupancy are observed, in ms. */
+	private final static long WINDOW = 250;
+
+	/** Time during which the bitrate will not be increased after a decrease, in ms. */
+	private final static long HOLD = 1000;
+
+	/** The bitrate will never be lowered under this value (bit/s). */
+	private final static int MIN_BITRATE = 100000;
+
+	/** Called from the sending thread of the {@link RtpSocket} when the target bitrate changes. */
+	public interface Listener {
+		void onTargetBitrateChanged(int bitrate);
+	}
+
+	private Listener mListener;
+	private boolean mEnabled = true;
+	private int mMaxBitrate = 0, mBitrate = 0;
+	private long mHighDelay = 80, mLowDelay = 20;
+	private float mHighOccupancy = 0.5f;
+	private long mWindowStart = 0, mHoldUntil = 0;
+	private long mMaxDelay = 0;
+	private float mMaxOccupancy = 0;
+
+	public QueueDelayController() {}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	/**
+	 * Sets the bitrate requested for the stream, the controller never goes above it.
+	 * @param bitrate The bitrate in bit/s
+	 */
+	public synchronized void setMaxBitrate(int bitrate) {
+		mMaxBitrate = bitrate;
+		mBitrate = bitrate;
+		reset();
+	}
+
+	/**
+	 * Sets the queue delays that trigger a decrease and allow an increase of the bitrate.
+	 * @param high Above that delay (ms) the bitrate is decreased
+	 * @param low Under that delay (ms) the bitrate may be increased
+	 */
+	public void setDelayThresholds(long high, long low) {
+		mHighDelay = high;
+		mLowDelay = low;
+	}
+
+	/** Returns the current target bitrate in bit/s. */
+	public synchronized int getBitrate() {
+		return mBitrate;
+	}
+
+	public synchronized void reset() {
+		mWindowStart = 0;
+		mHoldUntil = 0;
+		mMaxDelay = 0;
+		mMaxOccupancy = 0;
+	}
+
+	/**
+	 * Called by the {@link RtpSocket} every time a packet leaves the FIFO.
+	 * @param delay How long the packet stayed in the FIFO in ns
+	 * @param occupancy Proportion of the FIFO currently in use, between 0 and 1
+	 */
+	public void push(long delay, float occupancy) {
+		int bitrate;
+		synchronized (this) {
+			if (!mEnabled || mMaxBitrate<=0) return;
+
+			long now = System.nanoTime()/1000000;
+			if (mWindowStart == 0) mWindowStart = now;
+			if (delay/1000000 > mMaxDelay) mMaxDelay = delay/1000000;
+			if (occupancy > mMaxOccupancy) mMaxOccupancy = occupancy;
+			if (now - mWindowStart < WINDOW) return;
+
+			bitrate = mBitrate;
+			if (mMaxDelay > mHighDelay || mMaxOccupancy > mHighOccupancy) {
+				// Our own uplink can't keep up, we back off quickly
+				bitrate = Math.max(Math.min(MIN_BITRATE, mMaxBitrate), (int) (mBitrate*0.75f));
+				mHoldUntil = now + HOLD;
+			} else if (mMaxDelay < mLowDelay && now > mHoldUntil) {
+				// The queue is empty, we probe for more bandwidth slowly
+				bitrate = Math.min(mMaxBitrate, mBitrate + mMaxBitrate/20);
+			}
+
+			mWindowStart = now;
+			mMaxDelay = 0;
+			mMaxOccupancy = 0;
+
+			if (bitrate == mBitrate) return;
+			mBitrate = bitrate;
+		}
+
+		Log.d(TAG,"Target bitrate: "+bitrate/1000+" kbps");
+		if (mListener != null) mListener.onTargetBitrateChanged(bitrate);
+	}
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single threaded event loop that owns RTP and RTCP channels.
+ * Packets are sent, RTCP is received, and pacing and RTCP timers fire on this thread,
+ * so that many {@link RtpSocket} can share a small and fixed number of threads.
+ * Use {@link RtpEventLoopGroup} to get one.
+ */
+public class RtpEventLoop extends Thread {
+
+	public final static String TAG = "RtpEventLoop";
+
+	/** Called on the loop when a registered channel can be read. */
+	public interface ReadHandler {
+		void onReadable(SelectableChannel channel) throws IOException;
+	}
+
+	/** Called on the loop when a channel can be written again, see {@link #awaitWritable(SelectableChannel, WriteHandler)}. */
+	public interface WriteHandler {
+		void onWritable(SelectableChannel channel) throws IOException;
+	}
+
+	/** The handlers of a channel, a channel can only be registered once with the selector. */
+	private static class Handlers {
+		ReadHandler read;
+		WriteHandler write;
+	}
+
+	/** A task that will be run on the loop after some delay, see {@link #schedule(Runnable, long)}. */
+	public static class Timer implements Comparable<Timer> {
+
+		private final Runnable mTask;
+		private final long mDeadline;
+		private final long mOrder;
+		private volatile boolean mCancelled = false;
+
+		private Timer(Runnable task, long deadline, long order) {
+			mTask = task;
+			mDeadline = deadline;
+			mOrder = order;
+		}
+
+		/** The task won't be run if it has not been run yet. */
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			if (mDeadline != other.mDeadline) return mDeadline - other.mDeadline < 0 ? -1 : 1;
+			return mOrder < other.mOrder ? -1 : (mOrder == other.mOrder ? 0 : 1);
+		}
+
+	}
+
+	private final Selector mSelector;
+	private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+	private final PriorityQueue<Timer> mTimers = new PriorityQueue<>();
+	private final AtomicLong mTimerCount = new AtomicLong();
+	private volatile boolean mRunning = true;
+
+	RtpEventLoop(String name) throws IOException {
+		super(name);
+		mSelector = Selector.open();
+		setDaemon(true);
+	}
+
+	/** Indicates if the caller is running on this loop. */
+	public boolean inLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/** Runs the task on the loop as soon as possible. Can be called from any thread. */
+	public void execute(Runnable task) {
+		mTasks.add(task);
+		if (!inLoop()) mSelector.wakeup();
+	}
+
+	/**
+	 * Runs the task on the loop once the delay has elapsed. Can be called from any thread.
+	 * @param task The task
+	 * @param delay The delay in ms
+	 * @return A handle that can be used to cancel the task
+	 */
+	public Timer schedule(Runnable task, long delay) {
+		return scheduleNanos(task, delay*1000000L);
+	}
+
+	/**
+	 * Same as {@link #schedule(Runnable, long)} but with a delay in ns.
+	 */
+	public Timer scheduleNanos(Runnable task, long delay) {
+		// The sequence number keeps FIFO order between timers with the same deadline
+		final Timer timer = new Timer(task, System.nanoTime()+delay, mTimerCount.getAndIncrement());
+		if (inLoop()) {
+			addTimer(timer);
+		} else {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					addTimer(timer);
+				}
+			});
+		}
+		return timer;
+	}
+
+	/**
+	 * Registers a channel so that the handler is called on the loop when some data can be read from it.
+	 * The channel is switched to the non blocking mode. Can be called from any thread.
+	 */
+	public void register(final SelectableChannel channel, final ReadHandler handler) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handlersOf(channel, SelectionKey.OP_READ).read = handler;
+				} catch (ClosedChannelException ignore) {
+				} catch (IOException e) {
+					Log.e(TAG, "Could not register channel: "+e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Calls the handler once on the loop when the channel can be written, after a write 
+	 * failed because the socket buffer was full. The handler must call this method again 
+	 * if the channel gets full again. Must be called on the loop.
+	 */
+	public void awaitWritable(SelectableChannel channel, WriteHandler handler) throws IOException {
+		handlersOf(channel, SelectionKey.OP_WRITE).write = handler;
+	}
+
+	/** Registers the channel if needed and adds the interest to the ones it already has. */
+	private Handlers handlersOf(SelectableChannel channel, int interest) throws IOException {
+		SelectionKey key = channel.keyFor(mSelector);
+		if (key == null || !key.isValid()) {
+			channel.configureBlocking(false);
+			return (Handlers) channel.register(mSelector, interest, new Handlers()).attachment();
+		}
+		key.interestOps(key.interestOps() | interest);
+		return (Handlers) key.attachment();
+	}
+
+	/** Stops the loop, the channels are not closed. */
+	public void shutdown() {
+		mRunning = false;
+		mSelector.wakeup();
+	}
+
+	private void addTimer(Timer timer) {
+		if (!timer.mCancelled) mTimers.add(timer);
+	}
+
+	@Override
+	public void run() {
+		Log.d(TAG, getName()+" started");
+		while (mRunning) {
+			try {
+				long timeout = 0;
+				Timer next = mTimers.peek();
+				if (next != null) {
+					// Rounded up, so that we don't spin during the last millisecond
+					timeout = (next.mDeadline - System.nanoTime() + 999999)/1000000;
+				}
+				if (!mTasks.isEmpty() || (next != null && timeout <= 0)) {
+					mSelector.selectNow();
+				} else {
+					mSelector.select(timeout);
+				}
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					Handlers handlers = (Handlers) key.attachment();
+					try {
+						if (key.isWritable()) {
+							// The interest is one shot, the handler asks again if the buffer gets full again
+							key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+							WriteHandler handler = handlers.write;
+							handlers.write = null;
+							if (handler != null) handler.onWritable(key.channel());
+						}
+						if (key.isValid() && key.isReadable() && handlers.read != null) {
+							handlers.read.onReadable(key.channel());
+						}
+					} catch (IOException e) {
+						key.cancel();
+					}
+				}
+
+				Runnable task;
+				while ((task = mTasks.poll()) != null) {
+					task.run();
+				}
+
+				long now = System.nanoTime();
+				while ((next = mTimers.peek()) != null && next.mDeadline - now <= 0) {
+					mTimers.poll();
+					if (!next.mCancelled) next.mTask.run();
+				}
+			} catch (Exception e) {
+				// A failing task must never kill a loop that other sessions depend on
+				Log.e(TAG, "Error in "+getName(), e);
+			}
+		}
+		try {
+			mSelector.close();
+		} catch (IOException ignore) {}
+		Log.d(TAG, getName()+" stopped");
+	}
+
+}
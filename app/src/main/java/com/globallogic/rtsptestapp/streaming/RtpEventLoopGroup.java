@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import java.io.IOException;
+
+/**
+ * A fixed pool of {@link RtpEventLoop}, one per core.
+ * Call {@link #getInstance()} to get access to it, and {@link #next()} to shard
+ * sessions across the loops.
+ */
+public class RtpEventLoopGroup {
+
+	public final static String TAG = "RtpEventLoopGroup";
+
+	private final RtpEventLoop[] mLoops;
+	private int mNext = 0;
+
+	// The RtpEventLoopGroup implements the singleton pattern
+	private static volatile RtpEventLoopGroup sInstance = null;
+
+	private RtpEventLoopGroup(int count) {
+		mLoops = new RtpEventLoop[count];
+		for (int i=0;i<count;i++) {
+			try {
+				mLoops[i] = new RtpEventLoop("RtpEventLoop-"+i);
+			} catch (IOException e) {
+				// Means that no selector can be opened at all
+				throw new RuntimeException(e.getMessage());
+			}
+			mLoops[i].start();
+		}
+	}
+
+	/**
+	 * Returns a reference to the {@link RtpEventLoopGroup}.
+	 * @return The reference to the {@link RtpEventLoopGroup}
+	 */
+	public static RtpEventLoopGroup getInstance() {
+		if (sInstance == null) {
+			synchronized (RtpEventLoopGroup.class) {
+				if (sInstance == null) {
+					sInstance = new RtpEventLoopGroup(Runtime.getRuntime().availableProcessors());
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	/** Returns the loops of the group one after the other. */
+	public synchronized RtpEventLoop next() {
+		RtpEventLoop loop = mLoops[mNext];
+		mNext = (mNext+1) % mLoops.length;
+		return loop;
+	}
+
+	/** Returns the number of loops in the group. */
+	public int size() {
+		return mLoops.length;
+	}
+
+}
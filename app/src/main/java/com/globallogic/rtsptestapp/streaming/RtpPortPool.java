@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of UDP channels bound to consecutive even/odd ports, the even one is used for RTP
+ * and the odd one for RTCP. Pairs are bound in advance, so that a SETUP request never waits
+ * for a socket to be created, and firewall rules only have to cover a known range of ports.<br />
+ *
+ * Call {@link #getInstance()} to get access to the RtpPortPool.
+ */
+public class RtpPortPool {
+
+	public final static String TAG = "RtpPortPool";
+
+	/** First port of the range used by the pool. */
+	public final static int MIN_PORT = 50000;
+
+	/** Last port of the range used by the pool. */
+	public final static int MAX_PORT = 59999;
+
+	/** Number of pairs kept bound in advance. */
+	private final static int SIZE = 8;
+
+	/** A RTP channel and its RTCP channel. */
+	public static class PortPair {
+
+		/** Bound to an even port. */
+		public final DatagramChannel rtp;
+
+		/** Bound to the next odd port, null once {@link #closeRtcp()} has been called. */
+		public DatagramChannel rtcp;
+
+		private PortPair(DatagramChannel rtp, DatagramChannel rtcp) {
+			this.rtp = rtp;
+			this.rtcp = rtcp;
+		}
+
+		/** Releases the RTCP port when RTCP is multiplexed with RTP. */
+		public void closeRtcp() {
+			if (rtcp != null) {
+				try {
+					rtcp.close();
+				} catch (IOException ignore) {}
+				rtcp = null;
+			}
+		}
+
+		private void close() {
+			try {
+				rtp.close();
+			} catch (IOException ignore) {}
+			closeRtcp();
+		}
+
+	}
+
+	private final ArrayDeque<PortPair> mPairs = new ArrayDeque<>();
+	private int mNextPort = MIN_PORT;
+	private boolean mRefilling = false;
+
+	// The RtpPortPool implements the singleton pattern
+	private static volatile RtpPortPool sInstance = null;
+
+	private RtpPortPool() {}
+
+	/**
+	 * Returns a reference to the {@link RtpPortPool}.
+	 * The first call binds the pairs of the pool in the background.
+	 * @return The reference to the {@link RtpPortPool}
+	 */
+	public static RtpPortPool getInstance() {
+		if (sInstance == null) {
+			synchronized (RtpPortPool.class) {
+				if (sInstance == null) {
+					sInstance = new RtpPortPool();
+					sInstance.refill();
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Returns a pair of bound channels. If the pool is empty, a pair is bound right away.
+	 * @throws IOException No port is available in the range
+	 */
+	public PortPair acquire() throws IOException {
+		PortPair pair;
+		synchronized (this) {
+			pair = mPairs.poll();
+		}
+		if (pair == null) {
+			Log.w(TAG, "The pool is empty !");
+			pair = bind();
+		}
+		refill();
+		return pair;
+	}
+
+	/** Closes the channels of the pair, a new pair will be bound in the background. */
+	public void release(PortPair pair) {
+		if (pair != null) pair.close();
+		refill();
+	}
+
+	/** Binds new pairs until the pool is full again, without blocking the caller. */
+	private void refill() {
+		synchronized (this) {
+			if (mRefilling || mPairs.size() >= SIZE) return;
+			mRefilling = true;
+		}
+		RtpEventLoopGroup.getInstance().next().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						synchronized (RtpPortPool.this) {
+							if (mPairs.size() >= SIZE) break;
+						}
+						PortPair pair = bind();
+						synchronized (RtpPortPool.this) {
+							mPairs.add(pair);
+						}
+					}
+				} catch (IOException e) {
+					Log.e(TAG, e.getMessage());
+				} finally {
+					synchronized (RtpPortPool.this) {
+						mRefilling = false;
+					}
+				}
+			}
+		});
+	}
+
+	/** Binds the next free even/odd pair of ports of the range. */
+	private PortPair bind() throws IOException {
+		int tries = (MAX_PORT - MIN_PORT)/2;
+		while (tries-- > 0) {
+			int port;
+			synchronized (this) {
+				port = mNextPort;
+				mNextPort += 2;
+				if (mNextPort+1 > MAX_PORT) mNextPort = MIN_PORT;
+			}
+			DatagramChannel rtp = null, rtcp = null;
+			try {
+				rtp = open(port);
+				rtcp = open(port+1);
+				return new PortPair(rtp, rtcp);
+			} catch (IOException e) {
+				// Port already in use, we try the next pair
+				if (rtp != null) rtp.close();
+				if (rtcp != null) rtcp.close();
+			}
+		}
+		throw new IOException("No pair of ports available between "+MIN_PORT+" and "+MAX_PORT);
+	}
+
+	private static DatagramChannel open(int port) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+}
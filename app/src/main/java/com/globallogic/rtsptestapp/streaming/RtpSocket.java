@@ -23,19 +23,27 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A basic implementation of an RTP socket.
- * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
+ * It implements a buffering mechanism, relying on a FIFO of buffers.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * Packets are sent from an {@link RtpEventLoop} shared with other sockets, 
+ * no thread is created for each socket.
  */
-public class RtpSocket implements Runnable {
+public class RtpSocket {
 
 	public static final String TAG = "RtpSocket";
 
@@ -46,51 +54,81 @@ public class RtpSocket implements Runnable {
 	public final static int TRANSPORT_TCP = 0x01;	
 	
 	public static final int RTP_HEADER_LENGTH = 12;
+	
+	/** Default MTU, small enough for most networks. */
 	public static final int MTU = 1300;
 
-	private MulticastSocket mSocket;
-	private DatagramPacket[] mPackets;
+	/** Biggest MTU that can be used, for LANs with jumbo frames. */
+	public static final int MAX_MTU = 9000;
+
+	private RtpPortPool.PortPair mPorts;
+	private DatagramChannel mChannel;
+	private boolean mRtcpMux = false, mClosed = false;
+	private int mTTL = 64;
+	private int mMtu = MTU;
+	private InetSocketAddress mDestination;
+	private ByteBuffer[] mPackets;
 	private byte[][] mBuffers;
 	private long[] mTimestamps;
+	private long[] mRtpTimestamps;
+	private long[] mQueuedAt;
+	private boolean[] mKeyFrames;
+	private boolean[] mReady;
 
 	private SenderReport mReport;
 	
 	private Semaphore mBufferRequested, mBufferCommitted;
-	private Thread mThread;
+	private RtpEventLoop mLoop;
+	private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+	private Statistics mStats;
+	private boolean mStarted = false, mPaced = false, mReserved = false;
+	private boolean mBlocked = false, mImpairmentBlocked = false;
 
 	private int mTransport;
 	private long mCacheSize;
 	private long mClock = 0;
+	private long mTimestampOffset;
 	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
-	private int mBufferCount, mBufferIn, mBufferOut;
+	private int mBufferCount, mBufferIn, mBufferOut, mCommitIn;
+	private final Object mCommitLock = new Object();
 	private int mCount = 0;
 	private byte mTcpHeader[];
 	protected OutputStream mOutputStream = null;
 	
 	private AverageBitrate mAverageBitrate;
+	private QueueDelayController mDelayController;
+	private BandwidthShaper.Flow mFlow;
+	private NetworkImpairment mImpairment;
+	private RtpEventLoop.Timer mImpairmentTimer;
+	private long mImpairmentDeadline;
+	private KeyFrameRequester mKeyFrameRequester;
+	private ByteBuffer mRtcpBuffer;
 
 	/**
-	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
-	 * @throws IOException
+	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers.
+	 * By default it is attached to one of the loops of the {@link RtpEventLoopGroup}.
 	 */
 	public RtpSocket() {
 		
 		mCacheSize = 0;
 		mBufferCount = 300; // TODO: readjust that when the FIFO is full 
 		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
+		mPackets = new ByteBuffer[mBufferCount];
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
+		mDelayController = new QueueDelayController();
 		mTransport = TRANSPORT_UDP;
 		mTcpHeader = new byte[] {'$',0,0,0};
+		// The initial value of the timestamp is random (RFC 3550, section 5.1)
+		mTimestampOffset = new Random().nextInt() & 0xFFFFFFFFL;
 		
 		resetFifo();
 
 		for (int i=0; i<mBufferCount; i++) {
 
 			mBuffers[i] = new byte[MTU];
-			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
+			mPackets[i] = ByteBuffer.wrap(mBuffers[i], 0, 1);
 
 			/*							     Version(2)  Padding(0)					 					*/
 			/*									 ^		  ^			Extension(0)						*/
@@ -110,11 +148,7 @@ public class RtpSocket implements Runnable {
 
 		}
 
-		try {
-		mSocket = new MulticastSocket();
-		} catch (Exception e) {
-			throw new RuntimeException(e.getMessage());
-		}
+		setEventLoop(RtpEventLoopGroup.getInstance().next());
 		
 	}
 
@@ -122,16 +156,191 @@ public class RtpSocket implements Runnable {
 		mCount = 0;
 		mBufferIn = 0;
 		mBufferOut = 0;
+		mCommitIn = 0;
+		mOldTimestamp = 0;
+		mStarted = false;
+		mPaced = false;
+		mReserved = false;
+		mBlocked = false;
+		mScheduled.set(false);
 		mTimestamps = new long[mBufferCount];
+		mRtpTimestamps = new long[mBufferCount];
+		mQueuedAt = new long[mBufferCount];
+		mKeyFrames = new boolean[mBufferCount];
+		mReady = new boolean[mBufferCount];
 		mBufferRequested = new Semaphore(mBufferCount);
 		mBufferCommitted = new Semaphore(0);
+		mStats = new Statistics(50,3000);
 		mReport.reset();
 		mAverageBitrate.reset();
+		mDelayController.reset();
+		if (mImpairmentTimer != null) mImpairmentTimer.cancel();
+		mImpairmentTimer = null;
+		if (mImpairment != null) mImpairment.reset();
+	}
+
+	/**
+	 * Drops the packets left in the FIFO and resets the pacing, so that the stream starts 
+	 * again like the first time, with the warm up and the cache. 
+	 * Must be called once the packetizer has stopped, returns once the loop has done it.
+	 */
+	public void reset() {
+		if (mLoop.inLoop()) {
+			resetFifo();
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		mLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				resetFifo();
+				done.countDown();
+			}
+		});
+		try {
+			done.await(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 	
-	/** Closes the underlying socket. */
+	/** 
+	 * Takes a pair of ports from the {@link RtpPortPool}, this is done the first time 
+	 * the ports are needed and not when the socket is created. 
+	 **/
+	private synchronized void open() throws IOException {
+		if (mChannel != null) return;
+		mPorts = RtpPortPool.getInstance().acquire();
+		mChannel = mPorts.rtp;
+		if (mRtcpMux) {
+			// RFC 5761, RTCP packets are sent with the RTP socket
+			mPorts.closeRtcp();
+			mReport.setChannel(mChannel);
+		} else {
+			mReport.setChannel(mPorts.rtcp);
+		}
+		mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, mTTL);
+		mReport.setTimeToLive(mTTL);
+		// Receivers send their RTCP feedback to the port we send our reports from
+		mLoop.register(mRtcpMux ? mChannel : mPorts.rtcp, mRtcpReader);
+	}
+
+	private final RtpEventLoop.ReadHandler mRtcpReader = new RtpEventLoop.ReadHandler() {
+		@Override
+		public void onReadable(SelectableChannel channel) throws IOException {
+			if (mRtcpBuffer == null) mRtcpBuffer = ByteBuffer.allocate(SenderReport.MTU);
+			while (true) {
+				mRtcpBuffer.clear();
+				if (((DatagramChannel) channel).receive(mRtcpBuffer) == null) return;
+				byte[] packet = mRtcpBuffer.array();
+				// With RTCP multiplexing, RTCP packet types are in the 192-223 range (RFC 5761, section 4)
+				int pt = packet[1] & 0xFF;
+				if (mRtcpBuffer.position() >= 4 && pt >= 192 && pt <= 223) {
+					receiveRtcp(packet, 0, mRtcpBuffer.position());
+				}
+			}
+		}
+	};
+
+	/**
+	 * Handles an RTCP packet sent by the receiver, key frame requests are passed to 
+	 * the {@link KeyFrameRequester}. Packets received on the RTCP port are handled 
+	 * automatically, with TCP the RTSP server passes the interleaved packets here.
+	 */
+	public void receiveRtcp(byte[] buffer, int offset, int length) {
+		if (mKeyFrameRequester != null) mKeyFrameRequester.onRtcp(buffer, offset, length, mSsrc);
+	}
+
+	/** Gives the ports back to the {@link RtpPortPool}. */
 	public void close() {
-		mSocket.close();
+		mLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (RtpSocket.this) {
+					mClosed = true;
+					mReport.close();
+					RtpPortPool.getInstance().release(mPorts);
+					mPorts = null;
+					mChannel = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Enables RTP and RTCP multiplexing on a single port (RFC 5761).
+	 * Must be called before {@link #getLocalPorts()}.
+	 */
+	public void setRtcpMux(boolean mux) {
+		mRtcpMux = mux;
+	}
+
+	public boolean isRtcpMux() {
+		return mRtcpMux;
+	}
+
+	/** 
+	 * Sets the {@link RtpEventLoop} that will send the packets and the RTCP reports.
+	 * All the sockets of a session should use the same loop.
+	 * Must not be called while streaming.
+	 */
+	public void setEventLoop(RtpEventLoop loop) {
+		mLoop = loop;
+		mReport.setEventLoop(loop);
+		if (mKeyFrameRequester != null) mKeyFrameRequester.setEventLoop(loop);
+	}
+
+	/** 
+	 * Sets the {@link KeyFrameRequester} notified of the key frames sent and of 
+	 * the PLI and FIR messages received. 
+	 */
+	public void setKeyFrameRequester(KeyFrameRequester requester) {
+		mKeyFrameRequester = requester;
+		requester.setEventLoop(mLoop);
+	}
+
+	/** 
+	 * Sets the flow of the {@link BandwidthShaper} the packets belong to.
+	 * When set, every packet waits until the shaper allows it to be sent.
+	 */
+	public void setFlow(BandwidthShaper.Flow flow) {
+		mFlow = flow;
+	}
+
+	/** Returns the {@link RtpEventLoop} used by this socket. */
+	public RtpEventLoop getEventLoop() {
+		return mLoop;
+	}
+
+	/**
+	 * Sets the MTU of the path, the buffers of the FIFO are resized accordingly.
+	 * Must not be called while streaming.
+	 * @param mtu The MTU in bytes, IP and UDP headers included
+	 */
+	public void setMtu(int mtu) {
+		if (mtu == mMtu) return;
+		mMtu = mtu;
+		for (int i=0; i<mBufferCount; i++) {
+			byte[] buffer = new byte[mtu];
+			// The header already contains the version, the payload type and the SSRC
+			System.arraycopy(mBuffers[i], 0, buffer, 0, RTP_HEADER_LENGTH);
+			mBuffers[i] = buffer;
+			mPackets[i] = ByteBuffer.wrap(buffer, 0, 1);
+		}
+	}
+
+	/** Returns the MTU set with {@link #setMtu(int)}. */
+	public int getMtu() {
+		return mMtu;
+	}
+
+	/**
+	 * Sends the packets through a {@link NetworkImpairment} instead of sending them directly, 
+	 * only works with UDP. Must be called before streaming starts.
+	 * @param impairment The emulated network, or null to disable it
+	 */
+	public void setNetworkImpairment(NetworkImpairment impairment) {
+		mImpairment = impairment;
 	}
 
 	/** Sets the SSRC of the stream. */
@@ -151,6 +360,12 @@ public class RtpSocket implements Runnable {
 	/** Sets the clock frequency of the stream in Hz. */
 	public void setClockFrequency(long clock) {
 		mClock = clock;
+		mReport.setClockFrequency(clock);
+	}
+
+	/** See {@link SenderReport#setClockOffset(long)}. */
+	public void setClockOffset(long offset) {
+		mReport.setClockOffset(offset);
 	}
 
 	/** Sets the size of the FIFO in ms. */
@@ -159,8 +374,11 @@ public class RtpSocket implements Runnable {
 	}
 	
 	/** Sets the Time To Live of the UDP packets. */
-	public void setTimeToLive(int ttl) throws IOException {
-		mSocket.setTimeToLive(ttl);
+	public synchronized void setTimeToLive(int ttl) throws IOException {
+		mTTL = ttl;
+		open();
+		mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+		mReport.setTimeToLive(ttl);
 	}
 
 	/** Sets the destination address and to which the packets will be sent. */
@@ -168,11 +386,8 @@ public class RtpSocket implements Runnable {
 		if (dport != 0 && rtcpPort != 0) {
 			mTransport = TRANSPORT_UDP;
 			mPort = dport;
-			for (int i=0;i<mBufferCount;i++) {
-				mPackets[i].setPort(dport);
-				mPackets[i].setAddress(dest);
-			}
-			mReport.setDestination(dest, rtcpPort);
+			mDestination = new InetSocketAddress(dest, dport);
+			mReport.setDestination(dest, mRtcpMux ? dport : rtcpPort);
 		}
 	}
 	
@@ -194,9 +409,14 @@ public class RtpSocket implements Runnable {
 		return mPort;
 	}
 
-	public int[] getLocalPorts() {
+	public synchronized int[] getLocalPorts() {
+		try {
+			open();
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
 		return new int[] {
-			mSocket.getLocalPort(),
+			mChannel.socket().getLocalPort(),
 			mReport.getLocalPort()
 		};
 		
@@ -209,38 +429,109 @@ public class RtpSocket implements Runnable {
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
 		mBufferRequested.acquire();
+		mBuffers[mBufferIn][0] &= 0xEF;
 		mBuffers[mBufferIn][1] &= 0x7F;
+		mKeyFrames[mBufferIn] = false;
 		return mBuffers[mBufferIn];
 	}
 
 	/** Puts the buffer back into the FIFO without sending the packet. */
 	public void commitBuffer() throws IOException {
-
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}
-		
+		int slot = mBufferIn;
 		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
-
+		completeBuffer(slot, mPackets[slot].limit());
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
 		updateSequence();
-		mPackets[mBufferIn].setLength(length);
+		int slot = mBufferIn;
+		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
+		completeBuffer(slot, length);
+	}
+
+	/**
+	 * Reserves consecutive buffers of the FIFO, so that other threads can fill them while 
+	 * the packetizer goes on. Their sequence numbers are set right away, in the order in which 
+	 * they are reserved, and they are sent in that order whatever the order in which they are 
+	 * completed with {@link #completeBuffer(int, int)}. 
+	 * Must be called from the thread that calls {@link #requestBuffer()}.
+	 * @param count The number of buffers, less than the size of the FIFO
+	 * @return The index of the first buffer, the next ones follow modulo {@link #getBufferCount()}
+	 */
+	public int reserveBuffers(int count) throws InterruptedException {
+		mBufferRequested.acquire(count);
+		int first = mBufferIn;
+		for (int i=0; i<count; i++) {
+			mBuffers[mBufferIn][0] &= 0xEF;
+			mBuffers[mBufferIn][1] &= 0x7F;
+			mKeyFrames[mBufferIn] = false;
+			updateSequence();
+			if (++mBufferIn>=mBufferCount) mBufferIn = 0;
+		}
+		return first;
+	}
+
+	/** Returns the size of the FIFO. */
+	public int getBufferCount() {
+		return mBufferCount;
+	}
 
-		mAverageBitrate.push(length);
+	/** Returns a buffer reserved with {@link #reserveBuffers(int)}, the payload starts after the RTP header. */
+	public byte[] getBuffer(int slot) {
+		return mBuffers[slot];
+	}
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+	/** Same as {@link #updateTimestamp(long)} for a buffer reserved with {@link #reserveBuffers(int)}. */
+	public void setTimestamp(int slot, long timestamp) {
+		mTimestamps[slot] = timestamp;
+		mRtpTimestamps[slot] = toRtpTimestamp(timestamp);
+		// Only the 32 low bits of the extended timestamp are sent, it wraps around naturally
+		setLong(mBuffers[slot], mRtpTimestamps[slot], 4, 8);
+	}
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}		
-		
+	/** Same as {@link #markNextPacket()} for a buffer reserved with {@link #reserveBuffers(int)}. */
+	public void setMarker(int slot) {
+		mBuffers[slot][1] |= 0x80;
+	}
+
+	/** Same as {@link #markKeyFrame()} for a buffer reserved with {@link #reserveBuffers(int)}. */
+	public void setKeyFrame(int slot) {
+		if (!mKeyFrames[slot] && mKeyFrameRequester != null) mKeyFrameRequester.onKeyFrame();
+		mKeyFrames[slot] = true;
+	}
+
+	/**
+	 * Hands a filled buffer over to the sender. Can be called from any thread.
+	 * The packets are released in the order of the FIFO: a buffer completed before 
+	 * the ones reserved before it waits for them.
+	 * @param slot The index of the buffer
+	 * @param length The length of the packet, RTP header included
+	 */
+	public void completeBuffer(int slot, int length) {
+		int committed = 0;
+		synchronized (mCommitLock) {
+			mPackets[slot].limit(length);
+			mQueuedAt[slot] = System.nanoTime();
+			mReady[slot] = true;
+			while (mReady[mCommitIn]) {
+				mReady[mCommitIn] = false;
+				mAverageBitrate.push(mPackets[mCommitIn].limit());
+				if (++mCommitIn>=mBufferCount) mCommitIn = 0;
+				committed++;
+			}
+		}
+		if (committed == 0) return;
+		mBufferCommitted.release(committed);
+		scheduleSender();
+	}
+
+	/** 
+	 * Returns the controller that adapts the bitrate of the encoder according to 
+	 * the time packets spend in the FIFO. 
+	 **/
+	public QueueDelayController getDelayController() {
+		return mDelayController;
 	}
 
 	/** Returns an approximation of the bitrate of the RTP stream in bits per second. */
@@ -254,69 +545,223 @@ public class RtpSocket implements Runnable {
 	}
 
 	/** 
-	 * Overwrites the timestamp in the packet.
+	 * Overwrites the timestamp in the packet. All the packets of a frame must be given 
+	 * the same timestamp, usually the presentation time given by the encoder.
 	 * @param timestamp The new timestamp in ns.
 	 **/
 	public void updateTimestamp(long timestamp) {
-		mTimestamps[mBufferIn] = timestamp;
-		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+		setTimestamp(mBufferIn, timestamp);
+	}
+
+	/**
+	 * Converts a time in ns to the clock of the stream, without any rounding error 
+	 * that would accumulate or depend on the value of the time.
+	 * @return The extended 64 bit RTP timestamp, the random initial offset included
+	 */
+	public long toRtpTimestamp(long timestamp) {
+		// Seconds and the remainder are converted apart, so that the product can't overflow
+		return mTimestampOffset + timestamp/1000000000L*mClock + timestamp%1000000000L*mClock/1000000000L;
 	}
 
 	/** Sets the marker in the RTP packet. */
 	public void markNextPacket() {
-		mBuffers[mBufferIn][1] |= 0x80;
+		setMarker(mBufferIn);
+	}
+
+	/** 
+	 * Sets the X bit in the RTP header of the next packet, the packetizer writes 
+	 * the header extension right after the fixed header.
+	 */
+	public void markExtension() {
+		mBuffers[mBufferIn][0] |= 0x10;
+	}
+
+	/** 
+	 * Indicates that the next packet is the first of a frame that can be decoded on its own. 
+	 * A slow {@link InterleavedConsumer} resumes on such a packet.
+	 */
+	public void markKeyFrame() {
+		setKeyFrame(mBufferIn);
+	}
+
+	/** Makes sure that the loop will drain the FIFO. */
+	private void scheduleSender() {
+		if (mScheduled.compareAndSet(false, true)) {
+			mLoop.execute(mSender);
+		}
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
-	@Override
-	public void run() {
-		Statistics stats = new Statistics(50,3000);
+	private final Runnable mSender = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/** 
+	 * Sends the packets in the FIFO one by one at a constant rate. 
+	 * Always runs on the loop, instead of sleeping it reschedules itself when a packet has to wait.
+	 */
+	private void drain() {
 		try {
-			// Caches mCacheSize milliseconds of the stream in the FIFO.
-			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
+			while (mBufferCommitted.availablePermits()>0) {
+
+				if (!mStarted) {
+					// Caches mCacheSize milliseconds of the stream in the FIFO.
+					mStarted = true;
+					if (mCacheSize>0) {
+						mLoop.schedule(mSender, mCacheSize);
+						return;
+					}
+				}
+
+				if (mOldTimestamp != 0 && !mPaced) {
+					mPaced = true;
+					long delta = mTimestamps[mBufferOut]-mOldTimestamp;
+					if (delta>0) {
+						// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
+						// compute the time lapse that the packet represents.
+						mStats.push(delta);
+						long d = mStats.average()/1000000;
 						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
+						if (mCacheSize>0 && d>0) {
+							mLoop.schedule(mSender, d);
+							return;
+						}
+					} else if (delta<0) {
 						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
 					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
-					}
 				}
-				mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) {
-					if (mTransport == TRANSPORT_UDP) {
-						mSocket.send(mPackets[mBufferOut]);
-					} else {
-						sendTCP();
+
+				if (mFlow != null && !mReserved) {
+					// The uplink is shared with other sessions
+					long wait = mFlow.reserve(mPackets[mBufferOut].limit());
+					if (wait>0) {
+						mLoop.scheduleNanos(mSender, wait);
+						return;
 					}
+					mReserved = true;
 				}
+
+				if (mCount>30 && mTransport == TRANSPORT_UDP && !send()) {
+					// The socket buffer is full, the packet stays at the head of the FIFO until the channel can be written.
+					// The time it waits is seen by the delay controller like any other congestion.
+					mBlocked = true;
+					mLoop.awaitWritable(mChannel, mWritable);
+					return;
+				}
+
+				mBufferCommitted.acquire();
+				mPaced = false;
+				mReserved = false;
+				mReport.update(mPackets[mBufferOut].limit(), mRtpTimestamps[mBufferOut], mTimestamps[mBufferOut]);
+				mOldTimestamp = mTimestamps[mBufferOut];
+				if (mCount++>30 && mTransport == TRANSPORT_TCP) sendTCP();
+				long delay = System.nanoTime()-mQueuedAt[mBufferOut];
+				mDelayController.push(delay, (float) mBufferCommitted.availablePermits()/mBufferCount);
+				if (mFlow != null) mFlow.sent(mPackets[mBufferOut].limit(), delay);
 				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
 				mBufferRequested.release();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		mThread = null;
-		resetFifo();
+		mScheduled.set(false);
+		// A packet may have been committed after the FIFO was found empty
+		if (mBufferCommitted.availablePermits()>0) scheduleSender();
 	}
 
+	/** 
+	 * Sends the packet at the head of the FIFO over UDP.
+	 * @return false if the socket buffer is full and the packet has not been sent
+	 */
+	private boolean send() throws IOException {
+		if (mChannel == null) {
+			// Packets sent after close() are dropped, the ports are not ours anymore
+			if (mClosed) return true;
+			open();
+		}
+		ByteBuffer packet = mPackets[mBufferOut];
+		packet.position(0);
+		if (mImpairment != null) {
+			long now = System.nanoTime();
+			mImpairment.offer(packet, now);
+			flushImpairment(now);
+			return true;
+		}
+		// The channel is non blocking, nothing is sent when the socket buffer is full
+		return mChannel.send(packet, mDestination) > 0;
+	}
+
+	/** Sends the packets that leave the emulated network, and wakes up when the next one does. */
+	private void flushImpairment(long now) throws IOException {
+		mImpairmentBlocked = false;
+		mImpairment.flush(now, mImpairedOutput);
+		if (mImpairmentBlocked) {
+			// The packets wait in the emulated network until the socket buffer drains
+			mLoop.awaitWritable(mChannel, mWritable);
+			return;
+		}
+		long next = mImpairment.nextDeparture();
+		if (next == -1) return;
+		if (mImpairmentTimer == null || next - mImpairmentDeadline < 0) {
+			if (mImpairmentTimer != null) mImpairmentTimer.cancel();
+			mImpairmentDeadline = next;
+			mImpairmentTimer = mLoop.scheduleNanos(mImpairmentFlusher, next - now);
+		}
+	}
+
+	private final NetworkImpairment.Output mImpairedOutput = new NetworkImpairment.Output() {
+		@Override
+		public boolean send(ByteBuffer packet) throws IOException {
+			// Packets that leave the network after close() are dropped
+			if (mChannel == null || mChannel.send(packet, mDestination) > 0) return true;
+			mImpairmentBlocked = true;
+			return false;
+		}
+	};
+
+	/** Resumes what was waiting for the socket buffer to drain. */
+	private final RtpEventLoop.WriteHandler mWritable = new RtpEventLoop.WriteHandler() {
+		@Override
+		public void onWritable(SelectableChannel channel) {
+			if (mImpairment != null) {
+				try {
+					flushImpairment(System.nanoTime());
+				} catch (IOException e) {
+					Log.e(TAG, "Impaired send failed: "+e.getMessage());
+				}
+			}
+			if (mBlocked) {
+				mBlocked = false;
+				drain();
+			}
+		}
+	};
+
+	private final Runnable mImpairmentFlusher = new Runnable() {
+		@Override
+		public void run() {
+			mImpairmentTimer = null;
+			try {
+				flushImpairment(System.nanoTime());
+			} catch (IOException e) {
+				Log.e(TAG, "Impaired send failed: "+e.getMessage());
+			}
+		}
+	};
+
 	private void sendTCP() {
+		int len = mPackets[mBufferOut].limit();
+		if (mOutputStream instanceof InterleavedConsumer) {
+			// Never blocks, the packet may be skipped if the client is too slow
+			if (!((InterleavedConsumer) mOutputStream).offer(mTcpHeader[1], mBuffers[mBufferOut], len, mKeyFrames[mBufferOut])) {
+				// The client waits for a key frame to resume
+				if (mKeyFrameRequester != null) mKeyFrameRequester.request();
+			}
+			return;
+		}
 		synchronized (mOutputStream) {
-			int len = mPackets[mBufferOut].getLength();
-			Log.d(TAG,"sent "+len);
 			mTcpHeader[2] = (byte) (len>>8);
 			mTcpHeader[3] = (byte) (len&0xFF);
 			try {
@@ -41,9 +41,12 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Locale;
+import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -88,6 +91,11 @@ public class RtspServer extends Service {
 	protected boolean mEnabled = true;	
 	protected int mPort = DEFAULT_RTSP_PORT;
 	protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<>(2);
+	protected long mSlowClientTimeout = 5000;
+	protected int mClientQueueSize = 512*1024;
+
+	/** Connection of each client, indexed by address and port. */
+	private final Map<String, InterleavedConsumer> mConsumers = new ConcurrentHashMap<>();
 	
 	private RequestListener mListenerThread;
 	private final IBinder mBinder = new LocalBinder();
@@ -170,6 +178,8 @@ public class RtspServer extends Service {
 	 */
 	public void start() {
 		Log.w(TAG, "start: " );
+		// Binds the RTP/RTCP ports in advance so that SETUP requests don't have to
+		RtpPortPool.getInstance();
 		if (!mEnabled || mRestart) stop();
 		if (mEnabled && mListenerThread == null) {
 			try {
@@ -302,6 +312,27 @@ public class RtspServer extends Service {
 		}
 	}
 
+	/**
+	 * Sets how the server deals with clients that can't keep up when RTP is interleaved 
+	 * in the RTSP connection, see {@link InterleavedConsumer}. 
+	 * Changes will be taken into account for the next clients.
+	 * @param queueSize The size of the queue of each client in bytes
+	 * @param timeout The time after which a client that stays behind is disconnected in ms, 0 means never
+	 */
+	public void setSlowClientPolicy(int queueSize, long timeout) {
+		mClientQueueSize = queueSize;
+		mSlowClientTimeout = timeout;
+	}
+
+	/** Returns the lag and the number of packets skipped of each connected client, indexed by address and port. */
+	public Map<String, InterleavedConsumer.Stats> getClientStats() {
+		Map<String, InterleavedConsumer.Stats> stats = new LinkedHashMap<>();
+		for (Map.Entry<String, InterleavedConsumer> e : mConsumers.entrySet()) {
+			stats.put(e.getKey(), e.getValue().getStats());
+		}
+		return stats;
+	}
+
 	/** 
 	 * By default the RTSP uses {@link UriParser} to parse the URI requested by the client
 	 * but you can change that behavior by override this method.
@@ -310,7 +341,7 @@ public class RtspServer extends Service {
 	 * @return A proper session
 	 */
 	protected Session handleRequest(String uri, Socket client) throws IllegalStateException, IOException {
-		Session session = UriParser.parse(uri);
+		Session session = UriParser.parse(uri, client.getInetAddress().getHostAddress());
 		session.setOrigin(client.getLocalAddress().getHostAddress());
 		if (session.getDestination()==null) {
 			session.setDestination(client.getInetAddress().getHostAddress());
@@ -363,16 +394,22 @@ public class RtspServer extends Service {
 	class WorkerThread extends Thread implements Runnable {
 
 		private final Socket mClient;
-		private final OutputStream mOutput;
+		private final InterleavedConsumer mOutput;
 		private final BufferedReader mInput;
+		private final String mName;
 
 		// Each client has an associated session
 		private Session mSession;
 
 		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-			mOutput = client.getOutputStream();
+			// Latin-1 maps each byte to a char, so that interleaved binary data can be skipped
+			mInput = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+			mOutput = new InterleavedConsumer(client.getOutputStream(), client);
+			mOutput.setCapacity(mClientQueueSize);
+			mOutput.setTimeout(mSlowClientTimeout);
 			mClient = client;
+			mName = client.getInetAddress().getHostAddress()+":"+client.getPort();
+			mConsumers.put(mName, mOutput);
 			mSession = new Session();
 		}
 
@@ -386,13 +423,20 @@ public class RtspServer extends Service {
 
 				request = null;
 				response = null;
+				boolean close = false;
 
 				// Parse the request
 				try {
-					request = Request.parseRequest(mInput);
+					request = Request.parseRequest(mInput, mSession);
 				} catch (SocketException e) {
 					// Client has left
 					break;
+				} catch (RejectedRequestException e) {
+					// The rest of the request can't be skipped safely, the connection is closed after the response
+					Log.e(TAG, e.getMessage());
+					response = new Response(e.request);
+					response.status = e.status;
+					close = true;
 				} catch (Exception e) {
 					// We don't understand the request :/
 					response = new Response();
@@ -421,6 +465,7 @@ public class RtspServer extends Service {
 					Log.e(TAG,"Response was not sent properly");
 					break;
 				}
+				if (close) break;
 
 			}
 
@@ -432,9 +477,8 @@ public class RtspServer extends Service {
 			}
 			mSession.release();
 
-			try {
-				mClient.close();
-			} catch (IOException ignore) {}
+			mConsumers.remove(mName);
+			mOutput.close();
 
 			Log.i(TAG, "Client disconnected");
 
@@ -479,7 +523,7 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 else if (request.method.equalsIgnoreCase("OPTIONS")) {
                     response.status = Response.STATUS_OK;
-                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER,SET_PARAMETER\r\n";
                     response.status = Response.STATUS_OK;
                 }
 
@@ -507,6 +551,22 @@ public class RtspServer extends Service {
                         return response;
                     }
 
+                    // RFC 5761, the client wants RTP and RTCP on the same port
+                    boolean mux = request.headers.get("transport").toLowerCase(Locale.US).contains("rtcp-mux");
+                    mSession.getTrack(trackId).setRtcpMux(mux);
+
+                    // RFC 2326, section 10.12, RTP and RTCP are interleaved in the RTSP connection
+                    boolean tcp = request.headers.get("transport").toUpperCase(Locale.US).contains("RTP/AVP/TCP");
+                    int channel = 2*trackId;
+                    if (tcp) {
+                        m = Pattern.compile("interleaved=(\\d+)", Pattern.CASE_INSENSITIVE).matcher(request.headers.get("transport"));
+                        if (m.find()) channel = Integer.parseInt(m.group(1));
+                        mSession.getTrack(trackId).setOutputStream(mOutput, (byte) channel);
+                    } else {
+                        // The track may have been set up over TCP by a previous request
+                        mSession.getTrack(trackId).setOutputStream(null, (byte) 0);
+                    }
+
                     p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
                     m = p.matcher(request.headers.get("transport"));
 
@@ -516,7 +576,9 @@ public class RtspServer extends Service {
                         p2 = ports[1];
                     } else {
                         p1 = Integer.parseInt(m.group(1));
-                        if (m.group(2) == null) {
+                        if (mux) {
+                            p2 = p1;
+                        } else if (m.group(2) == null) {
                             p2 = p1+1;
                         } else {
                             p2 = Integer.parseInt(m.group(2));
@@ -524,10 +586,24 @@ public class RtspServer extends Service {
                     }
 
                     ssrc = mSession.getTrack(trackId).getSSRC();
-                    src = mSession.getTrack(trackId).getLocalPorts();
+                    src = tcp ? null : mSession.getTrack(trackId).getLocalPorts();
                     destination = mSession.getDestination();
 
-                    mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+                    // Over TCP the ports are only used in the reply, the packets go to the interleaved channels
+                    if (!tcp) mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+
+                    // RFC 2326, the client may ask for a payload size that does not include the IP, UDP and RTP headers
+                    int blocksize = 0;
+                    if (request.headers.containsKey("blocksize")) {
+                        try {
+                            blocksize = Integer.parseInt(request.headers.get("blocksize").trim());
+                            int mtu = MtuProbe.clamp(blocksize + RtpSocket.RTP_HEADER_LENGTH + 28, true);
+                            blocksize = mtu - RtpSocket.RTP_HEADER_LENGTH - 28;
+                            mSession.setMtu(mtu);
+                        } catch (NumberFormatException e) {
+                            blocksize = 0;
+                        }
+                    }
 
                     boolean streaming = isStreaming();
                     mSession.syncStart(trackId);
@@ -535,14 +611,16 @@ public class RtspServer extends Service {
                         postMessage(MESSAGE_STREAMING_STARTED);
                     }
 
-                    response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
+                    response.attributes = (tcp ? "Transport: RTP/AVP/TCP;unicast;interleaved=" + channel + "-" + (channel+1) :
+                            "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
                             ";destination=" + mSession.getDestination() +
-                            ";client_port=" + p1 + "-" + p2 +
-                            ";server_port=" + src[0] + "-" + src[1] +
+                            (mux ? ";client_port=" + p1 + ";server_port=" + src[0] + ";rtcp-mux" :
+                            ";client_port=" + p1 + "-" + p2 + ";server_port=" + src[0] + "-" + src[1])) +
                             ";ssrc=" + Integer.toHexString(ssrc) +
                             ";mode=play\r\n" +
                             "Session: " + "1185d20035702ca" + "\r\n" +
-                            "Cache-Control: no-cache\r\n";
+                            "Cache-Control: no-cache\r\n" +
+                            (blocksize > 0 ? "Blocksize: " + blocksize + "\r\n" : "");
                     response.status = Response.STATUS_OK;
 
                     // If no exception has been thrown, we reply with OK
@@ -559,10 +637,15 @@ public class RtspServer extends Service {
                         requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
                     if (mSession.trackExists(1))
                         requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
+                    if (mSession.trackExists(Session.STREAM_DATA))
+                        requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + Session.STREAM_DATA + ";seq=0,";
                     requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
 
                     response.attributes = requestAttributes;
 
+                    // The stream may already be running, and the encoder may not produce key frames on its own (see EncoderProfile)
+                    mSession.requestKeyFrame();
+
                     // If no exception has been thrown, we reply with OK
                     response.status = Response.STATUS_OK;
 
@@ -575,6 +658,22 @@ public class RtspServer extends Service {
                     response.status = Response.STATUS_OK;
                 }
 
+                /* ********************************************************************************** */
+                /* ****************************** Method SET_PARAMETER ****************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("SET_PARAMETER")) {
+                    // An empty request is used as a keep-alive
+                    response.status = setParameters(request.content);
+                }
+
+                /* ********************************************************************************** */
+                /* ****************************** Method GET_PARAMETER ****************************** */
+                /* ********************************************************************************** */
+                else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+                    // An empty request is used as a keep-alive
+                    response.status = getParameters(request.content, response);
+                }
+
                 /* ********************************************************************************** */
                 /* ********************************* Method TEARDOWN ******************************** */
                 /* ********************************************************************************** */
@@ -594,6 +693,77 @@ public class RtspServer extends Service {
 
 		}
 
+        /**
+         * Applies the parameters of a SET_PARAMETER request, one "name: value" per line, without 
+         * restarting the encoder. Only these parameters are understood:
+         * <ul><li>bitrate: the bitrate of the video stream in bit/s</li>
+         * <li>framerate: the maximum frame rate of the video stream, 0 to remove the cap</li>
+         * <li>keyframe: asks the encoder for a key frame, rate limited by the {@link KeyFrameRequester} of the stream</li></ul>
+         * @return The status of the response
+         */
+        private String setParameters(String content) {
+            // RFC 2326, section 10.9, the parameters are only set if all of them can be
+            LinkedHashMap<String,Integer> parameters = new LinkedHashMap<>();
+            for (String line : content.split("\r?\n")) {
+                int colon = line.indexOf(':');
+                String name = (colon < 0 ? line : line.substring(0, colon)).trim().toLowerCase(Locale.US);
+                String value = colon < 0 ? "" : line.substring(colon+1).trim();
+                if (name.isEmpty()) continue;
+                if (name.equals("keyframe")) {
+                    parameters.put(name, 0);
+                } else if (name.equals("bitrate") || name.equals("framerate")) {
+                    try {
+                        int number = Integer.parseInt(value);
+                        if (number < 0 || (number == 0 && name.equals("bitrate"))) return Response.STATUS_BAD_REQUEST;
+                        parameters.put(name, number);
+                    } catch (NumberFormatException e) {
+                        return Response.STATUS_BAD_REQUEST;
+                    }
+                } else {
+                    return Response.STATUS_PARAMETER_NOT_UNDERSTOOD;
+                }
+            }
+            for (Map.Entry<String,Integer> parameter : parameters.entrySet()) {
+                switch (parameter.getKey()) {
+                    case "bitrate":
+                        mSession.setVideoBitrate(parameter.getValue());
+                        break;
+                    case "framerate":
+                        mSession.setVideoFrameRateCap(parameter.getValue());
+                        break;
+                    case "keyframe":
+                        mSession.requestKeyFrame();
+                        break;
+                }
+            }
+            return Response.STATUS_OK;
+        }
+
+        /**
+         * Answers a GET_PARAMETER request, one parameter name per line. The values are 
+         * returned in the content of the response, see {@link #setParameters(String)}.
+         * @return The status of the response
+         */
+        private String getParameters(String content, Response response) {
+            StringBuilder values = new StringBuilder();
+            for (String line : content.split("\r?\n")) {
+                String name = line.trim().toLowerCase(Locale.US);
+                if (name.isEmpty()) continue;
+                if (name.equals("bitrate")) {
+                    values.append("bitrate: ").append(mSession.getVideoBitrate()).append("\r\n");
+                } else if (name.equals("framerate")) {
+                    values.append("framerate: ").append(mSession.getVideoFrameRateCap()).append("\r\n");
+                } else {
+                    return Response.STATUS_PARAMETER_NOT_UNDERSTOOD;
+                }
+            }
+            if (values.length() > 0) {
+                response.attributes = "Content-Type: text/parameters\r\n";
+                response.content = values.toString();
+            }
+            return Response.STATUS_OK;
+        }
+
         /**
          * Check if the request is authorized
          * @param request
@@ -618,8 +788,26 @@ public class RtspServer extends Service {
         }
 	}
 
+	/** Thrown when a request is refused before its body has been read, the connection can't be used anymore. */
+	static class RejectedRequestException extends IOException {
+
+		/** The request with its headers, but without its content. */
+		public final Request request;
+		public final String status;
+
+		public RejectedRequestException(Request request, String status, String message) {
+			super(message);
+			this.request = request;
+			this.status = status;
+		}
+
+	}
+
 	static class Request {
 
+		/** Largest body accepted, SET_PARAMETER and GET_PARAMETER bodies are a few lines of text. */
+		public static final int MAX_CONTENT_LENGTH = 4096;
+
 		// Parse method & uri
 		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
 		// Parse a request header
@@ -627,14 +815,20 @@ public class RtspServer extends Service {
 
 		public String method;
 		public String uri;
+		public String content = "";
 		public HashMap<String,String> headers = new HashMap<>();
 
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		/** 
+		 * Parse the method, uri, headers & content of a RTSP request.
+		 * @param session Receives the RTCP packets interleaved in the connection before the request
+		 */
+		public static Request parseRequest(BufferedReader input, Session session) throws IOException, IllegalStateException, SocketException {
 			Request request = new Request();
 			String line;
 			Matcher matcher;
 
+			readInterleaved(input, session);
+
 			// Parsing request method & uri
 			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
 			matcher = regexMethod.matcher(line);
@@ -650,11 +844,69 @@ public class RtspServer extends Service {
 			}
 			if (line==null) throw new SocketException("Client disconnected");
 
+			String length = request.headers.get("content-length");
+			if (length != null) {
+				int contentLength;
+				try {
+					contentLength = Integer.parseInt(length.trim());
+				} catch (NumberFormatException e) {
+					contentLength = -1;
+				}
+				if (contentLength < 0) {
+					throw new RejectedRequestException(request, Response.STATUS_BAD_REQUEST, "Invalid Content-Length: "+length.trim());
+				}
+				if (contentLength > MAX_CONTENT_LENGTH) {
+					throw new RejectedRequestException(request, Response.STATUS_REQUEST_ENTITY_TOO_LARGE, "Content-Length too large: "+contentLength);
+				}
+				char[] content = new char[contentLength];
+				readFully(input, content);
+				request.content = new String(content);
+			}
+
 			// It's not an error, it's just easier to follow what's happening in logcat with the request in red
 			Log.e(TAG,request.method+" "+request.uri);
 
 			return request;
 		}
+
+		/** 
+		 * Reads the binary packets interleaved in the connection, they start with '$' (RFC 2326, section 10.12). 
+		 * RTCP packets, on odd channels, are passed to the session.
+		 */
+		private static void readInterleaved(BufferedReader input, Session session) throws IOException {
+			int c;
+			while (true) {
+				input.mark(1);
+				if ((c = input.read()) != '$') break;
+				int channel = readByte(input);
+				int length = (readByte(input)<<8) | readByte(input);
+				char[] chars = new char[length];
+				readFully(input, chars);
+				if ((channel & 1) == 1 && session != null) {
+					// The connection is read as ISO-8859-1, each char is a byte of the packet
+					byte[] packet = new byte[length];
+					for (int i=0; i<length; i++) packet[i] = (byte) chars[i];
+					session.receiveRtcp(packet, 0, length);
+				}
+			}
+			if (c < 0) throw new SocketException("Client disconnected");
+			input.reset();
+		}
+
+		private static int readByte(BufferedReader input) throws IOException {
+			int c = input.read();
+			if (c < 0) throw new SocketException("Client disconnected");
+			return c;
+		}
+
+		private static void readFully(BufferedReader input, char[] buffer) throws IOException {
+			int offset = 0;
+			while (offset < buffer.length) {
+				int read = input.read(buffer, offset, buffer.length - offset);
+				if (read < 0) throw new SocketException("Client disconnected");
+				offset += read;
+			}
+		}
 	}
 
 	static class Response {
@@ -664,6 +916,8 @@ public class RtspServer extends Service {
 		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
         public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
 		public static final String STATUS_NOT_FOUND = "404 Not Found";
+		public static final String STATUS_REQUEST_ENTITY_TOO_LARGE = "413 Request Entity Too Large";
+		public static final String STATUS_PARAMETER_NOT_UNDERSTOOD = "451 Parameter Not Understood";
 		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
 		public String status = STATUS_INTERNAL_SERVER_ERROR;
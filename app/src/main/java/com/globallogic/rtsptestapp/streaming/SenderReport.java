@@ -18,39 +18,61 @@
 
 package com.globallogic.rtsptestapp.streaming;
 
-import android.os.SystemClock;
-
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
 
 import static com.globallogic.rtsptestapp.streaming.RtpSocket.TRANSPORT_TCP;
 import static com.globallogic.rtsptestapp.streaming.RtpSocket.TRANSPORT_UDP;
 
 /**
  * Implementation of Sender Report RTCP packets.
+ * Reports are sent by a timer of the {@link RtpEventLoop} of the {@link RtpSocket}, at 
+ * randomized intervals that depend on the bandwidth of the session (RFC 3550, section 6.3). 
+ * The NTP timestamp is the wall clock time at which the report is sent, and the RTP timestamp 
+ * is the one a packet captured at that very instant would carry, so that receivers can 
+ * synchronize streams and measure the latency.
  */
 public class SenderReport {
 
 	public static final int MTU = 1500;
 
 	private static final int PACKET_LENGTH = 28;
+
+	/** Size of the IP and UDP headers. */
+	private static final int UDP_OVERHEAD = 28;
+
+	/** Seconds between the NTP epoch (1900) and the unix epoch (1970). */
+	private static final long NTP_OFFSET = 2208988800L;
+
+	/** Compensates the randomization of the interval, see RFC 3550, section 6.3.1. */
+	private static final double COMPENSATION = 2.71828 - 1.5;
 	
-	private MulticastSocket usock;
-	private DatagramPacket upack;
+	private DatagramChannel mChannel;
+	private InetSocketAddress mDestination;
+	private ByteBuffer mPacket;
+	private RtpEventLoop mLoop;
+	private RtpEventLoop.Timer mTimer;
 
 	private int mTransport;
 	private OutputStream mOutputStream = null;
 	private byte[] mBuffer = new byte[MTU];
 	private int mSSRC, mPort = -1;
 	private int mOctetCount = 0, mPacketCount = 0;
-	private long interval, delta, now, oldnow;
+	private long interval, mRtpTimestamp, mTimestamp, mClock;
+	private long mClockOffset = 0;
+	private long mLastReportTime, mLastReportOctets, mLastReportPackets;
+	private double mAverageSize = PACKET_LENGTH + UDP_OVERHEAD;
+	private final Random mRandom = new Random();
 	private byte mTcpHeader[];
 
 	public SenderReport(int ssrc) throws IOException {
-		super();
+		this();
 		this.mSSRC = ssrc;
 	}
 	
@@ -81,26 +103,36 @@ public class SenderReport {
 		/* Byte 20,21,22,23  ->  packet count				 	 */
 		/* Byte 24,25,26,27  ->  octet count			         */
 
-		try {
-			usock = new MulticastSocket();
-		} catch (IOException e) {
-			// Very unlikely to happen. Means that all UDP ports are already being used
-			throw new RuntimeException(e.getMessage());
-		}
-		upack = new DatagramPacket(mBuffer, 1);
+		mPacket = ByteBuffer.wrap(mBuffer, 0, PACKET_LENGTH);
 
-		// By default we sent one report every 3 secconde
-		interval = 3000;
+		// RFC 3550 recommends at least 5 seconds between two reports
+		interval = 5000;
 		
 	}
 
+	/** Stops sending reports. The channel belongs to the {@link RtpSocket} and is not closed. */
 	public void close() {
-		usock.close();
+		cancelTimer();
+		mChannel = null;
+	}
+
+	/** 
+	 * Sets the channel used to send the reports. With RTCP multiplexing (RFC 5761) 
+	 * it is the channel used for RTP. 
+	 **/
+	public void setChannel(DatagramChannel channel) {
+		mChannel = channel;
+	}
+
+	/** Sets the {@link RtpEventLoop} on which reports will be sent. */
+	public void setEventLoop(RtpEventLoop loop) {
+		mLoop = loop;
 	}
 
 	/**
-	 * Sets the temporal interval between two RTCP Sender Reports.
-	 * Default interval is set to 3 seconds.
+	 * Sets the minimum interval between two RTCP Sender Reports.
+	 * Default interval is set to 5 seconds, the actual interval is randomized and
+	 * may be longer if the bandwidth of the session is low.
 	 * Set 0 to disable RTCP.
 	 * @param interval The interval in milliseconds
 	 */
@@ -108,30 +140,100 @@ public class SenderReport {
 		this.interval = interval;
 	}	
 
+	/** Sets the clock frequency of the stream in Hz. */
+	public void setClockFrequency(long clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * Sets the offset between the wall clock and the {@link System#nanoTime()} time base. 
+	 * The streams of a session share the same offset, so that their reports map their RTP 
+	 * timestamps to the same NTP time base and receivers can synchronize them exactly.
+	 * @param offset The offset in ns, 0 to read the wall clock for each report
+	 */
+	public void setClockOffset(long offset) {
+		mClockOffset = offset;
+	}
+
 	/** 
 	 * Updates the number of packets sent, and the total amount of data sent.
+	 * Must be called from the {@link RtpEventLoop}. The first call starts the timer 
+	 * that sends the reports.
 	 * @param length The length of the packet 
 	 * @param rtpts
 	 *            The RTP timestamp.
+	 * @param ts
+	 *            The capture time of the packet in ns, on the {@link System#nanoTime()} time base. 
 	 * @throws IOException 
 	 **/
-	public void update(int length, long rtpts) throws IOException {
+	public void update(int length, long rtpts, long ts) throws IOException {
 		mPacketCount += 1;
 		mOctetCount += length;
 		setLong(mPacketCount, 20, 24);
 		setLong(mOctetCount, 24, 28);
+		mRtpTimestamp = rtpts;
+		mTimestamp = ts;
 
-		now = SystemClock.elapsedRealtime();
-		delta += oldnow != 0 ? now-oldnow : 0;
-		oldnow = now;
-		if (interval>0 && delta>=interval) {
-			// We send a Sender Report
-			send(System.nanoTime(), rtpts);
-			delta = 0;
+		if (mTimer == null && interval>0 && mLoop != null) {
+			// The first report is sent earlier, see RFC 3550, section 6.2
+			mLastReportTime = System.nanoTime();
+			mLastReportOctets = mLastReportPackets = 0;
+			mTimer = mLoop.schedule(mReporter, randomize(interval/2));
 		}
 		
 	}
 
+	private final Runnable mReporter = new Runnable() {
+		@Override
+		public void run() {
+			// Both clocks are read at the same instant
+			long now = System.nanoTime();
+			long wallclock = mClockOffset != 0 ? now + mClockOffset : System.currentTimeMillis()*1000000L;
+			try {
+				send(wallclock, now);
+			} catch (IOException ignore) {}
+			mTimer = interval>0 ? mLoop.schedule(mReporter, nextInterval(now)) : null;
+		}
+	};
+
+	/**
+	 * Computes the deterministic interval of RFC 3550, section 6.3.1, and randomizes it.
+	 * We are the only sender of the session and there is usually a single receiver. 
+	 * The bandwidth of the session is measured since the previous report.
+	 * @return The interval in ms
+	 */
+	private long nextInterval(long now) {
+		long elapsed = now - mLastReportTime;
+		long packets = (mPacketCount & 0xFFFFFFFFL) - mLastReportPackets;
+		long octets = (mOctetCount & 0xFFFFFFFFL) - mLastReportOctets;
+		mLastReportTime = now;
+		mLastReportPackets = mPacketCount & 0xFFFFFFFFL;
+		mLastReportOctets = mOctetCount & 0xFFFFFFFFL;
+
+		long interval = this.interval;
+		if (elapsed > 0 && packets >= 0 && octets >= 0) {
+			// RTCP gets 5% of the bandwidth of the session, senders get a quarter of it
+			double bandwidth = (octets + packets*UDP_OVERHEAD)*1000000000.0/elapsed;
+			double rtcp = bandwidth*0.05*0.25;
+			if (rtcp > 0) {
+				interval = Math.max(interval, (long) (mAverageSize/rtcp*1000));
+			}
+		}
+		return randomize(interval);
+	}
+
+	/** Spreads the interval between 0.5 and 1.5 times its value so that reports of several sources don't synchronize. */
+	private long randomize(long interval) {
+		return (long) (interval*(0.5 + mRandom.nextDouble())/COMPENSATION);
+	}
+
+	private void cancelTimer() {
+		if (mTimer != null) {
+			mTimer.cancel();
+			mTimer = null;
+		}
+	}
+
 	public void setSSRC(int ssrc) {
 		this.mSSRC = ssrc; 
 		setLong(ssrc,4,8);
@@ -144,8 +246,12 @@ public class SenderReport {
 	public void setDestination(InetAddress dest, int dport) {
 		mTransport = TRANSPORT_UDP;
 		mPort = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		mDestination = new InetSocketAddress(dest, dport);
+	}
+
+	/** Sets the Time To Live of the UDP packets. */
+	public void setTimeToLive(int ttl) throws IOException {
+		if (mChannel != null) mChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
 	}
 
 	/**
@@ -164,7 +270,7 @@ public class SenderReport {
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return mChannel != null ? mChannel.socket().getLocalPort() : -1;
 	}
 
 	public int getSSRC() {
@@ -175,11 +281,11 @@ public class SenderReport {
 	 * Resets the reports (total number of bytes sent, number of packets sent, etc.)
 	 */
 	public void reset() {
+		cancelTimer();
 		mPacketCount = 0;
 		mOctetCount = 0;
 		setLong(mPacketCount, 20, 24);
 		setLong(mOctetCount, 24, 28);
-		delta = now = oldnow = 0;
 	}
 	
 	private void setLong(long n, int begin, int end) {
@@ -192,20 +298,24 @@ public class SenderReport {
 	/**
 	 * Sends the RTCP packet over the network.
 	 * 
-	 * @param ntpts
-	 *            the NTP timestamp.
-	 * @param rtpts
-	 *            the RTP timestamp.
+	 * @param wallclock
+	 *            the wall clock time in ns, on the {@link System#currentTimeMillis()} time base.
+	 * @param now
+	 *            the same instant on the {@link System#nanoTime()} time base.
 	 */
-	private void send(long ntpts, long rtpts) throws IOException {
-		long hb = ntpts/1000000000;
-		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
+	private void send(long wallclock, long now) throws IOException {
+		long hb = wallclock/1000000000L + NTP_OFFSET;
+		long lb = ( (wallclock%1000000000L) << 32 )/1000000000L;
+		// Extrapolated from the last packet sent, so that it is consistent with the timestamps of the RTP packets
+		long rtpts = mRtpTimestamp + (mClock > 0 ? (now - mTimestamp)*mClock/1000000000L : 0);
 		setLong(hb, 8, 12);
 		setLong(lb, 12, 16);
 		setLong(rtpts, 16, 20);
+		mAverageSize = mAverageSize*15/16 + (PACKET_LENGTH + UDP_OVERHEAD)/16.0;
 		if (mTransport == TRANSPORT_UDP) {
-			upack.setLength(PACKET_LENGTH);
-			usock.send(upack);		
+			if (mDestination == null || mChannel == null) return;
+			mPacket.position(0);
+			mChannel.send(mPacket, mDestination);
 		} else {
 			synchronized (mOutputStream) {
 				try {
@@ -35,7 +35,7 @@ import java.net.UnknownHostException;
  * You should instantiate this class with the {@link SessionBuilder}.<br />
  * This is the class you will want to use to stream audio and or video to some peer using RTP.<br />
  * 
- * It holds a {@link VideoStream} together and provides
+ * It holds an {@link AudioStream} and/or a {@link VideoStream} together and provides
  * synchronous and asynchronous functions to start and stop those steams.
  * You should implement a callback interface {@link Callback} to receive notifications and error reports.<br />
  * 
@@ -60,6 +60,18 @@ public class Session {
 
 	public final static int STREAM_AUDIO = 0x00;
 
+	/** The navigation telemetry, see {@link TelemetryStream}. */
+	public final static int STREAM_DATA = 0x02;
+
+	/** Number of tracks a session may hold. */
+	private final static int TRACK_COUNT = 3;
+
+	/** The MTU is the one of the interface used to reach the destination, capped to 1500 bytes. */
+	public final static int MTU_AUTO = 0;
+
+	/** Same as {@link #MTU_AUTO} but allows jumbo frames. */
+	public final static int MTU_JUMBO = -1;
+
 	/** Some app is already using a camera (Camera.open() has failed). */
 	public final static int ERROR_CAMERA_ALREADY_IN_USE = 0x00;
 
@@ -94,15 +106,28 @@ public class Session {
 	private String mOrigin;
 	private String mDestination;
 	private int mTimeToLive = 64;
+	private int mMtu = RtpSocket.MTU;
+	private NetworkImpairment mImpairment;
 	private long mTimestamp;
 
+	/** Offset between the wall clock and the time base of the streams, shared so that they can be synchronized. */
+	private final long mClockOffset;
+
+	private AudioStream mAudioStream = null;
 	private VideoStream mVideoStream = null;
+	private TelemetryStream mDataStream = null;
 
 	private Callback mCallback;
 	private Handler mMainHandler;
 
 	private Handler mHandler;
 
+	/** All the streams of the session send their packets from this loop. */
+	private RtpEventLoop mEventLoop;
+
+	/** The share of the uplink of the session. */
+	private BandwidthShaper.Flow mFlow;
+
 	/** 
 	 * Creates a streaming session that can be customized by adding tracks.
 	 */
@@ -114,7 +139,9 @@ public class Session {
 
 		mHandler = new Handler(thread.getLooper());
 		mMainHandler = new Handler(Looper.getMainLooper());
+		mEventLoop = RtpEventLoopGroup.getInstance().next();
 		mTimestamp = (uptime/1000)<<32 & (((uptime-((uptime/1000)*1000))>>32)/1000); // NTP timestamp
+		mClockOffset = uptime*1000000L - System.nanoTime();
 		mOrigin = "127.0.0.1";
 	}
 
@@ -165,10 +192,51 @@ public class Session {
 	}
 
 
+	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
+	void addAudioTrack(AudioStream track) {
+		removeAudioTrack();
+		mAudioStream = track;
+		attach(mAudioStream, STREAM_AUDIO);
+	}
+
 	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
 	void addVideoTrack(VideoStream track) {
 		removeVideoTrack();
 		mVideoStream = track;
+		attach(mVideoStream, STREAM_VIDEO);
+	}
+
+	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
+	void addDataTrack(TelemetryStream track) {
+		removeDataTrack();
+		mDataStream = track;
+		attach(mDataStream, STREAM_DATA);
+	}
+
+	/** The streams of the session share its loop, its flow and its clock. */
+	private void attach(MediaStream stream, int trackId) {
+		stream.setEventLoop(mEventLoop);
+		stream.setBandwidthFlow(mFlow);
+		stream.setNetworkImpairment(impairmentOf(mImpairment, trackId));
+		stream.setClockOffset(mClockOffset);
+	}
+
+	/** 
+	 * Each track gets its own copy of the emulator, with its own seed: tracks that share 
+	 * the seed would lose and delay the same packets at the same time.
+	 */
+	private static NetworkImpairment impairmentOf(NetworkImpairment impairment, int trackId) {
+		if (impairment == null) return null;
+		return impairment.clone().setSeed(impairment.getSeed() ^ trackId*0x9E3779B97F4A7C15L);
+	}
+
+	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
+	void removeAudioTrack() {
+		if (mAudioStream != null) {
+			mAudioStream.stop();
+			mAudioStream.releasePorts();
+			mAudioStream = null;
+		}
 	}
 
 
@@ -176,11 +244,31 @@ public class Session {
 	void removeVideoTrack() {
 		if (mVideoStream != null) {
 			mVideoStream.stopPreview();
+			mVideoStream.releasePorts();
 			mVideoStream = null;
 		}
 	}
 
 
+	/** You probably don't need to use that directly, use the {@link SessionBuilder}. */
+	void removeDataTrack() {
+		if (mDataStream != null) {
+			mDataStream.stop();
+			mDataStream.releasePorts();
+			mDataStream = null;
+		}
+	}
+
+	/** Returns the underlying {@link TelemetryStream} used by the {@link Session}, or null. */
+	public TelemetryStream getDataTrack() {
+		return mDataStream;
+	}
+
+	/** Returns the underlying {@link AudioStream} used by the {@link Session}. */
+	public AudioStream getAudioTrack() {
+		return mAudioStream;
+	}
+
 	/** Returns the underlying {@link VideoStream} used by the {@link Session}. */
 	public VideoStream getVideoTrack() {
 		return mVideoStream;
@@ -221,6 +309,96 @@ public class Session {
 		mTimeToLive = ttl;
 	}
 
+	/** 
+	 * Sets the MTU of the path to the destination. <br />
+	 * Changes will be taken into account the next time you start the session.
+	 * @param mtu The MTU in bytes, {@link #MTU_AUTO} or {@link #MTU_JUMBO} 
+	 */
+	public void setMtu(int mtu) {
+		mMtu = mtu;
+	}
+
+	/**
+	 * Sends the packets of all the streams through an emulated bad network, 
+	 * each stream gets its own copy of the emulator and its own seed. For testing purposes.
+	 * @param impairment The emulated network, or null to send packets directly
+	 */
+	public void setNetworkImpairment(NetworkImpairment impairment) {
+		mImpairment = impairment;
+		if (mAudioStream != null) mAudioStream.setNetworkImpairment(impairmentOf(impairment, STREAM_AUDIO));
+		if (mVideoStream != null) mVideoStream.setNetworkImpairment(impairmentOf(impairment, STREAM_VIDEO));
+		if (mDataStream != null) mDataStream.setNetworkImpairment(impairmentOf(impairment, STREAM_DATA));
+	}
+
+	/**
+	 * Sets the GOP length of the video stream. Key frames are also sent when a receiver asks for one.
+	 * Changes will be taken into account the next time you start the session.
+	 * @param interval The interval between two key frames in seconds
+	 */
+	public void setKeyFrameInterval(int interval) {
+		if (mVideoStream != null) mVideoStream.setKeyFrameInterval(interval);
+	}
+
+	/**
+	 * Sets the {@link EncoderProfile} of the video stream.
+	 * Changes will be taken into account the next time you start the session.
+	 */
+	public void setEncoderProfile(EncoderProfile profile) {
+		if (mVideoStream != null) mVideoStream.setEncoderProfile(profile);
+	}
+
+	/**
+	 * Changes the bitrate of the video stream without restarting its encoder, 
+	 * see {@link VideoStream#setBitrate(int)}.
+	 * @param bitrate The bitrate in bit/s
+	 */
+	public void setVideoBitrate(int bitrate) {
+		if (mVideoStream != null) mVideoStream.setBitrate(bitrate);
+	}
+
+	/** Returns the bitrate the encoder of the video stream aims at in bit/s, 0 if there is no video stream. */
+	public int getVideoBitrate() {
+		return mVideoStream != null ? mVideoStream.getTargetBitrate() : 0;
+	}
+
+	/**
+	 * Caps the frame rate of the video stream without restarting its encoder, 
+	 * see {@link VideoStream#setFrameRateCap(int)}.
+	 * @param fps The maximum frame rate, 0 to remove the cap
+	 */
+	public void setVideoFrameRateCap(int fps) {
+		if (mVideoStream != null) mVideoStream.setFrameRateCap(fps);
+	}
+
+	/** Returns the frame rate cap of the video stream, 0 if there is none. */
+	public int getVideoFrameRateCap() {
+		return mVideoStream != null ? mVideoStream.getFrameRateCap() : 0;
+	}
+
+	/** Asks the encoder of the video stream for a key frame, see {@link KeyFrameRequester}. */
+	public void requestKeyFrame() {
+		if (mVideoStream != null) mVideoStream.requestKeyFrame();
+	}
+
+	/** Handles an RTCP packet sent by the client over the RTSP connection. */
+	public void receiveRtcp(byte[] buffer, int offset, int length) {
+		// Each stream only handles the feedback about its own SSRC
+		if (mAudioStream != null) mAudioStream.receiveRtcp(buffer, offset, length);
+		if (mVideoStream != null) mVideoStream.receiveRtcp(buffer, offset, length);
+	}
+
+	/**
+	 * Sets the flow of the {@link BandwidthShaper} used by all the streams of the session.
+	 * @param flow The flow, or null if the session should not be shaped
+	 */
+	public void setBandwidthFlow(BandwidthShaper.Flow flow) {
+		if (mFlow != null) mFlow.close();
+		mFlow = flow;
+		if (mAudioStream != null) mAudioStream.setBandwidthFlow(flow);
+		if (mVideoStream != null) mVideoStream.setBandwidthFlow(flow);
+		if (mDataStream != null) mDataStream.setBandwidthFlow(flow);
+	}
+
 	/**
 	 * Returns the {@link Callback} interface that was set with 
 	 * {@link #setCallback(Callback)} or null if none was set.
@@ -241,7 +419,9 @@ public class Session {
 		}
 		sessionDescription.append("v=0\r\n");
 		// TODO: Add IPV6 support
-		sessionDescription.append("o=- "+mTimestamp+" "+mTimestamp+" IN IP4 "+mOrigin+"\r\n");
+		// The version changes with the parameter sets of the video stream
+		long version = mTimestamp + (mVideoStream != null ? mVideoStream.getParameterSetsVersion() : 0);
+		sessionDescription.append("o=- "+mTimestamp+" "+version+" IN IP4 "+mOrigin+"\r\n");
 		sessionDescription.append("s=Unnamed\r\n");
 		sessionDescription.append("i=N/A\r\n");
 		sessionDescription.append("c=IN IP4 "+mDestination+"\r\n");
@@ -249,10 +429,22 @@ public class Session {
 		sessionDescription.append("t=0 0\r\n");
 		sessionDescription.append("a=recvonly\r\n");
 
+		if (mAudioStream != null) {
+			sessionDescription.append(mAudioStream.getSessionDescription());
+			sessionDescription.append("a=rtcp-mux\r\n");
+			sessionDescription.append("a=control:trackID="+0+"\r\n");
+		}
 		if (mVideoStream != null) {
 			sessionDescription.append(mVideoStream.getSessionDescription());
+			// Clients that support it may multiplex RTP and RTCP on a single port (RFC 5761)
+			sessionDescription.append("a=rtcp-mux\r\n");
 			sessionDescription.append("a=control:trackID="+1+"\r\n");
-		}			
+		}
+		if (mDataStream != null) {
+			sessionDescription.append(mDataStream.getSessionDescription());
+			sessionDescription.append("a=rtcp-mux\r\n");
+			sessionDescription.append("a=control:trackID="+STREAM_DATA+"\r\n");
+		}
 		return sessionDescription.toString();
 	}
 
@@ -264,13 +456,15 @@ public class Session {
 	/** Returns an approximation of the bandwidth consumed by the session in bit per second. */
 	public long getBitrate() {
 		long sum = 0;
+		if (mAudioStream != null) sum += mAudioStream.getBitrate();
 		if (mVideoStream != null) sum += mVideoStream.getBitrate();
+		if (mDataStream != null) sum += mDataStream.getBitrate();
 		return sum;
 	}
 
 	/** Indicates if a track is currently running. */
 	public boolean isStreaming() {
-		return (mVideoStream!=null && mVideoStream.isStreaming());
+		return streamingTracks() > 0;
 	}
 
 	/**
@@ -301,8 +495,8 @@ public class Session {
 			RuntimeException,
 			IOException {
 
-		for (int id=0;id<2;id++) {
-			Stream stream = mVideoStream;
+		for (int id=0;id<TRACK_COUNT;id++) {
+			Stream stream = getTrack(id);
 			if (stream!=null && !stream.isStreaming()) {
 				try {
 					stream.configure();
@@ -357,17 +551,18 @@ public class Session {
 			UnknownHostException,
 			IOException {
 
-		Stream stream = mVideoStream;
+		Stream stream = getTrack(id);
 		if (stream!=null && !stream.isStreaming()) {
 			try {
 				InetAddress destination =  InetAddress.getByName(mDestination);
 				stream.setTimeToLive(mTimeToLive);
+				stream.setMtu(mMtu > 0 ? MtuProbe.clamp(mMtu, true) : MtuProbe.probe(destination, mMtu == MTU_JUMBO));
 				stream.setDestinationAddress(destination);
 				stream.start();
-				if (getTrack(1-id) == null || getTrack(1-id).isStreaming()) {
+				if (streamingTracks() == trackCount()) {
 					postSessionStarted();
 				}
-				if (getTrack(1-id) == null || !getTrack(1-id).isStreaming()) {
+				if (streamingTracks() == 1) {
 					mHandler.post(mUpdateBitrate);
 				}
 			} catch (UnknownHostException e) {
@@ -411,10 +606,13 @@ public class Session {
 		syncStart(1);
 		try {
 			syncStart(0);
+			syncStart(STREAM_DATA);
 		} catch (RuntimeException e) {
+			syncStop(0);
 			syncStop(1);
 			throw e;
 		} catch (IOException e) {
+			syncStop(0);
 			syncStop(1);
 			throw e;
 		}
@@ -436,7 +634,7 @@ public class Session {
 	 * @param id The id of the stream to stop
 	 **/	
 	private void syncStop(final int id) {
-		Stream stream = mVideoStream;
+		Stream stream = getTrack(id);
 		if (stream!=null) {
 			stream.stop();
 		}
@@ -446,13 +644,17 @@ public class Session {
 	public void syncStop() {
 		syncStop(0);
 		syncStop(1);
+		syncStop(STREAM_DATA);
 		postSessionStopped();
 	}
 
 
 	/** Deletes all existing tracks & release associated resources. */
 	public void release() {
+		removeAudioTrack();
 		removeVideoTrack();
+		removeDataTrack();
+		if (mFlow != null) mFlow.close();
 		mHandler.getLooper().quit();
 	}
 
@@ -526,11 +728,40 @@ public class Session {
 
 
 	public boolean trackExists(int id) {
-		return mVideoStream!=null;
+		return getTrack(id)!=null;
 	}
 
+	/** 
+	 * Returns the track {@link #STREAM_AUDIO}, {@link #STREAM_VIDEO} or {@link #STREAM_DATA}, 
+	 * the identifier is also the trackID in the session description.
+	 */
 	public Stream getTrack(int id) {
-		return mVideoStream;
+		switch (id) {
+		case STREAM_AUDIO:
+			return mAudioStream;
+		case STREAM_VIDEO:
+			return mVideoStream;
+		case STREAM_DATA:
+			return mDataStream;
+		default:
+			return null;
+		}
+	}
+
+	private int trackCount() {
+		int count = 0;
+		for (int id=0;id<TRACK_COUNT;id++) {
+			if (getTrack(id) != null) count++;
+		}
+		return count;
+	}
+
+	private int streamingTracks() {
+		int count = 0;
+		for (int id=0;id<TRACK_COUNT;id++) {
+			if (getTrack(id) != null && getTrack(id).isStreaming()) count++;
+		}
+		return count;
 	}
 
 }
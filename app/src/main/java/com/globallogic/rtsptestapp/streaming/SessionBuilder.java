@@ -24,6 +24,8 @@ import android.hardware.display.VirtualDisplay;
 import android.preference.PreferenceManager;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Call {@link #getInstance()} to get access to the SessionBuilder.
@@ -38,9 +40,28 @@ public class SessionBuilder {
 	/** Can be used with {@link #setVideoEncoder}. */
 	public final static int VIDEO_H264 = 1;
 
+	/** Can be used with {@link #setVideoEncoder}. */
+	public final static int VIDEO_H265 = 2;
+
+	/** Can be used with {@link #setVideoEncoder}. */
+	public final static int VIDEO_VP8 = 3;
+
+	/** Can be used with {@link #setVideoEncoder}. */
+	public final static int VIDEO_VP9 = 4;
+
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_NONE = 0;
+
+	/** Can be used with {@link #setAudioEncoder}. */
+	public final static int AUDIO_AAC = 5;
+
 
 	// Default configuration
 	private VideoQuality mVideoQuality = VideoQuality.DEFAULT_VIDEO_QUALITY;
+	private AudioQuality mAudioQuality = AudioQuality.DEFAULT_AUDIO_QUALITY;
+	private int mAudioEncoder = AUDIO_NONE;
+	private int mAudioPacketTime = AACPacketizer.DEFAULT_MAX_PTIME;
+	private boolean mTelemetry = false;
 	private Context mContext;
 	private int mVideoEncoder = VIDEO_H264;
 
@@ -52,6 +73,16 @@ public class SessionBuilder {
 	private String mDestination = null;
 	private Session.Callback mCallback = null;
 	private VirtualDisplay mVirtualDisplay;
+	private String mTrafficClass = BandwidthShaper.CLASS_DEFAULT;
+	private final Map<String, String> mClientClasses = new ConcurrentHashMap<>();
+	private long mMaxBitrate = 0;
+	private int mMtu = RtpSocket.MTU;
+	private NetworkImpairment mImpairment = null;
+	private boolean mRemoteImpairment = false;
+	private int mKeyFrameInterval = VideoStream.DEFAULT_KEY_FRAME_INTERVAL;
+	private int mPacketizerThreads = 1;
+	private int mCaptureTime = 0;
+	private EncoderProfile mEncoderProfile = EncoderProfile.DEFAULT;
 
 	// Removes the default public constructor
 	private SessionBuilder() {}
@@ -87,14 +118,40 @@ public class SessionBuilder {
 		session.setDestination(mDestination);
 		session.setTimeToLive(mTimeToLive);
 		session.setCallback(mCallback);
+		session.setMtu(mMtu);
+		session.setNetworkImpairment(mImpairment);
+		session.setBandwidthFlow(BandwidthShaper.getInstance().createFlow(mTrafficClass, mMaxBitrate));
+
+		switch (mAudioEncoder) {
+		case AUDIO_AAC:
+			AACStream audio = new AACStream();
+			audio.setAudioQuality(mAudioQuality);
+			audio.setMaxPacketTime(mAudioPacketTime);
+			audio.setDestinationPorts(5004);
+			session.addAudioTrack(audio);
+			break;
+		}
 
+		VideoStream stream = null;
 		switch (mVideoEncoder) {
 		case VIDEO_H264:
-			VideoStream stream = new VideoStream(mCamera);
+			stream = new VideoStream(mCamera);
+			break;
+		case VIDEO_H265:
+			stream = new H265Stream(mCamera);
+			break;
+		case VIDEO_VP8:
+			stream = new VP8Stream(mCamera);
+			break;
+		case VIDEO_VP9:
+			stream = new VP9Stream(mCamera);
+			break;
+		}
+
+		if (stream!=null) {
 			if (mContext!=null) 
 				stream.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
 			session.addVideoTrack(stream);
-			break;
 		}
 
 		if (session.getVideoTrack()!=null) {
@@ -102,9 +159,19 @@ public class SessionBuilder {
 			video.setVideoQuality(mVideoQuality);
 			video.setVirtualDisplay(mVirtualDisplay);
 			video.setPreviewOrientation(mOrientation);
+			video.setKeyFrameInterval(mKeyFrameInterval);
+			video.setPacketizerThreads(mPacketizerThreads);
+			video.setCaptureTime(mCaptureTime);
+			video.setEncoderProfile(mEncoderProfile);
 			video.setDestinationPorts(5006);
 		}
 
+		if (mTelemetry) {
+			TelemetryStream data = new TelemetryStream();
+			data.setDestinationPorts(5008);
+			session.addDataTrack(data);
+		}
+
 		return session;
 
 	}
@@ -137,6 +204,36 @@ public class SessionBuilder {
 	}
 
 
+	/** Sets the audio stream quality. */
+	public SessionBuilder setAudioQuality(AudioQuality quality) {
+		mAudioQuality = quality.clone();
+		return this;
+	}
+
+	/** Sets the audio encoder, {@link #AUDIO_NONE} (the default) for no audio. */
+	public SessionBuilder setAudioEncoder(int encoder) {
+		mAudioEncoder = encoder;
+		return this;
+	}
+
+	/** 
+	 * Sets how much audio a packet may carry, see {@link AudioStream#setMaxPacketTime(int)}.
+	 * @param ptime The duration in ms
+	 */
+	public SessionBuilder setAudioPacketTime(int ptime) {
+		mAudioPacketTime = ptime;
+		return this;
+	}
+
+	/** 
+	 * Adds a track that carries the navigation events published by the {@link TelemetryHub}.
+	 * Disabled by default.
+	 */
+	public SessionBuilder setTelemetryEnabled(boolean enabled) {
+		mTelemetry = enabled;
+		return this;
+	}
+
 	/** Sets the default video encoder. */
 	public SessionBuilder setVideoEncoder(int encoder) {
 		mVideoEncoder = encoder;
@@ -159,6 +256,101 @@ public class SessionBuilder {
 	}
 
 
+	/** 
+	 * Sets the traffic class of the session, see {@link BandwidthShaper}.
+	 * @param trafficClass The name of a class defined in the {@link BandwidthShaper} 
+	 */
+	public SessionBuilder setTrafficClass(String trafficClass) {
+		mTrafficClass = trafficClass;
+		return this;
+	}
+
+	/** 
+	 * Sets the traffic class of the sessions of a client, the operator console for example. 
+	 * Clients can only lower the priority of their sessions in the URI, see {@link UriParser}.
+	 * @param address The address of the client
+	 * @param trafficClass The name of a class defined in the {@link BandwidthShaper}, or null to use the default one
+	 */
+	public SessionBuilder setClientTrafficClass(String address, String trafficClass) {
+		if (trafficClass != null) mClientClasses.put(address, trafficClass);
+		else mClientClasses.remove(address);
+		return this;
+	}
+
+	/** 
+	 * Caps the bitrate of all the streams of the session. 
+	 * @param bitrate The maximum bitrate in bit/s, 0 means no limit 
+	 */
+	public SessionBuilder setMaxBitrate(long bitrate) {
+		mMaxBitrate = bitrate;
+		return this;
+	}
+
+	/** 
+	 * Sets the MTU of the path to the client, RTP packets will be sized accordingly.
+	 * @param mtu The MTU in bytes, {@link Session#MTU_AUTO} or {@link Session#MTU_JUMBO}
+	 */
+	public SessionBuilder setMtu(int mtu) {
+		mMtu = mtu;
+		return this;
+	}
+
+	/** 
+	 * Sends the packets of the sessions through an emulated bad network, for testing purposes. 
+	 * @param impairment The emulated network, or null to send packets directly
+	 */
+	public SessionBuilder setNetworkImpairment(NetworkImpairment impairment) {
+		mImpairment = impairment;
+		return this;
+	}
+
+	/** 
+	 * Lets clients send their packets through an emulated bad network with the impair parameter 
+	 * of the URI, see {@link UriParser}. Only meant for test setups, disabled by default.
+	 */
+	public SessionBuilder setRemoteImpairmentAllowed(boolean allowed) {
+		mRemoteImpairment = allowed;
+		return this;
+	}
+
+	/** 
+	 * Sets the interval between two key frames the encoder produces on its own. 
+	 * Receivers that lost packets ask for a key frame with RTCP, so it can be long.
+	 * @param interval The interval in seconds
+	 */
+	public SessionBuilder setKeyFrameInterval(int interval) {
+		mKeyFrameInterval = interval;
+		return this;
+	}
+
+	/** 
+	 * Sets the number of threads that packetize the video stream. More than one is only 
+	 * worth it for very high bitrates, when a single thread can't keep up with the encoder.
+	 * @param threads The number of threads, 1 by default
+	 */
+	public SessionBuilder setPacketizerThreads(int threads) {
+		mPacketizerThreads = threads;
+		return this;
+	}
+
+	/**
+	 * Stamps the frames with their capture time, so that receivers can measure the latency.
+	 * @param flags {@link CaptureTime#SEI}, {@link CaptureTime#EXTENSION}, both or 0 (the default) to disable it
+	 */
+	public SessionBuilder setCaptureTime(int flags) {
+		mCaptureTime = flags;
+		return this;
+	}
+
+	/**
+	 * Sets the settings of the video encoder, see {@link EncoderProfile}.
+	 * @param profile {@link EncoderProfile#DEFAULT} by default
+	 */
+	public SessionBuilder setEncoderProfile(EncoderProfile profile) {
+		mEncoderProfile = profile;
+		return this;
+	}
+
 	public SessionBuilder setVirtualDisplay(VirtualDisplay display) {
 		mVirtualDisplay = display;
 		return this;
@@ -207,6 +399,26 @@ public class SessionBuilder {
 		return mVideoEncoder;
 	}
 
+	/** Returns the audio encoder set with {@link #setAudioEncoder(int)}. */
+	public int getAudioEncoder() {
+		return mAudioEncoder;
+	}
+
+	/** Returns the AudioQuality set with {@link #setAudioQuality(AudioQuality)}. */
+	public AudioQuality getAudioQuality() {
+		return mAudioQuality;
+	}
+
+	/** Returns the duration set with {@link #setAudioPacketTime(int)}. */
+	public int getAudioPacketTime() {
+		return mAudioPacketTime;
+	}
+
+	/** Returns the state set with {@link #setTelemetryEnabled(boolean)}. */
+	public boolean getTelemetryEnabled() {
+		return mTelemetry;
+	}
+
 	/** Returns the VideoQuality set with {@link #setVideoQuality(VideoQuality)}. */
 	public VideoQuality getVideoQuality() {
 		return mVideoQuality;
@@ -217,6 +429,60 @@ public class SessionBuilder {
 		return mFlash;
 	}
 
+	/** Returns the traffic class set with {@link #setTrafficClass(String)}. */
+	public String getTrafficClass() {
+		return mTrafficClass;
+	}
+
+	/** 
+	 * Returns the traffic class set with {@link #setClientTrafficClass(String, String)} for a client, 
+	 * or the one set with {@link #setTrafficClass(String)} if there is none.
+	 */
+	public String getTrafficClass(String address) {
+		String trafficClass = address != null ? mClientClasses.get(address) : null;
+		return trafficClass != null ? trafficClass : mTrafficClass;
+	}
+
+	/** Returns the maximum bitrate set with {@link #setMaxBitrate(long)}. */
+	public long getMaxBitrate() {
+		return mMaxBitrate;
+	}
+
+	/** Returns the emulated network set with {@link #setNetworkImpairment(NetworkImpairment)}. */
+	public NetworkImpairment getNetworkImpairment() {
+		return mImpairment;
+	}
+
+	/** Returns the flag set with {@link #setRemoteImpairmentAllowed(boolean)}. */
+	public boolean isRemoteImpairmentAllowed() {
+		return mRemoteImpairment;
+	}
+
+	/** Returns the MTU set with {@link #setMtu(int)}. */
+	public int getMtu() {
+		return mMtu;
+	}
+
+	/** Returns the interval set with {@link #setKeyFrameInterval(int)}. */
+	public int getKeyFrameInterval() {
+		return mKeyFrameInterval;
+	}
+
+	/** Returns the number of threads set with {@link #setPacketizerThreads(int)}. */
+	public int getPacketizerThreads() {
+		return mPacketizerThreads;
+	}
+
+	/** Returns the flags set with {@link #setCaptureTime(int)}. */
+	public int getCaptureTime() {
+		return mCaptureTime;
+	}
+
+	/** Returns the profile set with {@link #setEncoderProfile(EncoderProfile)}. */
+	public EncoderProfile getEncoderProfile() {
+		return mEncoderProfile;
+	}
+
 	/** Returns the time to live set with {@link #setTimeToLive(int)}. */
 	public int getTimeToLive() {
 		return mTimeToLive;
@@ -224,18 +490,33 @@ public class SessionBuilder {
 
 	/** Returns a new {@link SessionBuilder} with the same configuration. */
 	public SessionBuilder clone() {
-		return new SessionBuilder()
+		SessionBuilder builder = new SessionBuilder()
 		.setDestination(mDestination)
 		.setOrigin(mOrigin)
 		.setVirtualDisplay(mVirtualDisplay)
 		.setPreviewOrientation(mOrientation)
 		.setVideoQuality(mVideoQuality)
+		.setAudioQuality(mAudioQuality)
+		.setAudioEncoder(mAudioEncoder)
+		.setAudioPacketTime(mAudioPacketTime)
+		.setTelemetryEnabled(mTelemetry)
 		.setVideoEncoder(mVideoEncoder)
 		.setFlashEnabled(mFlash)
 		.setCamera(mCamera)
 		.setTimeToLive(mTimeToLive)
+		.setTrafficClass(mTrafficClass)
+		.setMaxBitrate(mMaxBitrate)
+		.setMtu(mMtu)
+		.setNetworkImpairment(mImpairment)
+		.setRemoteImpairmentAllowed(mRemoteImpairment)
+		.setKeyFrameInterval(mKeyFrameInterval)
+		.setPacketizerThreads(mPacketizerThreads)
+		.setCaptureTime(mCaptureTime)
+		.setEncoderProfile(mEncoderProfile)
 		.setContext(mContext)
 		.setCallback(mCallback);
+		builder.mClientClasses.putAll(mClientClasses);
+		return builder;
 	}
 
 }
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+/**
+ * Rewrites the VUI of an H.264 SPS (ITU-T H.264, section 7.3.2.1.1 and annex E) so that 
+ * decoders know that frames can be output as soon as they are decoded.
+ * 
+ * Without bitstream_restriction in the VUI, a decoder has to assume that frames may be 
+ * reordered and usually fills its whole DPB before it outputs the first frame. We never use 
+ * B-frames, so the rewritten SPS declares max_num_reorder_frames = 0 and the smallest 
+ * max_dec_frame_buffering allowed by max_num_ref_frames. Every other field is copied as it is.
+ */
+public class SpsRewriter {
+
+	public final static String TAG = "SpsRewriter";
+
+	/** Profiles whose SPS contains chroma_format_idc and the bit depths. */
+	private final static int[] HIGH_PROFILES = {100, 110, 122, 244, 44, 83, 86, 118, 128, 138, 139, 134, 135};
+
+	/**
+	 * Rewrites the SPS.
+	 * @param sps The SPS, its NAL header included, with the emulation prevention bytes
+	 * @return The new SPS, or the same array if it could not be parsed or did not need to be changed
+	 */
+	public static byte[] rewrite(byte[] sps) {
+		try {
+			BitReader in = new BitReader(unescape(sps, 1));
+			BitWriter out = new BitWriter(sps.length+16);
+			if (!rewrite(in, out)) return sps;
+			byte[] rbsp = out.toByteArray();
+			byte[] escaped = escape(rbsp);
+			byte[] nal = new byte[escaped.length+1];
+			nal[0] = sps[0];
+			System.arraycopy(escaped, 0, nal, 1, escaped.length);
+			return nal;
+		} catch (RuntimeException e) {
+			// The SPS uses something we don't know about, the decoder will have to deal with it
+			Log.w(TAG, "Could not parse the SPS: "+e);
+			return sps;
+		}
+	}
+
+	/** @return False if the SPS already declares what we would write. */
+	private static boolean rewrite(BitReader in, BitWriter out) {
+		int profile = in.copyBits(out, 8);
+		in.copyBits(out, 16); // constraint_set flags, reserved_zero_2bits, level_idc
+		in.copyUE(out); // seq_parameter_set_id
+
+		for (int p : HIGH_PROFILES) {
+			if (p != profile) continue;
+			int chroma = in.copyUE(out); // chroma_format_idc
+			if (chroma == 3) in.copyBits(out, 1); // separate_colour_plane_flag
+			in.copyUE(out); // bit_depth_luma_minus8
+			in.copyUE(out); // bit_depth_chroma_minus8
+			in.copyBits(out, 1); // qpprime_y_zero_transform_bypass_flag
+			if (in.copyBits(out, 1) == 1) { // seq_scaling_matrix_present_flag
+				for (int i=0; i<(chroma != 3 ? 8 : 12); i++) {
+					if (in.copyBits(out, 1) == 1) copyScalingList(in, out, i<6 ? 16 : 64);
+				}
+			}
+			break;
+		}
+
+		in.copyUE(out); // log2_max_frame_num_minus4
+		int pocType = in.copyUE(out);
+		if (pocType == 0) {
+			in.copyUE(out); // log2_max_pic_order_cnt_lsb_minus4
+		} else if (pocType == 1) {
+			in.copyBits(out, 1); // delta_pic_order_always_zero_flag
+			in.copySE(out); // offset_for_non_ref_pic
+			in.copySE(out); // offset_for_top_to_bottom_field
+			int cycle = in.copyUE(out);
+			for (int i=0; i<cycle; i++) in.copySE(out); // offset_for_ref_frame
+		}
+		int refFrames = in.copyUE(out); // max_num_ref_frames
+		in.copyBits(out, 1); // gaps_in_frame_num_value_allowed_flag
+		in.copyUE(out); // pic_width_in_mbs_minus1
+		in.copyUE(out); // pic_height_in_map_units_minus1
+		if (in.copyBits(out, 1) == 0) in.copyBits(out, 1); // frame_mbs_only_flag, mb_adaptive_frame_field_flag
+		in.copyBits(out, 1); // direct_8x8_inference_flag
+		if (in.copyBits(out, 1) == 1) { // frame_cropping_flag
+			for (int i=0; i<4; i++) in.copyUE(out);
+		}
+
+		// max_dec_frame_buffering can't be lower than max_num_ref_frames
+		int buffering = Math.max(1, refFrames);
+
+		if (in.readBits(1) == 0) {
+			// No VUI, we add one that only contains bitstream_restriction
+			out.writeBits(1, 1);
+			out.writeBits(0, 8); // aspect ratio, overscan, video signal, chroma loc, timing, NAL HRD, VCL HRD, pic_struct
+			writeBitstreamRestriction(out, buffering);
+		} else {
+			out.writeBits(1, 1);
+			if (in.copyBits(out, 1) == 1) { // aspect_ratio_info_present_flag
+				if (in.copyBits(out, 8) == 255) in.copyBits(out, 32); // aspect_ratio_idc, sar_width, sar_height
+			}
+			if (in.copyBits(out, 1) == 1) in.copyBits(out, 1); // overscan_info_present_flag, overscan_appropriate_flag
+			if (in.copyBits(out, 1) == 1) { // video_signal_type_present_flag
+				in.copyBits(out, 4); // video_format, video_full_range_flag
+				if (in.copyBits(out, 1) == 1) in.copyBits(out, 24); // colour_description_present_flag, colour description
+			}
+			if (in.copyBits(out, 1) == 1) { // chroma_loc_info_present_flag
+				in.copyUE(out);
+				in.copyUE(out);
+			}
+			if (in.copyBits(out, 1) == 1) { // timing_info_present_flag
+				in.copyBits(out, 32); // num_units_in_tick
+				in.copyBits(out, 32); // time_scale
+				in.copyBits(out, 1); // fixed_frame_rate_flag
+			}
+			int nalHrd = in.copyBits(out, 1);
+			if (nalHrd == 1) copyHrdParameters(in, out);
+			int vclHrd = in.copyBits(out, 1);
+			if (vclHrd == 1) copyHrdParameters(in, out);
+			if (nalHrd == 1 || vclHrd == 1) in.copyBits(out, 1); // low_delay_hrd_flag
+			in.copyBits(out, 1); // pic_struct_present_flag
+
+			if (in.readBits(1) == 1) {
+				// bitstream_restriction_flag is already there, we patch it
+				out.writeBits(1, 1);
+				in.copyBits(out, 1); // motion_vectors_over_pic_boundaries_flag
+				in.copyUE(out); // max_bytes_per_pic_denom
+				in.copyUE(out); // max_bits_per_mb_denom
+				in.copyUE(out); // log2_max_mv_length_horizontal
+				in.copyUE(out); // log2_max_mv_length_vertical
+				int reorder = in.readUE();
+				int dpb = in.readUE();
+				if (reorder == 0 && dpb <= buffering) return false;
+				out.writeUE(0);
+				out.writeUE(buffering);
+			} else {
+				writeBitstreamRestriction(out, buffering);
+			}
+		}
+
+		// rbsp_trailing_bits
+		out.writeBits(1, 1);
+		out.align();
+		return true;
+	}
+
+	/** Writes bitstream_restriction_flag and the fields that follow with the values x264 and most encoders use. */
+	private static void writeBitstreamRestriction(BitWriter out, int buffering) {
+		out.writeBits(1, 1); // bitstream_restriction_flag
+		out.writeBits(1, 1); // motion_vectors_over_pic_boundaries_flag
+		out.writeUE(2); // max_bytes_per_pic_denom
+		out.writeUE(1); // max_bits_per_mb_denom
+		out.writeUE(16); // log2_max_mv_length_horizontal
+		out.writeUE(16); // log2_max_mv_length_vertical
+		out.writeUE(0); // max_num_reorder_frames
+		out.writeUE(buffering); // max_dec_frame_buffering
+	}
+
+	private static void copyScalingList(BitReader in, BitWriter out, int size) {
+		int last = 8, next = 8;
+		for (int j=0; j<size; j++) {
+			if (next != 0) {
+				int delta = in.copySE(out);
+				next = (last + delta + 256) % 256;
+			}
+			last = next == 0 ? last : next;
+		}
+	}
+
+	/** Annex E.1.2. */
+	private static void copyHrdParameters(BitReader in, BitWriter out) {
+		int count = in.copyUE(out)+1; // cpb_cnt_minus1
+		in.copyBits(out, 8); // bit_rate_scale, cpb_size_scale
+		for (int i=0; i<count; i++) {
+			in.copyUE(out); // bit_rate_value_minus1
+			in.copyUE(out); // cpb_size_value_minus1
+			in.copyBits(out, 1); // cbr_flag
+		}
+		in.copyBits(out, 20); // initial_cpb_removal_delay_length_minus1, cpb_removal_delay_length_minus1, dpb_output_delay_length_minus1, time_offset_length
+	}
+
+	/** Removes the emulation prevention bytes (0x000003) of a NAL unit. */
+	static byte[] unescape(byte[] nal, int offset) {
+		byte[] rbsp = new byte[nal.length-offset];
+		int length = 0, zeros = 0;
+		for (int i=offset; i<nal.length; i++) {
+			if (zeros >= 2 && nal[i] == 3) {
+				zeros = 0;
+				continue;
+			}
+			zeros = nal[i] == 0 ? zeros+1 : 0;
+			rbsp[length++] = nal[i];
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(rbsp, 0, result, 0, length);
+		return result;
+	}
+
+	/** Inserts the emulation prevention bytes, so that no start code appears in the NAL unit. */
+	static byte[] escape(byte[] rbsp) {
+		byte[] nal = new byte[rbsp.length*3/2+1];
+		int length = 0, zeros = 0;
+		for (byte b : rbsp) {
+			if (zeros >= 2 && (b & 0xFF) <= 3) {
+				nal[length++] = 3;
+				zeros = 0;
+			}
+			zeros = b == 0 ? zeros+1 : 0;
+			nal[length++] = b;
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(nal, 0, result, 0, length);
+		return result;
+	}
+
+	/** Reads bits and Exp-Golomb codes, most significant bit first. */
+	private static class BitReader {
+
+		private final byte[] data;
+		private int bit = 0;
+
+		BitReader(byte[] data) {
+			this.data = data;
+		}
+
+		int readBits(int count) {
+			int value = 0;
+			for (int i=0; i<count; i++) {
+				if (bit >= data.length*8) throw new IllegalStateException("End of the SPS");
+				value = (value<<1) | ((data[bit>>3] >> (7-(bit&7))) & 1);
+				bit++;
+			}
+			return value;
+		}
+
+		/** ue(v), section 9.1. */
+		int readUE() {
+			int zeros = 0;
+			while (readBits(1) == 0) {
+				if (++zeros > 31) throw new IllegalStateException("Invalid Exp-Golomb code");
+			}
+			return (int) ((1L<<zeros) - 1 + readBitsLong(zeros));
+		}
+
+		private long readBitsLong(int count) {
+			return count > 16 ? ((long) readBits(count-16) << 16) | readBits(16) : readBits(count);
+		}
+
+		int copyBits(BitWriter out, int count) {
+			int value = 0;
+			// Fields of more than 16 bits are only copied, their value does not matter
+			while (count > 0) {
+				int n = Math.min(count, 16);
+				value = readBits(n);
+				out.writeBits(value, n);
+				count -= n;
+			}
+			return value;
+		}
+
+		int copyUE(BitWriter out) {
+			int value = readUE();
+			out.writeUE(value);
+			return value;
+		}
+
+		/** se(v), section 9.1.1. */
+		int copySE(BitWriter out) {
+			int value = readUE();
+			out.writeUE(value);
+			return (value & 1) == 1 ? (value+1)/2 : -(value/2);
+		}
+
+	}
+
+	/** Writes bits and Exp-Golomb codes, most significant bit first. */
+	private static class BitWriter {
+
+		private byte[] data;
+		private int bit = 0;
+
+		BitWriter(int capacity) {
+			data = new byte[capacity];
+		}
+
+		void writeBits(int value, int count) {
+			for (int i=count-1; i>=0; i--) {
+				if (bit >= data.length*8) {
+					byte[] larger = new byte[data.length*2];
+					System.arraycopy(data, 0, larger, 0, data.length);
+					data = larger;
+				}
+				if (((value >> i) & 1) == 1) data[bit>>3] |= 1 << (7-(bit&7));
+				bit++;
+			}
+		}
+
+		void writeUE(int value) {
+			long code = value+1L;
+			int length = 63-Long.numberOfLeadingZeros(code);
+			writeBits(0, length);
+			if (length >= 16) {
+				writeBits((int) (code >> 16), length+1-16);
+				writeBits((int) (code & 0xFFFF), 16);
+			} else {
+				writeBits((int) code, length+1);
+			}
+		}
+
+		void align() {
+			while ((bit & 7) != 0) writeBits(0, 1);
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[bit>>3];
+			System.arraycopy(data, 0, result, 0, result.length);
+			return result;
+		}
+
+	}
+
+}
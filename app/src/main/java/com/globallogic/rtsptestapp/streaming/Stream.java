@@ -81,6 +81,18 @@ public interface Stream {
 	 */ 
 	public void setOutputStream(OutputStream stream, byte channelIdentifier);
 	
+	/**
+	 * Enables RTP and RTCP multiplexing on a single port (RFC 5761).
+	 * Must be called before {@link #getLocalPorts()}.
+	 */
+	public void setRtcpMux(boolean mux);
+
+	/**
+	 * Sets the MTU of the path to the destination, RTP packets are sized accordingly.
+	 * @param mtu The MTU in bytes, IP and UDP headers included
+	 */
+	public void setMtu(int mtu);
+
 	/** 
 	 * Returns a pair of source ports, the first one is the 
 	 * one used for RTP and the second one is used for RTCP. 
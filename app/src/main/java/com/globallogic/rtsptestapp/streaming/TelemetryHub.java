@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes the state of the navigation to the {@link TelemetryStream} of every client, so that 
+ * clients can render turn instructions and ETA natively instead of reading them in the video.<br />
+ *
+ * Each event is encoded once in a compact binary message, big endian, starting with a byte 
+ * holding the version of the format (4 high bits) and the type of the message (4 low bits):
+ * <ul>
+ * <li>{@link #TYPE_LOCATION}: latitude and longitude in 1e-7 degrees (int32 each), 
+ * bearing in 0.01 degrees (uint16), speed in cm/s (uint16).</li>
+ * <li>{@link #TYPE_PROGRESS}: distance remaining in m (uint32), duration remaining in s (uint32), 
+ * distance remaining on the current step in m (uint32), fraction of the route traveled in 1/65535 (uint16), 
+ * 1 if arrived or else 0 (uint8).</li>
+ * <li>{@link #TYPE_MANEUVER}: distance to the maneuver in m (uint32), then the type, the modifier 
+ * (uint8 length + UTF-8 each) and the instruction (uint16 length + UTF-8).</li>
+ * </ul>
+ * The last message of each type is kept, new streams start with them and they are sent again 
+ * periodically, so that a client recovers from a lost packet. 
+ * Call {@link #getInstance()} to get access to the TelemetryHub.
+ */
+public class TelemetryHub {
+
+	public final static String TAG = "TelemetryHub";
+
+	/** Version of the format of the messages. */
+	public final static int VERSION = 1;
+
+	public final static int TYPE_LOCATION = 1;
+	public final static int TYPE_PROGRESS = 2;
+	public final static int TYPE_MANEUVER = 3;
+
+	/** Longer instructions are truncated, so that a message always fits in a packet. */
+	private final static int MAX_TEXT_LENGTH = 512;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/** An encoded message. */
+	public static class Message {
+
+		public final int type;
+
+		/** When the event happened in ns, on the {@link System#nanoTime()} time base. */
+		public final long timestamp;
+
+		public final byte[] data;
+
+		Message(int type, long timestamp, byte[] data) {
+			this.type = type;
+			this.timestamp = timestamp;
+			this.data = data;
+		}
+
+	}
+
+	public interface Listener {
+		/** Called from the thread that published the event, must not block. */
+		void onMessage(Message message);
+	}
+
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+	private final Message[] mLast = new Message[TYPE_MANEUVER+1];
+
+	// The TelemetryHub implements the singleton pattern
+	private static volatile TelemetryHub sInstance = null;
+
+	private TelemetryHub() {}
+
+	/**
+	 * Returns a reference to the {@link TelemetryHub}.
+	 * @return The reference to the {@link TelemetryHub}
+	 */
+	public static TelemetryHub getInstance() {
+		if (sInstance == null) {
+			synchronized (TelemetryHub.class) {
+				if (sInstance == null) {
+					sInstance = new TelemetryHub();
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Publishes the location of the vehicle.
+	 * @param latitude In degrees
+	 * @param longitude In degrees
+	 * @param bearing In degrees
+	 * @param speed In m/s
+	 */
+	public void publishLocation(double latitude, double longitude, float bearing, float speed) {
+		ByteBuffer buffer = ByteBuffer.allocate(13);
+		buffer.put(header(TYPE_LOCATION));
+		buffer.putInt((int) Math.round(latitude*1e7));
+		buffer.putInt((int) Math.round(longitude*1e7));
+		buffer.putShort((short) clamp(Math.round(((bearing%360)+360)%360*100), 0xFFFF));
+		buffer.putShort((short) clamp(Math.round(speed*100), 0xFFFF));
+		publish(TYPE_LOCATION, buffer.array());
+	}
+
+	/**
+	 * Publishes the progress along the route.
+	 * @param distanceRemaining Distance to the destination in m
+	 * @param durationRemaining Estimated time to the destination in s
+	 * @param stepDistanceRemaining Distance to the end of the current step in m
+	 * @param fractionTraveled Between 0 and 1
+	 * @param arrived True once the destination has been reached
+	 */
+	public void publishProgress(double distanceRemaining, double durationRemaining, double stepDistanceRemaining, float fractionTraveled, boolean arrived) {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.put(header(TYPE_PROGRESS));
+		buffer.putInt((int) clamp(Math.round(distanceRemaining), 0xFFFFFFFFL));
+		buffer.putInt((int) clamp(Math.round(durationRemaining), 0xFFFFFFFFL));
+		buffer.putInt((int) clamp(Math.round(stepDistanceRemaining), 0xFFFFFFFFL));
+		buffer.putShort((short) clamp(Math.round(fractionTraveled*65535.0), 0xFFFF));
+		buffer.put((byte) (arrived ? 1 : 0));
+		publish(TYPE_PROGRESS, buffer.array());
+	}
+
+	/**
+	 * Publishes the next maneuver.
+	 * @param distance Distance to the maneuver in m
+	 * @param type The type of maneuver, like "turn", may be null
+	 * @param modifier The direction, like "left", may be null
+	 * @param instruction The instruction as displayed, may be null
+	 */
+	public void publishManeuver(double distance, String type, String modifier, String instruction) {
+		byte[] t = text(type, 0xFF), m = text(modifier, 0xFF), i = text(instruction, MAX_TEXT_LENGTH);
+		ByteBuffer buffer = ByteBuffer.allocate(1+4+1+t.length+1+m.length+2+i.length);
+		buffer.put(header(TYPE_MANEUVER));
+		buffer.putInt((int) clamp(Math.round(distance), 0xFFFFFFFFL));
+		buffer.put((byte) t.length).put(t);
+		buffer.put((byte) m.length).put(m);
+		buffer.putShort((short) i.length).put(i);
+		publish(TYPE_MANEUVER, buffer.array());
+	}
+
+	/** Forgets the last messages, when the navigation stops. */
+	public synchronized void clear() {
+		for (int i=0; i<mLast.length; i++) mLast[i] = null;
+	}
+
+	/** Returns the last message of each type. */
+	public synchronized List<Message> getSnapshot() {
+		List<Message> snapshot = new ArrayList<>(mLast.length);
+		for (Message message : mLast) {
+			if (message != null) snapshot.add(message);
+		}
+		return snapshot;
+	}
+
+	private void publish(int type, byte[] data) {
+		Message message = new Message(type, System.nanoTime(), data);
+		synchronized (this) {
+			mLast[type] = message;
+		}
+		for (Listener listener : mListeners) {
+			listener.onMessage(message);
+		}
+	}
+
+	private static byte header(int type) {
+		return (byte) (VERSION<<4 | type);
+	}
+
+	private static long clamp(long value, long max) {
+		return Math.max(0, Math.min(max, value));
+	}
+
+	/** Encodes a string in UTF-8, truncated without cutting a character in two. */
+	private static byte[] text(String str, int max) {
+		if (str == null) return new byte[0];
+		byte[] bytes = str.getBytes(UTF8);
+		if (bytes.length <= max) return bytes;
+		int length = max;
+		while (length > 0 && (bytes[length]&0xC0) == 0x80) length--;
+		byte[] truncated = new byte[length];
+		System.arraycopy(bytes, 0, truncated, 0, length);
+		return truncated;
+	}
+
+}
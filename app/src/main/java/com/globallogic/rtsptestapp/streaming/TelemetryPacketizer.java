@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends each message of the {@link TelemetryHub} in its own RTP packet, with the marker bit set. 
+ * The RTP clock runs at 1 kHz. When no message of a type has been sent for {@link #REFRESH_INTERVAL} ms, 
+ * the last message of that type is sent again, so that a lost message is repaired even while 
+ * messages of other types keep coming.
+ */
+public class TelemetryPacketizer extends AbstractPacketizer implements Runnable, TelemetryHub.Listener {
+
+	public final static String TAG = "TelemetryPacketizer";
+
+	/** Clock of the RTP stream in Hz. */
+	public final static int CLOCK = 1000;
+
+	/** The last message of a type is sent again after that long without any message of that type, in ms. */
+	public final static long REFRESH_INTERVAL = 1000;
+
+	private Thread t = null;
+	private final LinkedBlockingQueue<TelemetryHub.Message> queue = new LinkedBlockingQueue<>();
+
+	/** When the last message of each type was sent in ns, 0 if none has been sent yet. */
+	private final long[] sentAt = new long[TelemetryHub.TYPE_MANEUVER+1];
+	private long lastTimestamp = 0;
+
+	public TelemetryPacketizer() {
+		super();
+		socket.setClockFrequency(CLOCK);
+	}
+
+	public void start() {
+		if (t == null) {
+			queue.clear();
+			for (int i=0; i<sentAt.length; i++) sentAt[i] = 0;
+			TelemetryHub.getInstance().addListener(this);
+			t = new Thread(this, TAG);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			TelemetryHub.getInstance().removeListener(this);
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	@Override
+	public void onMessage(TelemetryHub.Message message) {
+		queue.offer(message);
+	}
+
+	public void run() {
+		Log.d(TAG,"Telemetry packetizer started !");
+		try {
+			// The client gets the current state right away
+			long next = refresh();
+			while (!Thread.interrupted()) {
+				TelemetryHub.Message message = queue.poll(Math.max(0, next-System.nanoTime()), TimeUnit.NANOSECONDS);
+				if (message != null) send(message, message.timestamp);
+				next = refresh();
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+		Log.d(TAG,"Telemetry packetizer stopped !");
+	}
+
+	/** 
+	 * Sends again the last message of each type that has not been sent for {@link #REFRESH_INTERVAL}.
+	 * @return When the next message will have to be sent again, on the {@link System#nanoTime()} time base
+	 */
+	private long refresh() throws IOException, InterruptedException {
+		long now = System.nanoTime(), interval = REFRESH_INTERVAL*1000000L, next = now+interval;
+		for (TelemetryHub.Message message : TelemetryHub.getInstance().getSnapshot()) {
+			if (sentAt[message.type] == 0 || now-sentAt[message.type] >= interval) {
+				send(message, now);
+			}
+			next = Math.min(next, sentAt[message.type]+interval);
+		}
+		return next;
+	}
+
+	private void send(TelemetryHub.Message message, long timestamp) throws IOException, InterruptedException {
+		sentAt[message.type] = System.nanoTime();
+		if (message.data.length > maxPacketSize-rtphl) {
+			Log.e(TAG, "Message too long: "+message.data.length+" bytes");
+			return;
+		}
+		// Messages sent again have the current time, the timestamps of the stream must never go back
+		timestamp = Math.max(timestamp, lastTimestamp);
+		lastTimestamp = timestamp;
+		buffer = socket.requestBuffer();
+		System.arraycopy(message.data, 0, buffer, rtphl, message.data.length);
+		socket.updateTimestamp(timestamp);
+		socket.markNextPacket();
+		super.send(rtphl+message.data.length);
+	}
+
+}
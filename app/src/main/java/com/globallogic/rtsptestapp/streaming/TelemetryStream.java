@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * An application data track that carries the navigation events published by the {@link TelemetryHub}, 
+ * packetized by a {@link TelemetryPacketizer}. It is described in the SDP as an "application" media 
+ * next to the video, clients that don't know it simply don't set it up.
+ */
+public class TelemetryStream extends MediaStream {
+
+	public final static String TAG = "TelemetryStream";
+
+	/** Encoding name of the payload in the SDP, the format is described in {@link TelemetryHub}. */
+	public final static String ENCODING_NAME = "x-nav-telemetry";
+
+	public TelemetryStream() {
+		super();
+		mPacketizer = new TelemetryPacketizer();
+	}
+
+	public synchronized void start() throws IllegalStateException, IOException {
+		if (!mStreaming) {
+			configure();
+			super.start();
+		}
+	}
+
+	/** Stops the stream, there is no encoder to release. */
+	public synchronized void stop() {
+		if (mStreaming) {
+			mPacketizer.stop();
+			mStreaming = false;
+		}
+	}
+
+	/** There is nothing to encode, the packetizer reads the {@link TelemetryHub}. */
+	@Override
+	protected void encodeWithMediaCodec() throws IOException {
+		Log.d(TAG,"Telemetry streamed from the TelemetryHub");
+		mPacketizer.start();
+		mStreaming = true;
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
+	 */
+	public String getSessionDescription() {
+		return "m=application "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 98\r\n" +
+				"a=rtpmap:98 "+ENCODING_NAME+"/"+TelemetryPacketizer.CLOCK+"\r\n" +
+				"a=fmtp:98 version="+TelemetryHub.VERSION+"\r\n";
+	}
+
+}
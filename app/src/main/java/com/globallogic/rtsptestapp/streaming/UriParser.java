@@ -28,7 +28,12 @@ import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.util.Set;
 
+import static com.globallogic.rtsptestapp.streaming.SessionBuilder.AUDIO_AAC;
+import static com.globallogic.rtsptestapp.streaming.SessionBuilder.AUDIO_NONE;
 import static com.globallogic.rtsptestapp.streaming.SessionBuilder.VIDEO_H264;
+import static com.globallogic.rtsptestapp.streaming.SessionBuilder.VIDEO_H265;
+import static com.globallogic.rtsptestapp.streaming.SessionBuilder.VIDEO_VP8;
+import static com.globallogic.rtsptestapp.streaming.SessionBuilder.VIDEO_VP9;
 import static com.globallogic.rtsptestapp.streaming.SessionBuilder.VIDEO_NONE;
 
 
@@ -45,14 +50,41 @@ public class UriParser {
 	 * <ul><li>rtsp://xxx.xxx.xxx.xxx:8086?h264&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h263&camera=front&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264=200-20-320-240</li>
-	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li></ul>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h265=1000-30-1280-720</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?vp8=1000-30-1280-720</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264&aac=64-48000&ptime=60</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264&class=passenger&ratecap=2000</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264&mtu=auto&gop=10</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264&capturetime=ext</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264&profile=ultra-low-latency</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264=500-15-320-240&telemetry=on</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264&impair=loss:2,delay:50:10,seed:42</li></ul>
 	 * @param uri The URI
 	 * @throws IllegalStateException
 	 * @throws IOException
 	 * @return A Session configured according to the URI
 	 */
 	public static Session parse(String uri) throws IllegalStateException, IOException {
+		return parse(uri, null);
+	}
+
+	/**
+	 * Configures a Session according to the given URI, see {@link #parse(String)}.
+	 * The session gets the traffic class the application gave to the client with 
+	 * {@link SessionBuilder#setClientTrafficClass(String, String)}, the URI can only lower it.
+	 * @param uri The URI
+	 * @param client The address of the client, or null if unknown
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 * @return A Session configured according to the URI
+	 */
+	public static Session parse(String uri, String client) throws IllegalStateException, IOException {
 		SessionBuilder builder = SessionBuilder.getInstance().clone();
+		builder.setTrafficClass(builder.getTrafficClass(client));
+		BandwidthShaper.TrafficClass assigned = BandwidthShaper.getInstance().getTrafficClass(builder.getTrafficClass());
+		// Like BandwidthShaper.createFlow(), an unknown class is the default one
+		if (assigned == null) assigned = BandwidthShaper.getInstance().getTrafficClass(BandwidthShaper.CLASS_DEFAULT);
 		byte audioApi = 0, videoApi = 0;
 
         String query = URI.create(uri).getQuery();
@@ -75,7 +107,7 @@ public class UriParser {
 
 		if (params.size()>0) {
 
-			builder.setVideoEncoder(VIDEO_NONE);
+			builder.setAudioEncoder(AUDIO_NONE).setVideoEncoder(VIDEO_NONE);
             Set<String> paramKeys=params.keySet();
 			// Those parameters must be parsed first or else they won't necessarily be taken into account
             for(String paramName: paramKeys) {
@@ -160,23 +192,155 @@ public class UriParser {
 					}
 				}
 
+				// CLASS -> traffic class of the session, used to share the uplink between sessions
+				// The client can't get a higher weight than the class the application gave it
+				else if (paramName.equalsIgnoreCase("class")) {
+					BandwidthShaper.TrafficClass requested = BandwidthShaper.getInstance().getTrafficClass(paramValue);
+					if (requested == null) {
+						throw new IllegalStateException("Unknown traffic class !");
+					}
+					if (requested.weight > assigned.weight) {
+						throw new IllegalStateException("The traffic class can only be lowered !");
+					}
+					builder.setTrafficClass(paramValue);
+				}
+
+				// RATECAP -> maximum bitrate of the session in kbps
+				else if (paramName.equalsIgnoreCase("ratecap")) {
+					try {
+						int rate = Integer.parseInt(paramValue);
+						if (rate<0) throw new IllegalStateException();
+						builder.setMaxBitrate(rate*1000L);
+					} catch (Exception e) {
+						throw new IllegalStateException("The rate cap must be a positive integer !");
+					}
+				}
+
+				// MTU -> size of the biggest packet that can be sent to the client, "auto" or "jumbo" to probe it
+				else if (paramName.equalsIgnoreCase("mtu")) {
+					if (paramValue.equalsIgnoreCase("auto")) {
+						builder.setMtu(Session.MTU_AUTO);
+					} else if (paramValue.equalsIgnoreCase("jumbo")) {
+						builder.setMtu(Session.MTU_JUMBO);
+					} else {
+						try {
+							int mtu = Integer.parseInt(paramValue);
+							if (mtu<MtuProbe.MIN_MTU || mtu>RtpSocket.MAX_MTU) throw new IllegalStateException();
+							builder.setMtu(mtu);
+						} catch (Exception e) {
+							throw new IllegalStateException("The MTU must be between "+MtuProbe.MIN_MTU+" and "+RtpSocket.MAX_MTU+" !");
+						}
+					}
+				}
+
+				// IMPAIR -> sends the packets through an emulated bad network, see NetworkImpairment.parse()
+				// Only if the application allows it, see SessionBuilder.setRemoteImpairmentAllowed()
+				else if (paramName.equalsIgnoreCase("impair")) {
+					if (!builder.isRemoteImpairmentAllowed()) {
+						throw new IllegalStateException("The network emulator is disabled !");
+					}
+					try {
+						builder.setNetworkImpairment(NetworkImpairment.parse(paramValue));
+					} catch (IllegalArgumentException e) {
+						throw new IllegalStateException(e.getMessage());
+					}
+				}
+
+				// GOP -> interval between two key frames in seconds, clients can still ask for key frames with RTCP
+				else if (paramName.equalsIgnoreCase("gop")) {
+					try {
+						int gop = Integer.parseInt(paramValue);
+						if (gop<=0) throw new IllegalStateException();
+						builder.setKeyFrameInterval(gop);
+					} catch (Exception e) {
+						throw new IllegalStateException("The GOP must be a positive integer !");
+					}
+				}
+
+				// CAPTURETIME -> stamps the frames with their capture time, "sei" or "ext" to add the RTP header extension
+				else if (paramName.equalsIgnoreCase("capturetime")) {
+					if (paramValue.equalsIgnoreCase("sei")) {
+						builder.setCaptureTime(CaptureTime.SEI);
+					} else if (paramValue.equalsIgnoreCase("ext")) {
+						builder.setCaptureTime(CaptureTime.SEI | CaptureTime.EXTENSION);
+					} else if (paramValue.equalsIgnoreCase("off")) {
+						builder.setCaptureTime(0);
+					} else {
+						throw new IllegalStateException("The capture time must be sei, ext or off !");
+					}
+				}
+
+				// PROFILE -> tunes the video encoder, see EncoderProfile
+				else if (paramName.equalsIgnoreCase("profile")) {
+					try {
+						builder.setEncoderProfile(EncoderProfile.parse(paramValue));
+					} catch (IllegalArgumentException e) {
+						throw new IllegalStateException(e.getMessage());
+					}
+				}
+
+				// TELEMETRY -> adds the navigation telemetry track, see TelemetryHub
+				else if (paramName.equalsIgnoreCase("telemetry")) {
+					builder.setTelemetryEnabled(!paramValue.equalsIgnoreCase("off"));
+				}
+
+				// AAC
+				else if (paramName.equalsIgnoreCase("aac")) {
+					AudioQuality quality = AudioQuality.parseQuality(paramValue);
+					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_AAC);
+				}
+
+				// PTIME -> how much audio a packet may carry in ms, more means less packets but more latency
+				else if (paramName.equalsIgnoreCase("ptime")) {
+					try {
+						int ptime = Integer.parseInt(paramValue);
+						if (ptime<=0) throw new IllegalStateException();
+						builder.setAudioPacketTime(ptime);
+					} catch (Exception e) {
+						throw new IllegalStateException("The packet time must be a positive integer !");
+					}
+				}
+
 				// H.264
 				else if (paramName.equalsIgnoreCase("h264")) {
 					VideoQuality quality = VideoQuality.parseQuality(paramValue);
 					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H264);
 				}
 
+				// H.265
+				else if (paramName.equalsIgnoreCase("h265")) {
+					VideoQuality quality = VideoQuality.parseQuality(paramValue);
+					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H265);
+				}
+
+				// VP8
+				else if (paramName.equalsIgnoreCase("vp8")) {
+					VideoQuality quality = VideoQuality.parseQuality(paramValue);
+					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_VP8);
+				}
+
+				// VP9
+				else if (paramName.equalsIgnoreCase("vp9")) {
+					VideoQuality quality = VideoQuality.parseQuality(paramValue);
+					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_VP9);
+				}
+
 			}
 
 		}
 
-		if (builder.getVideoEncoder()==VIDEO_NONE) {
+		if (builder.getVideoEncoder()==VIDEO_NONE && builder.getAudioEncoder()==AUDIO_NONE) {
 			SessionBuilder b = SessionBuilder.getInstance();
 			builder.setVideoEncoder(b.getVideoEncoder());
+			builder.setAudioEncoder(b.getAudioEncoder());
 		}
 
 		Session session = builder.build();
 
+		if (audioApi>0 && session.getAudioTrack() != null) {
+			session.getAudioTrack().setStreamingMethod(audioApi);
+		}
+
 		if (videoApi>0 && session.getVideoTrack() != null) {
 			session.getVideoTrack().setStreamingMethod(videoApi);
 		}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * 
+ *   RFC 7741.
+ *   
+ *   VP8 streaming over RTP.
+ *   
+ *   Must be fed with an {@link EncodedFrameSource}, each frame of the source is sent in its own packets.
+ *   Every packet carries a 15 bit picture ID, so that receivers can tell which frames were lost.
+ *   
+ */
+public class VP8Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "VP8Packetizer";
+
+	/** X, I and M bits set: the descriptor always has a 15 bit picture ID. */
+	private final static int DESCRIPTOR_LENGTH = 4;
+
+	private Thread t = null;
+	private int pictureId = new Random().nextInt(0x8000);
+
+	public VP8Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			source.close();
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** Returns the picture ID of the last frame sent. */
+	public int getPictureId() {
+		return pictureId;
+	}
+
+	public void run() {
+		Log.d(TAG,"VP8 packetizer started !");
+		socket.setCacheSize(0);
+
+		try {
+			while (!Thread.interrupted()) {
+				send();
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"VP8 packetizer stopped !");
+	}
+
+	/** Sends a frame, split in as many packets of about the same size as needed. */
+	private void send() throws IOException, InterruptedException {
+		EncodedFrame encoded = current = source.take();
+		ByteBuffer frame = encoded.getBuffer();
+		try {
+			if (encoded.isCodecConfig() || !frame.hasRemaining()) return;
+			ts = encoded.getPresentationTime()*1000L;
+			// The P bit of the frame tag is 0 for key frames
+			boolean keyFrame = encoded.isKeyFrame() || (frame.get(frame.position()) & 0x01) == 0;
+			pictureId = (pictureId+1) & 0x7FFF;
+
+			int max = maxPacketSize-rtphl-DESCRIPTOR_LENGTH;
+			int count = (frame.remaining()+max-1)/max;
+			int size = (frame.remaining()+count-1)/count;
+			boolean first = true;
+
+			while (frame.hasRemaining()) {
+				int len = Math.min(size, frame.remaining());
+				buffer = socket.requestBuffer();
+				if (keyFrame && first) socket.markKeyFrame();
+				// X bit, and S bit on the first packet of the frame (partition 0)
+				buffer[rtphl] = (byte) (first ? 0x90 : 0x80);
+				// I bit
+				buffer[rtphl+1] = (byte) 0x80;
+				// M bit and 15 bit picture ID
+				buffer[rtphl+2] = (byte) (0x80 | (pictureId>>8));
+				buffer[rtphl+3] = (byte) (pictureId&0xFF);
+				socket.updateTimestamp(ts);
+				frame.get(buffer, rtphl+DESCRIPTOR_LENGTH, len);
+				// The marker bit is set on the last packet of the frame
+				if (!frame.hasRemaining()) socket.markNextPacket();
+				super.send(rtphl+DESCRIPTOR_LENGTH+len);
+				first = false;
+			}
+		} finally {
+			current = null;
+			encoded.release();
+		}
+	}
+
+}
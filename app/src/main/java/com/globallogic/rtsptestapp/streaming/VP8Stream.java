@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+
+import com.globallogic.rtsptestapp.streaming.exceptions.ConfNotSupportedException;
+
+import java.io.IOException;
+
+/**
+ * A {@link VideoStream} encoded in VP8 and packetized by a {@link VP8Packetizer}.
+ */
+public class VP8Stream extends VideoStream {
+
+	protected final static String TAG = "VP8Stream";
+
+	/** 
+	 * @param camera Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 */
+	public VP8Stream(int camera) {
+		super(camera, MediaFormat.MIMETYPE_VIDEO_VP8, MediaRecorder.VideoEncoder.VP8, new VP8Packetizer());
+	}
+
+	/**
+	 * Finds a VP8 encoder that supports the resolution and the frame rate with the {@link CodecManager}.
+	 * @throws ConfNotSupportedException The device has no such encoder
+	 */
+	@Override
+	protected void configureEncoder() throws IOException {
+		mEncoderName = CodecManager.findSurfaceEncoder(mMimeType, mQuality.resX, mQuality.resY, mQuality.framerate);
+		if (mEncoderName == null) {
+			throw new ConfNotSupportedException("No VP8 encoder supports "+mQuality.resX+"x"+mQuality.resY+" at "+mQuality.framerate+" fps !");
+		}
+	}
+
+	@Override
+	protected void setStreamParameters() {
+	}
+
+	/**
+	 * Returns a description of the stream using SDP. 
+	 */
+	@Override
+	public synchronized String getSessionDescription() throws IllegalStateException {
+		if (mEncoderName == null) throw new IllegalStateException("You need to call configure() first !");
+		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+				"a=rtpmap:96 VP8/90000\r\n";
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.globallogic.rtsptestapp.streaming;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * 
+ *   RFC 9628.
+ *   
+ *   VP9 streaming over RTP, in the non flexible mode with a single spatial layer.
+ *   
+ *   Must be fed with an {@link EncodedFrameSource}, each frame of the source is sent in its own packets.
+ *   Every packet carries a 15 bit picture ID and tells whether the frame depends on a previous one. 
+ *   Key frames start with the scalability structure that gives the resolution of the stream.
+ *   
+ */
+public class VP9Packetizer extends AbstractPacketizer implements Runnable {
+
+	public final static String TAG = "VP9Packetizer";
+
+	// Bits of the first byte of the payload descriptor
+	private final static int I = 0x80, P = 0x40, B = 0x08, E = 0x04, V = 0x02;
+
+	private Thread t = null;
+	private int pictureId = new Random().nextInt(0x8000);
+	private int width = 0, height = 0;
+
+	public VP9Packetizer() {
+		super();
+		socket.setClockFrequency(90000);
+	}
+
+	public void start() {
+		if (t == null) {
+			t = new Thread(this);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		if (t != null) {
+			source.close();
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+			t = null;
+		}
+	}
+
+	/** Sets the resolution of the stream, it is given in the scalability structure sent with key frames. */
+	public void setResolution(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/** Returns the picture ID of the last frame sent. */
+	public int getPictureId() {
+		return pictureId;
+	}
+
+	public void run() {
+		Log.d(TAG,"VP9 packetizer started !");
+		socket.setCacheSize(0);
+
+		try {
+			while (!Thread.interrupted()) {
+				send();
+			}
+		} catch (IOException e) {
+		} catch (InterruptedException e) {}
+
+		Log.d(TAG,"VP9 packetizer stopped !");
+	}
+
+	/** Sends a frame, split in as many packets of about the same size as needed. */
+	private void send() throws IOException, InterruptedException {
+		EncodedFrame encoded = current = source.take();
+		ByteBuffer frame = encoded.getBuffer();
+		try {
+			if (encoded.isCodecConfig() || !frame.hasRemaining()) return;
+			ts = encoded.getPresentationTime()*1000L;
+			boolean keyFrame = encoded.isKeyFrame();
+			pictureId = (pictureId+1) & 0x7FFF;
+
+			// The scalability structure: one spatial layer (N_S = 0) and its resolution (Y = 1)
+			boolean ss = keyFrame && width > 0 && height > 0;
+			int max = maxPacketSize-rtphl-3-5;
+			int count = (frame.remaining()+max-1)/max;
+			int size = (frame.remaining()+count-1)/count;
+			boolean first = true;
+
+			while (frame.hasRemaining()) {
+				int len = Math.min(size, frame.remaining());
+				int offset = rtphl;
+				buffer = socket.requestBuffer();
+				if (keyFrame && first) socket.markKeyFrame();
+				buffer[offset++] = (byte) (I | (keyFrame ? 0 : P) | (first ? B : 0) | (len == frame.remaining() ? E : 0) | (ss && first ? V : 0));
+				// M bit and 15 bit picture ID
+				buffer[offset++] = (byte) (0x80 | (pictureId>>8));
+				buffer[offset++] = (byte) (pictureId&0xFF);
+				if (ss && first) {
+					buffer[offset++] = 0x10;
+					buffer[offset++] = (byte) (width>>8);
+					buffer[offset++] = (byte) (width&0xFF);
+					buffer[offset++] = (byte) (height>>8);
+					buffer[offset++] = (byte) (height&0xFF);
+				}
+				socket.updateTimestamp(ts);
+				frame.get(buffer, offset, len);
+				// The marker bit is set on the last packet of the frame
+				if (!frame.hasRemaining()) socket.markNextPacket();
+				super.send(offset+len);
+				first = false;
+			}
+		} finally {
+			current = null;
+			encoded.release();
+		}
+	}
+
+}
@@ -26,6 +26,8 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Base64;
 import android.util.Log;
 import android.view.Surface;
@@ -36,6 +38,13 @@ public class VideoStream extends MediaStream {
 
 	protected final static String TAG = "VideoStream";
 
+	/** Default interval between two key frames in seconds, receivers can ask for more with PLI or FIR. */
+	public final static int DEFAULT_KEY_FRAME_INTERVAL = 5;
+
+	// Known by encoders since Android 6, public in the SDK since Android 10, and changeable on the fly since then
+	private final static String KEY_MAX_FPS_TO_ENCODER = "max-fps-to-encoder";
+	private final static int SDK_LIVE_MAX_FPS = 29;
+
 	protected VideoQuality mRequestedQuality = VideoQuality.DEFAULT_VIDEO_QUALITY.clone();
 	protected VideoQuality mQuality = mRequestedQuality.clone(); 
 	protected SharedPreferences mSettings = null;
@@ -49,12 +58,21 @@ public class VideoStream extends MediaStream {
 	protected boolean mUnlocked = false;
 	protected boolean mPreviewStarted = false;
 	protected boolean mUpdated = false;
+	protected boolean mAdaptiveBitrate = true;
+	protected int mKeyFrameInterval = DEFAULT_KEY_FRAME_INTERVAL;
+	protected int mCaptureTime = 0;
+	protected EncoderProfile mEncoderProfile = EncoderProfile.DEFAULT;
+	protected int mFrameRateCap = 0;
+	protected KeyFrameRequester mKeyFrameRequester = new KeyFrameRequester();
 	
 	protected String mMimeType;
+	protected String mEncoderName;
 	protected int mCameraImageFormat;
 
-	private MP4Config mConfig;
+	private final ParameterSetCache mParameterSets = new ParameterSetCache();
+	private VideoQuality mParameterSetsQuality;
 	private VirtualDisplay mVirtualDisplay;
+	private Surface mSurface;
 
 	/** 
 	 * Don't use this class directly
@@ -62,11 +80,30 @@ public class VideoStream extends MediaStream {
 	 */
 	@SuppressLint("InlinedApi")
 	public VideoStream(int camera) {
+		this(camera, "video/avc", MediaRecorder.VideoEncoder.H264, new H264Packetizer());
+		((H264Packetizer)mPacketizer).setParameterSetCache(mParameterSets);
+		mParameterSets.setListener(new ParameterSetCache.Listener() {
+			@Override
+			public void onParameterSetsChanged(ParameterSetCache cache) {
+				saveParameterSets(cache);
+			}
+		});
+	}
+
+	/**
+	 * Used by the streams of other video codecs.
+	 * @param camera Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+	 * @param mimeType The mime type of the encoder
+	 * @param videoEncoder The encoder, see {@link MediaRecorder.VideoEncoder}
+	 * @param packetizer The packetizer for the codec
+	 */
+	protected VideoStream(int camera, String mimeType, int videoEncoder, AbstractPacketizer packetizer) {
 		super();
-		mMimeType = "video/avc";
+		mMimeType = mimeType;
 		mCameraImageFormat = ImageFormat.NV21;
-		mVideoEncoder = MediaRecorder.VideoEncoder.H264;
-		mPacketizer = new H264Packetizer();
+		mVideoEncoder = videoEncoder;
+		mPacketizer = packetizer;
+		mPacketizer.getRtpSocket().setKeyFrameRequester(mKeyFrameRequester);
 	}
 
 
@@ -97,6 +134,80 @@ public class VideoStream extends MediaStream {
 	}
 
 
+	/**
+	 * Enables or disables the sender side bitrate adaptation. When enabled, the bitrate of 
+	 * the encoder is lowered when packets start to pile up in the FIFO of the {@link RtpSocket}
+	 * and restored once it drains, even if the receiver never sends any RTCP report.
+	 * Changes will take effect next time you call {@link #start()}.
+	 */
+	public void setAdaptiveBitrateEnabled(boolean enabled) {
+		mAdaptiveBitrate = enabled;
+	}
+
+	/**
+	 * Sets the interval between two key frames produced by the encoder on its own. 
+	 * Key frames are also produced when a receiver asks for one, see {@link #requestKeyFrame()}.
+	 * Changes will take effect next time you call {@link #start()}.
+	 * @param interval The interval in seconds
+	 */
+	public void setKeyFrameInterval(int interval) {
+		mKeyFrameInterval = interval;
+	}
+
+	/** 
+	 * Asks the encoder for a key frame. Requests are coalesced and rate limited 
+	 * by the {@link KeyFrameRequester} of the stream. 
+	 */
+	public void requestKeyFrame() {
+		mKeyFrameRequester.request();
+	}
+
+	/**
+	 * Sets the number of threads that packetize the stream, see {@link H264Packetizer#setParallelism(int)}.
+	 * Only the H.264 packetizer can use more than one. Changes will take effect next time you call {@link #start()}.
+	 */
+	public void setPacketizerThreads(int threads) {
+		if (mPacketizer instanceof H264Packetizer) ((H264Packetizer) mPacketizer).setParallelism(threads);
+	}
+
+	/**
+	 * Enables or disables the rewriting of the VUI of the SPS sent to the receivers, 
+	 * so that they can output each frame as soon as it is decoded. Enabled by default.
+	 */
+	public void setVuiRewriting(boolean enabled) {
+		mParameterSets.setVuiRewriting(enabled);
+	}
+
+	/**
+	 * Stamps each frame with the time at which it was captured, so that receivers can 
+	 * measure the latency, see {@link CaptureTime}. Only the H.264 stream supports it.
+	 * Changes will take effect next time you call {@link #start()}.
+	 * @param flags {@link CaptureTime#SEI}, {@link CaptureTime#EXTENSION}, both or 0 to disable it
+	 */
+	public void setCaptureTime(int flags) {
+		if (mPacketizer instanceof H264Packetizer) {
+			mCaptureTime = flags;
+			((H264Packetizer) mPacketizer).setCaptureTime(flags);
+		}
+	}
+
+	/**
+	 * Sets the {@link EncoderProfile} used to configure the encoder, {@link EncoderProfile#DEFAULT} by default.
+	 * Changes will take effect next time you call {@link #start()}.
+	 */
+	public void setEncoderProfile(EncoderProfile profile) {
+		mEncoderProfile = profile != null ? profile : EncoderProfile.DEFAULT;
+	}
+
+	public EncoderProfile getEncoderProfile() {
+		return mEncoderProfile;
+	}
+
+	/** Returns the {@link KeyFrameRequester} that handles the PLI and FIR sent by the receivers. */
+	public KeyFrameRequester getKeyFrameRequester() {
+		return mKeyFrameRequester;
+	}
+
 	/**
 	 * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is called 
 	 * @param prefs The SharedPreferences that will be used to save SPS and PPS parameters
@@ -114,16 +225,49 @@ public class VideoStream extends MediaStream {
 		mOrientation = mRequestedOrientation;
 		mMode = mRequestedMode;
 		mQuality = mRequestedQuality.clone();
-		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
-		mConfig = new MP4Config(debugger.getB64SPS(), debugger.getB64PPS());
+		configureEncoder();
 	}	
 
+	/**
+	 * Finds the encoder and the parameter sets of the stream, 
+	 * they are needed by {@link #getSessionDescription()}.
+	 */
+	protected void configureEncoder() throws IOException {
+		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+		mEncoderName = debugger.getEncoderName();
+		// Once the encoder has run, the cache holds what it actually produces
+		if (!mParameterSets.isComplete() || !mQuality.equals(mParameterSetsQuality)) {
+			mParameterSetsQuality = mQuality.clone();
+			mParameterSets.update(Base64.decode(debugger.getB64SPS(), Base64.NO_WRAP), Base64.decode(debugger.getB64PPS(), Base64.NO_WRAP));
+		}
+	}
+
+	/** 
+	 * Gives the parameter sets found by {@link #configureEncoder()} to the packetizer. 
+	 * The H.264 packetizer shares the {@link ParameterSetCache} of the stream, there is nothing to do.
+	 */
+	protected void setStreamParameters() {}
+
+	/** 
+	 * Returns the number of times the parameter sets of the stream changed, 
+	 * the session description changes with them. 
+	 */
+	public int getParameterSetsVersion() {
+		return mParameterSets.getVersion();
+	}
+
+	/** Stores the parameter sets produced by the encoder, so that the next sessions describe them right away. */
+	private void saveParameterSets(ParameterSetCache cache) {
+		if (mSettings == null || !cache.isComplete()) return;
+		// What the encoder produces is stored, the SPS is rewritten again when it is loaded
+		String sps = Base64.encodeToString(cache.getEncoderSps(), Base64.NO_WRAP);
+		EncoderDebugger.saveParameterSets(mSettings, mQuality.resX, mQuality.resY, sps, cache.getB64PPS());
+	}
+
 	public synchronized void start() throws IllegalStateException, IOException {
 		if (!mStreaming) {
 			configure();
-			byte[] pps = Base64.decode(mConfig.getB64PPS(), Base64.NO_WRAP);
-			byte[] sps = Base64.decode(mConfig.getB64SPS(), Base64.NO_WRAP);
-			((H264Packetizer)mPacketizer).setStreamParameters(pps, sps);
+			setStreamParameters();
 			if (!mPreviewStarted) mCameraOpenedManually = false;
 			super.start();
 			Log.d(TAG,"Stream configuration: FPS: "+mQuality.framerate+" Width: "+mQuality.resX+" Height: "+mQuality.resY);
@@ -131,9 +275,18 @@ public class VideoStream extends MediaStream {
 
 	}
 
-	/** Stops the stream. */
+	/** 
+	 * Stops the stream: the packetizer, its workers, the encoder and the thread of its callbacks. 
+	 * The virtual display is kept, it renders nowhere until the stream starts again.
+	 */
 	public synchronized void stop() {
-
+		if (mStreaming) {
+			// The display must not render into an encoder that is being released
+			if (mVirtualDisplay != null) mVirtualDisplay.setSurface(null);
+			super.stop();
+			if (mSurface != null) mSurface.release();
+			mSurface = null;
+		}
 	}
 
 	/**
@@ -154,34 +307,149 @@ public class VideoStream extends MediaStream {
 
 
 
-		EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
-
-		mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
+		MediaCodec codec = MediaCodec.createByCodecName(mEncoderName);
+		synchronized (mCodecLock) {
+			mMediaCodec = codec;
+		}
+		// Output buffers are handed to the packetizer as soon as the encoder releases them
+		mEncoderOutput = MediaCodecFrameSource.attach(mMediaCodec);
+		mEncoderOutput.setAnnexB(mMimeType.equals(MediaFormat.MIMETYPE_VIDEO_AVC) || mMimeType.equals(MediaFormat.MIMETYPE_VIDEO_HEVC));
+		MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval);
+		mEncoderProfile.apply(mediaFormat, mMediaCodec.getCodecInfo().getCapabilitiesForType(mMimeType), mQuality, mKeyFrameInterval);
+		if (mFrameRateCap > 0) mediaFormat.setFloat(KEY_MAX_FPS_TO_ENCODER, mFrameRateCap);
+		Log.d(TAG,"Encoder profile: "+mEncoderProfile);
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-		Surface surface = mMediaCodec.createInputSurface();
-		mVirtualDisplay.setSurface(surface);
+		mSurface = mMediaCodec.createInputSurface();
+		mVirtualDisplay.setSurface(mSurface);
 		mMediaCodec.start();
 
+		QueueDelayController controller = mPacketizer.getRtpSocket().getDelayController();
+		controller.setEnabled(mAdaptiveBitrate);
+		controller.setMaxBitrate(mQuality.bitrate);
+		controller.setListener(new QueueDelayController.Listener() {
+			@Override
+			public void onTargetBitrateChanged(int bitrate) {
+				setEncoderBitrate(bitrate);
+			}
+		});
+
+		mKeyFrameRequester.reset();
+		mKeyFrameRequester.setListener(new KeyFrameRequester.Listener() {
+			@Override
+			public void onKeyFrameRequested() {
+				requestSyncFrame();
+			}
+		});
+
 		// The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+		mPacketizer.setFrameSource(mEncoderOutput);
 		mPacketizer.start();
 
 		mStreaming = true;
 	}
 
+	/**
+	 * Changes the bitrate of the stream. If the stream is running, the encoder is not restarted 
+	 * and the new bitrate applies from the next frame it encodes: the receivers keep decoding. 
+	 * The {@link QueueDelayController} of the stream never goes above it.
+	 * @param bitrate The bitrate in bit/s
+	 */
+	public synchronized void setBitrate(int bitrate) {
+		if (bitrate <= 0) throw new IllegalArgumentException("The bitrate must be positive !");
+		mRequestedQuality.bitrate = bitrate;
+		mQuality.bitrate = bitrate;
+		if (mStreaming && mMediaCodec != null) {
+			mPacketizer.getRtpSocket().getDelayController().setMaxBitrate(bitrate);
+			setEncoderBitrate(bitrate);
+			// The parameter sets of the running encoder stay valid, the next start must not discard them
+			if (mParameterSetsQuality != null) mParameterSetsQuality.bitrate = bitrate;
+		}
+	}
+
+	/** Returns the bitrate the encoder currently aims at in bit/s, lowered by the {@link QueueDelayController} if needed. */
+	public synchronized int getTargetBitrate() {
+		if (mStreaming && mAdaptiveBitrate) {
+			int bitrate = mPacketizer.getRtpSocket().getDelayController().getBitrate();
+			if (bitrate > 0) return bitrate;
+		}
+		return mQuality.bitrate;
+	}
+
+	/**
+	 * Caps the number of frames per second the encoder receives, frames of the virtual display 
+	 * in excess are dropped before being encoded. If the stream is running, the change applies 
+	 * from the next frame on Android 10 and later, and next time you call {@link #start()} before.
+	 * @param fps The maximum frame rate, 0 to remove the cap
+	 */
+	public synchronized void setFrameRateCap(int fps) {
+		if (fps < 0) throw new IllegalArgumentException("The frame rate cap can't be negative !");
+		mFrameRateCap = fps;
+		if (mStreaming && mMediaCodec != null && Build.VERSION.SDK_INT >= SDK_LIVE_MAX_FPS) {
+			try {
+				Bundle params = new Bundle();
+				// A negative value removes the cap
+				params.putFloat(KEY_MAX_FPS_TO_ENCODER, fps > 0 ? fps : -1);
+				setCodecParameters(params);
+			} catch (IllegalStateException e) {
+				Log.e(TAG,"Could not change the frame rate of the encoder: "+e.getMessage());
+			}
+		}
+	}
+
+	/** Returns the cap set with {@link #setFrameRateCap(int)}, 0 if there is none. */
+	public synchronized int getFrameRateCap() {
+		return mFrameRateCap;
+	}
+
+	/**
+	 * Changes the bitrate of the running encoder without restarting it.
+	 * @param bitrate The new bitrate in bit/s
+	 */
+	protected void setEncoderBitrate(int bitrate) {
+		try {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+			setCodecParameters(params);
+		} catch (IllegalStateException e) {
+			Log.e(TAG,"Could not change the bitrate of the encoder: "+e.getMessage());
+		}
+	}
+
+	/** Asks the running encoder to produce a key frame as soon as possible. */
+	protected void requestSyncFrame() {
+		try {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+			setCodecParameters(params);
+		} catch (IllegalStateException e) {
+			Log.e(TAG,"Could not request a key frame: "+e.getMessage());
+		}
+	}
+
+	/** 
+	 * Passes the parameters to the running encoder, if any. Only takes {@link #mCodecLock}, 
+	 * so that the {@link RtpEventLoop} is never blocked while the stream starts or stops.
+	 */
+	private void setCodecParameters(Bundle params) {
+		synchronized (mCodecLock) {
+			if (mMediaCodec != null) mMediaCodec.setParameters(params);
+		}
+	}
+
 	/**
 	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
 	 */
 	public synchronized String getSessionDescription() throws IllegalStateException {
-		if (mConfig == null) throw new IllegalStateException("You need to call configure() first !");
+		if (!mParameterSets.isComplete()) throw new IllegalStateException("You need to call configure() first !");
+		// Built from the parameter sets the encoder currently produces
 		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 				"a=rtpmap:96 H264/90000\r\n" +
-				"a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n";
+				"a=fmtp:96 packetization-mode=1;profile-level-id="+mParameterSets.getProfileLevel()+";sprop-parameter-sets="+mParameterSets.getB64SPS()+","+mParameterSets.getB64PPS()+";\r\n" +
+				((mCaptureTime & CaptureTime.EXTENSION) != 0 ? "a=extmap:"+CaptureTime.EXTENSION_ID+" "+CaptureTime.EXTENSION_URI+"\r\n" : "");
 	}
 
 }
@@ -0,0 +1,116 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes the capture time in a SEI and in the abs-capture-time header extension,
+ * checks the bytes a receiver gets and parses them back.
+ */
+public class CaptureTimeTest {
+
+	/** A capture time full of zero bytes, they need emulation prevention bytes in the SEI. */
+	private final static long NTP = 0xE8000000_00010000L;
+
+	private static byte[] unescape(byte[] nal, int length) {
+		return SpsRewriter.unescape(Arrays.copyOf(nal, length), 0);
+	}
+
+	@Test
+	public void seiRoundTrip() {
+		CaptureTime captureTime = new CaptureTime(CaptureTime.SEI);
+		byte[] buffer = new byte[64+3];
+		for (int frame=0; frame<3; frame++) {
+			int length = captureTime.writeSei(buffer, 3, NTP+frame);
+			byte[] nal = Arrays.copyOfRange(buffer, 3, 3+length);
+
+			// No start code can appear in the NAL unit
+			for (int i=2; i<nal.length; i++) {
+				if (nal[i-2] == 0 && nal[i-1] == 0) assertTrue("byte "+i, (nal[i]&0xFF) >= 3);
+			}
+			byte[] rbsp = unescape(nal, nal.length);
+			assertTrue(nal.length > rbsp.length);
+			assertEquals(1+2+16+8+8+1, rbsp.length);
+
+			assertEquals(6, rbsp[0]);
+			assertEquals(5, rbsp[1]);
+			assertEquals(32, rbsp[2]);
+			assertArrayEquals(CaptureTime.UUID, Arrays.copyOfRange(rbsp, 3, 19));
+			assertArrayEquals(new byte[] {(byte) 0xE8, 0, 0, 0, 0, 1, 0, (byte) frame}, Arrays.copyOfRange(rbsp, 19, 27));
+			assertArrayEquals(new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) frame}, Arrays.copyOfRange(rbsp, 27, 35));
+			assertEquals((byte) 0x80, rbsp[35]);
+
+			CaptureTime.Sample sample = CaptureTime.parseSei(buffer, 3, length);
+			assertNotNull(sample);
+			assertEquals(NTP+frame, sample.ntp);
+			assertEquals(frame, sample.frame);
+		}
+
+		// The counter starts again with the stream
+		captureTime.reset();
+		int length = captureTime.writeSei(buffer, 0, NTP);
+		assertEquals(0, CaptureTime.parseSei(buffer, 0, length).frame);
+	}
+
+	@Test
+	public void ignoresOtherSei() {
+		CaptureTime captureTime = new CaptureTime(CaptureTime.SEI);
+		byte[] buffer = new byte[64];
+		int length = captureTime.writeSei(buffer, 0, NTP);
+		// Another UUID
+		byte[] other = buffer.clone();
+		other[5] ^= 1;
+		assertNull(CaptureTime.parseSei(other, 0, length));
+		// Not a SEI
+		other = buffer.clone();
+		other[0] = 0x65;
+		assertNull(CaptureTime.parseSei(other, 0, length));
+		// Truncated
+		assertNull(CaptureTime.parseSei(buffer, 0, 20));
+	}
+
+	@Test
+	public void extensionRoundTrip() {
+		byte[] packet = new byte[12+CaptureTime.EXTENSION_LENGTH+10];
+		packet[0] = (byte) 0x90;
+		assertEquals(CaptureTime.EXTENSION_LENGTH, CaptureTime.writeExtension(packet, 12, NTP));
+
+		assertEquals((byte) 0xBE, packet[12]);
+		assertEquals((byte) 0xDE, packet[13]);
+		// Length in 32 bit words, without the 4 bytes of the header
+		assertEquals(0, packet[14]);
+		assertEquals(3, packet[15]);
+		// Identifier, and 8 bytes of data
+		assertEquals(CaptureTime.EXTENSION_ID, (packet[16]&0xFF)>>4);
+		assertEquals(7, packet[16]&0x0F);
+		assertArrayEquals(new byte[] {(byte) 0xE8, 0, 0, 0, 0, 1, 0, 0}, Arrays.copyOfRange(packet, 17, 25));
+		// Padding
+		assertArrayEquals(new byte[3], Arrays.copyOfRange(packet, 25, 28));
+
+		CaptureTime.Sample sample = CaptureTime.parseExtension(packet, packet.length);
+		assertNotNull(sample);
+		assertEquals(NTP, sample.ntp);
+		assertEquals(-1, sample.frame);
+
+		// Without the X bit, or cut short
+		packet[0] = (byte) 0x80;
+		assertNull(CaptureTime.parseExtension(packet, packet.length));
+		packet[0] = (byte) 0x90;
+		assertNull(CaptureTime.parseExtension(packet, 12+8));
+	}
+
+	@Test
+	public void wallClock() {
+		CaptureTime captureTime = new CaptureTime(CaptureTime.SEI);
+		long offset = 1500000000000L*1000000L;
+		captureTime.setClockOffset(offset);
+		CaptureTime.Sample sample = new CaptureTime.Sample();
+		sample.ntp = captureTime.toNtp(250000000L);
+		assertEquals(1500000000250L, sample.getCaptureTime());
+		assertEquals(40, sample.getLatency(1500000000290L));
+	}
+
+}
@@ -0,0 +1,271 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds the packetizer with a {@link FrameQueue} and checks the RTP packets it writes
+ * on an interleaved TCP connection: STAP-A, FU-A and marker bits (RFC 6184).
+ */
+public class H264PacketizerTest {
+
+	/** More than the packets the RtpSocket drops when it starts. */
+	private final static int WARM_UP = 40;
+
+	private final static byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1E, (byte) 0x95, (byte) 0xA0, 0x50, 0x7C, (byte) 0x84};
+	private final static byte[] PPS = {0x68, (byte) 0xCE, 0x38, (byte) 0x80};
+
+	private H264Packetizer packetizer;
+	private final ByteArrayOutputStream connection = new ByteArrayOutputStream();
+
+	/** An RTP packet read from the connection. */
+	private static class Packet {
+
+		byte[] data;
+
+		boolean marker() {
+			return (data[1] & 0x80) != 0;
+		}
+
+		int sequence() {
+			return (data[2]&0xFF)<<8 | data[3]&0xFF;
+		}
+
+		long timestamp() {
+			return (data[4]&0xFFL)<<24 | (data[5]&0xFF)<<16 | (data[6]&0xFF)<<8 | data[7]&0xFF;
+		}
+
+		int type() {
+			return data[12] & 0x1F;
+		}
+
+		byte[] payload(int from) {
+			return Arrays.copyOfRange(data, 12+from, data.length);
+		}
+
+	}
+
+	@After
+	public void tearDown() {
+		if (packetizer != null) packetizer.stop();
+	}
+
+	private static byte[] nalUnit(int header, int length) {
+		byte[] nal = new byte[length];
+		nal[0] = (byte) header;
+		// No zero byte, it could be taken for a start code
+		for (int i=1; i<length; i++) nal[i] = (byte) (1+i%250);
+		return nal;
+	}
+
+	private static byte[] annexB(byte[]... units) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		for (byte[] unit : units) {
+			frame.write(0);
+			frame.write(0);
+			frame.write(0);
+			frame.write(1);
+			frame.write(unit, 0, unit.length);
+		}
+		return frame.toByteArray();
+	}
+
+	/** Returns the RTP packets written on channel 0 so far, RTCP is on channel 1. */
+	private List<Packet> readPackets() {
+		byte[] data = connection.toByteArray();
+		List<Packet> packets = new ArrayList<>();
+		int i = 0;
+		while (i+4 <= data.length) {
+			assertEquals('$', data[i]);
+			int length = (data[i+2]&0xFF)<<8 | data[i+3]&0xFF;
+			if (i+4+length > data.length) break;
+			if (data[i+1] == 0) {
+				Packet packet = new Packet();
+				packet.data = Arrays.copyOfRange(data, i+4, i+4+length);
+				packets.add(packet);
+			}
+			i += 4+length;
+		}
+		return packets;
+	}
+
+	private List<Packet> waitForPackets(int count) throws InterruptedException {
+		List<Packet> packets = readPackets();
+		for (int i=0; i<500 && packets.size() < count; i++) {
+			Thread.sleep(10);
+			packets = readPackets();
+		}
+		assertEquals(count, packets.size());
+		return packets;
+	}
+
+	private void packetize(int threads) throws InterruptedException {
+		packetizer = new H264Packetizer();
+		packetizer.setParallelism(threads);
+		packetizer.getParameterSetCache().setVuiRewriting(false);
+		packetizer.getRtpSocket().setOutputStream(connection, (byte) 0);
+		FrameQueue queue = new FrameQueue(64);
+		packetizer.setFrameSource(queue);
+		packetizer.start();
+
+		long pts = 1000000;
+		for (int i=0; i<WARM_UP; i++, pts += 40000) {
+			assertTrue(queue.offer(annexB(nalUnit(0x41, 20)), 0, 24, pts, 0));
+		}
+
+		byte[] idr = nalUnit(0x65, 40000);
+		byte[] a = annexB(SPS, PPS, idr);
+		queue.offer(a, 0, a.length, pts, EncodedFrame.FLAG_KEY_FRAME);
+		byte[] slice1 = nalUnit(0x21, 300), slice2 = nalUnit(0x41, 200);
+		byte[] b = annexB(slice1, slice2);
+		queue.offer(b, 0, b.length, pts+40000, 0);
+		byte[] slice = nalUnit(0x41, 500);
+		byte[] c = annexB(slice);
+		queue.offer(c, 0, c.length, pts+80000, 0);
+
+		// The first packets are dropped by the RtpSocket, the stream starts at the STAP-A
+		List<Packet> all = waitForPackets(WARM_UP-31+1+32+1+1);
+		int first = 0;
+		while (all.get(first).type() != 24) first++;
+		List<Packet> packets = all.subList(first, all.size());
+		assertEquals(1+32+1+1, packets.size());
+
+		for (int i=1; i<packets.size(); i++) {
+			assertEquals((packets.get(i-1).sequence()+1)&0xFFFF, packets.get(i).sequence());
+		}
+
+		// SPS and PPS in a STAP-A, with the timestamp of the IDR and without the marker
+		Packet stapA = packets.get(0);
+		assertEquals(0x60 | 24, stapA.data[12]&0xFF);
+		assertFalse(stapA.marker());
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (byte[] unit : new byte[][] {SPS, PPS}) {
+			expected.write(unit.length>>8);
+			expected.write(unit.length&0xFF);
+			expected.write(unit, 0, unit.length);
+		}
+		assertArrayEquals(expected.toByteArray(), stapA.payload(1));
+
+		// The IDR in FU-A fragments, the marker is on the last one
+		ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+		fragments.write(idr[0]);
+		for (int i=1; i<=32; i++) {
+			Packet fu = packets.get(i);
+			assertEquals(0x60 | 28, fu.data[12]&0xFF);
+			assertEquals(5, fu.data[13] & 0x1F);
+			assertEquals("start bit of fragment "+i, i == 1, (fu.data[13] & 0x80) != 0);
+			assertEquals("end bit of fragment "+i, i == 32, (fu.data[13] & 0x40) != 0);
+			assertEquals("marker of fragment "+i, i == 32, fu.marker());
+			assertEquals(stapA.timestamp(), fu.timestamp());
+			byte[] payload = fu.payload(2);
+			fragments.write(payload, 0, payload.length);
+		}
+		assertArrayEquals(idr, fragments.toByteArray());
+
+		// Two slices of the next frame in one STAP-A, 40 ms later
+		Packet aggregate = packets.get(33);
+		assertEquals(24, aggregate.type());
+		assertTrue(aggregate.marker());
+		assertEquals(stapA.timestamp()+3600, aggregate.timestamp());
+		assertEquals(slice1.length, (aggregate.data[13]&0xFF)<<8 | aggregate.data[14]&0xFF);
+		assertEquals(slice1[0], aggregate.data[15]);
+		assertEquals(slice2[0], aggregate.data[15+slice1.length+2]);
+
+		// A single NAL unit packet
+		Packet single = packets.get(34);
+		assertTrue(single.marker());
+		assertEquals(stapA.timestamp()+7200, single.timestamp());
+		assertArrayEquals(slice, single.payload(0));
+	}
+
+	@Test
+	public void packetizesFrames() throws InterruptedException {
+		packetize(1);
+	}
+
+	@Test
+	public void packetizesFramesWithWorkers() throws InterruptedException {
+		packetize(4);
+	}
+
+	/** Sends small frames stamped with their capture time, returns the packets that were not dropped. */
+	private List<Packet> stamp(int flags, int packetsPerFrame) throws InterruptedException {
+		packetizer = new H264Packetizer();
+		packetizer.setCaptureTime(flags);
+		packetizer.getRtpSocket().setOutputStream(connection, (byte) 0);
+		FrameQueue queue = new FrameQueue(64);
+		packetizer.setFrameSource(queue);
+		packetizer.start();
+		for (int i=0; i<WARM_UP; i++) {
+			byte[] frame = annexB(nalUnit(0x41, 100));
+			assertTrue(queue.offer(frame, 0, frame.length, 1000000+i*40000, 0));
+		}
+		return waitForPackets(WARM_UP*packetsPerFrame-31);
+	}
+
+	@Test
+	public void aggregatesCaptureTime() throws InterruptedException {
+		List<Packet> packets = stamp(CaptureTime.SEI, 1);
+		long previous = -1;
+		for (Packet packet : packets) {
+			// The SEI and the slice in one STAP-A
+			assertEquals(24, packet.type());
+			assertTrue(packet.marker());
+			int length = (packet.data[13]&0xFF)<<8 | packet.data[14]&0xFF;
+			CaptureTime.Sample sample = CaptureTime.parseSei(packet.data, 15, length);
+			assertNotNull(sample);
+			if (previous >= 0) assertEquals(previous+1, sample.frame);
+			previous = sample.frame;
+			assertEquals(100, (packet.data[15+length]&0xFF)<<8 | packet.data[16+length]&0xFF);
+			assertEquals(0x41, packet.data[17+length]);
+		}
+	}
+
+	@Test
+	public void sendsCaptureTimeExtension() throws InterruptedException {
+		List<Packet> packets = stamp(CaptureTime.SEI | CaptureTime.EXTENSION, 2);
+		int first = (packets.get(0).data[0] & 0x10) != 0 ? 0 : 1;
+		for (int i=first; i+1<packets.size(); i+=2) {
+			// The SEI in its own packet with the header extension, then the slice
+			Packet sei = packets.get(i), slice = packets.get(i+1);
+			assertFalse(sei.marker());
+			assertNotNull(CaptureTime.parseExtension(sei.data, sei.data.length));
+			int offset = 12+CaptureTime.EXTENSION_LENGTH;
+			CaptureTime.Sample sample = CaptureTime.parseSei(sei.data, offset, sei.data.length-offset);
+			assertEquals(CaptureTime.parseExtension(sei.data, sei.data.length).ntp, sample.ntp);
+			assertEquals(sei.timestamp(), slice.timestamp());
+			assertEquals(0, slice.data[0] & 0x10);
+			assertEquals(0x41, slice.data[12]);
+			assertTrue(slice.marker());
+		}
+	}
+
+	@Test
+	public void stopLeavesNoThreads() throws InterruptedException {
+		packetizer = new H264Packetizer();
+		packetizer.setParallelism(4);
+		packetizer.getRtpSocket().setOutputStream(connection, (byte) 0);
+		int threads = Thread.activeCount();
+		// Like PLAY, TEARDOWN and PLAY again
+		for (int i=0; i<3; i++) {
+			FrameQueue queue = new FrameQueue(4);
+			packetizer.setFrameSource(queue);
+			packetizer.start();
+			byte[] frame = annexB(nalUnit(0x65, 40000));
+			queue.offer(frame, 0, frame.length, 1000000+i*40000, EncodedFrame.FLAG_KEY_FRAME);
+			while (queue.size() > 0) Thread.sleep(1);
+			packetizer.stop();
+			packetizer.getRtpSocket().reset();
+		}
+		for (int i=0; i<100 && Thread.activeCount() > threads; i++) Thread.sleep(10);
+		assertEquals(threads, Thread.activeCount());
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the packetizer sends the VPS, the SPS and the PPS in an AP before each IRAP picture
+ * that the stream does not already precede with them (RFC 7798).
+ */
+public class H265PacketizerTest {
+
+	/** More than the packets the RtpSocket drops when it starts. */
+	private final static int WARM_UP = 40;
+
+	private final static int TYPE_AP = 48;
+
+	private final static byte[] VPS = nalUnit(H265Config.NAL_VPS, 24);
+	private final static byte[] SPS = nalUnit(H265Config.NAL_SPS, 40);
+	private final static byte[] PPS = nalUnit(H265Config.NAL_PPS, 8);
+
+	private H265Packetizer packetizer;
+	private final ByteArrayOutputStream connection = new ByteArrayOutputStream();
+
+	@After
+	public void tearDown() {
+		if (packetizer != null) packetizer.stop();
+	}
+
+	private static byte[] nalUnit(int type, int length) {
+		byte[] nal = new byte[length];
+		nal[0] = (byte) (type<<1);
+		nal[1] = 1;
+		// No zero byte, it could be taken for a start code
+		for (int i=2; i<length; i++) nal[i] = (byte) (1+i%250);
+		return nal;
+	}
+
+	private static byte[] annexB(byte[]... units) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		for (byte[] unit : units) {
+			frame.write(new byte[] {0, 0, 0, 1}, 0, 4);
+			frame.write(unit, 0, unit.length);
+		}
+		return frame.toByteArray();
+	}
+
+	/** Returns the payloads of the RTP packets written on channel 0 so far. */
+	private List<byte[]> readPayloads() {
+		byte[] data = connection.toByteArray();
+		List<byte[]> payloads = new ArrayList<>();
+		int i = 0;
+		while (i+4 <= data.length) {
+			int length = (data[i+2]&0xFF)<<8 | data[i+3]&0xFF;
+			if (i+4+length > data.length) break;
+			if (data[i+1] == 0) payloads.add(Arrays.copyOfRange(data, i+4+12, i+4+length));
+			i += 4+length;
+		}
+		return payloads;
+	}
+
+	/** Returns the types of the NAL units of a packet, several for an AP. */
+	private static List<Integer> types(byte[] payload) {
+		List<Integer> types = new ArrayList<>();
+		int type = (payload[0]>>1)&0x3F;
+		if (type != TYPE_AP) {
+			types.add(type);
+			return types;
+		}
+		for (int i=2; i+2 < payload.length; ) {
+			int length = (payload[i]&0xFF)<<8 | payload[i+1]&0xFF;
+			types.add((payload[i+2]>>1)&0x3F);
+			i += 2+length;
+		}
+		return types;
+	}
+
+	@Test
+	public void injectsParameterSets() throws InterruptedException {
+		packetizer = new H265Packetizer();
+		packetizer.setStreamParameters(VPS, SPS, PPS);
+		packetizer.getRtpSocket().setOutputStream(connection, (byte) 0);
+		FrameQueue queue = new FrameQueue(64);
+		packetizer.setFrameSource(queue);
+		packetizer.start();
+
+		long pts = 1000000;
+		List<byte[]> frames = new ArrayList<>();
+		for (int i=0; i<WARM_UP; i++) frames.add(annexB(nalUnit(1, 100)));
+		byte[] idr = nalUnit(19, 100);
+		frames.add(annexB(idr));
+		// More in-band parameter sets than the packetizer used to tolerate
+		for (int i=0; i<6; i++) frames.add(annexB(VPS, SPS, PPS, idr));
+		frames.add(annexB(idr));
+		frames.add(annexB(nalUnit(1, 100)));
+		for (byte[] frame : frames) {
+			assertTrue(queue.offer(frame, 0, frame.length, pts, 0));
+			pts += 40000;
+		}
+
+		int expected = WARM_UP-31 + 2 + 6 + 2 + 1;
+		List<byte[]> payloads = readPayloads();
+		for (int i=0; i<500 && payloads.size() < expected; i++) {
+			Thread.sleep(10);
+			payloads = readPayloads();
+		}
+		assertEquals(expected, payloads.size());
+
+		List<Integer> injected = Arrays.asList(H265Config.NAL_VPS, H265Config.NAL_SPS, H265Config.NAL_PPS);
+		int i = WARM_UP-31;
+		// Parameter sets before the IRAP picture
+		assertEquals(injected, types(payloads.get(i++)));
+		assertEquals(Arrays.asList(19), types(payloads.get(i++)));
+		// The stream already has them, they are aggregated with the picture
+		for (int j=0; j<6; j++) {
+			assertEquals(Arrays.asList(H265Config.NAL_VPS, H265Config.NAL_SPS, H265Config.NAL_PPS, 19), types(payloads.get(i++)));
+		}
+		// Still injected once the encoder stops sending them
+		assertEquals(injected, types(payloads.get(i++)));
+		assertEquals(Arrays.asList(19), types(payloads.get(i++)));
+		assertEquals(Arrays.asList(1), types(payloads.get(i)));
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the scanner finds the NAL units wherever the start codes fall in the words it reads.
+ */
+public class NalUnitScannerTest {
+
+	private static ByteBuffer buffer(int... bytes) {
+		byte[] data = new byte[bytes.length];
+		for (int i=0; i<bytes.length; i++) data[i] = (byte) bytes[i];
+		return ByteBuffer.wrap(data);
+	}
+
+	/** Returns the start and the end of each NAL unit found. */
+	private static int[] scan(ByteBuffer buffer) {
+		NalUnitScanner scanner = new NalUnitScanner().reset(buffer);
+		List<Integer> units = new ArrayList<>();
+		while (scanner.next()) {
+			units.add(scanner.start());
+			units.add(scanner.end());
+		}
+		int[] result = new int[units.size()];
+		for (int i=0; i<result.length; i++) result[i] = units.get(i);
+		return result;
+	}
+
+	@Test
+	public void mixedStartCodes() {
+		ByteBuffer buffer = buffer(
+				0, 0, 0, 1, 0x67, 0x42, 0x80,
+				0, 0, 1, 0x68, 0xCE,
+				0, 0, 0, 1, 0x65, 0x88, 0x84, 0x21);
+		assertArrayEquals(new int[] {4, 7, 10, 12, 16, 20}, scan(buffer));
+	}
+
+	@Test
+	public void leadingGarbage() {
+		// Data before the first start code is a NAL unit of its own
+		assertArrayEquals(new int[] {0, 2, 5, 7}, scan(buffer(0xAB, 0xCD, 0, 0, 1, 0x65, 0x88)));
+		// Leading zero bytes are not
+		assertArrayEquals(new int[] {5, 7}, scan(buffer(0, 0, 0, 0, 1, 0x65, 0x88)));
+		// Without any start code the whole buffer is one NAL unit
+		assertArrayEquals(new int[] {0, 3}, scan(buffer(0x65, 0x88, 0x84)));
+	}
+
+	@Test
+	public void trailingZeros() {
+		assertArrayEquals(new int[] {3, 6}, scan(buffer(0, 0, 1, 0x65, 0xAA, 0xBB, 0, 0)));
+		assertArrayEquals(new int[] {3, 6}, scan(buffer(0, 0, 1, 0x65, 0xAA, 0xBB, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0)));
+		// A start code at the very end does not start a NAL unit
+		assertArrayEquals(new int[] {3, 5}, scan(buffer(0, 0, 1, 0x65, 0xAA, 0, 0, 1)));
+	}
+
+	@Test
+	public void emptyAndShortUnits() {
+		// A 1 byte NAL unit, an access unit delimiter without payload for example
+		assertArrayEquals(new int[] {3, 4, 7, 9}, scan(buffer(0, 0, 1, 0x09, 0, 0, 1, 0x65, 0x88)));
+		// Two start codes in a row
+		assertArrayEquals(new int[] {7, 9}, scan(buffer(0, 0, 1, 0, 0, 0, 1, 0x67, 0x42)));
+		assertArrayEquals(new int[] {}, scan(buffer(0, 0, 1)));
+		assertArrayEquals(new int[] {}, scan(buffer()));
+		assertArrayEquals(new int[] {0, 1}, scan(buffer(0x09)));
+	}
+
+	@Test
+	public void startCodesAcrossWords() {
+		// The start code begins at every offset of the words read by the scanner
+		for (int offset=0; offset<24; offset++) {
+			for (int zeros=3; zeros<=4; zeros++) {
+				ByteBuffer buffer = ByteBuffer.allocate(48);
+				buffer.put(new byte[] {0, 0, 1, 0x41});
+				for (int i=4; i<4+offset; i++) buffer.put((byte) 0x55);
+				for (int i=1; i<zeros; i++) buffer.put((byte) 0);
+				buffer.put((byte) 1).put((byte) 0x65).put((byte) 0x88);
+				buffer.flip();
+				int second = 4+offset+zeros;
+				assertArrayEquals("offset "+offset+", "+zeros+" byte start code",
+						new int[] {3, 4+offset, second, second+2}, scan(buffer));
+				assertEquals(4+offset+zeros-3, NalUnitScanner.findStartCode(buffer, 4, buffer.limit()));
+			}
+		}
+	}
+
+	@Test
+	public void positionAndLimit() {
+		ByteBuffer buffer = buffer(0x11, 0x22, 0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x68, 0xCE, 0x33);
+		buffer.position(2);
+		buffer.limit(12);
+		assertArrayEquals(new int[] {5, 7, 10, 12}, scan(buffer));
+	}
+
+	@Test
+	public void randomStreams() {
+		Random random = new Random(42);
+		for (int run=0; run<500; run++) {
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			List<Integer> expected = new ArrayList<>();
+			int units = 1+random.nextInt(10);
+			for (int u=0; u<units; u++) {
+				if (random.nextBoolean()) stream.write(0);
+				stream.write(0);
+				stream.write(0);
+				stream.write(1);
+				expected.add(stream.size());
+				int length = 1+random.nextInt(random.nextBoolean() ? 20 : 2000);
+				int previous = 1;
+				for (int i=0; i<length; i++) {
+					// Like after emulation prevention: no two zero bytes in a row, and never a zero at the end
+					int b = random.nextInt(256);
+					if (b == 0 && (previous == 0 || i == length-1)) b = 3;
+					stream.write(b);
+					previous = b;
+				}
+				expected.add(stream.size());
+			}
+			int[] result = scan(ByteBuffer.wrap(stream.toByteArray()));
+			int[] wanted = new int[expected.size()];
+			for (int i=0; i<wanted.length; i++) wanted[i] = expected.get(i);
+			assertArrayEquals("run "+run, wanted, result);
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the statistics of the emulated network, with a fixed seed so that the results are reproducible.
+ */
+public class NetworkImpairmentTest {
+
+	private final static long SEED = 42;
+	private final static long MS = 1000000L;
+	private final static int PACKETS = 20000;
+
+	/** Keeps the number written in each packet that leaves the network. */
+	private static class Recorder implements NetworkImpairment.Output {
+
+		final List<Integer> packets = new ArrayList<>();
+
+		@Override
+		public boolean send(ByteBuffer packet) {
+			packets.add(packet.getInt(packet.position()));
+			return true;
+		}
+
+	}
+
+	private static ByteBuffer packet(int number, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(0, number);
+		return buffer;
+	}
+
+	@Test
+	public void randomLoss() {
+		NetworkImpairment network = new NetworkImpairment().setLoss(10).setSeed(SEED);
+		int lost = 0;
+		for (int i=0; i<PACKETS; i++) {
+			if (network.offer(packet(i, 100), i*MS) == 0) lost++;
+		}
+		assertEquals(PACKETS, network.getOfferedCount());
+		assertEquals(lost, network.getLostCount());
+		assertEquals(0.10, (double) lost/PACKETS, 0.01);
+	}
+
+	@Test
+	public void sameSeedSameLosses() {
+		NetworkImpairment a = NetworkImpairment.parse("loss:5,ge:2:20,seed:7");
+		NetworkImpairment b = a.clone();
+		for (int i=0; i<PACKETS; i++) {
+			assertEquals(a.offer(packet(i, 100), i*MS), b.offer(packet(i, 100), i*MS));
+		}
+		a.reset();
+		b.setSeed(8);
+		int differences = 0;
+		for (int i=0; i<PACKETS; i++) {
+			if (a.offer(packet(i, 100), i*MS) != b.offer(packet(i, 100), i*MS)) differences++;
+		}
+		assertTrue(differences > 0);
+	}
+
+	@Test
+	public void burstLoss() {
+		// Bursts last 1/r = 4 packets on average, and the channel is bad p/(p+r) of the time
+		NetworkImpairment network = new NetworkImpairment().setBurstLoss(5, 25, 100, 0).setSeed(SEED);
+		int lost = 0, bursts = 0, run = 0;
+		for (int i=0; i<PACKETS; i++) {
+			if (network.offer(packet(i, 100), i*MS) == 0) {
+				lost++;
+				if (run++ == 0) bursts++;
+			} else {
+				run = 0;
+			}
+		}
+		assertEquals(5.0/30, (double) lost/PACKETS, 0.02);
+		assertEquals(4.0, (double) lost/bursts, 0.4);
+	}
+
+	@Test
+	public void delayAndJitter() throws IOException {
+		NetworkImpairment network = new NetworkImpairment().setDelay(50, 10).setSeed(SEED);
+		Recorder output = new Recorder();
+		long min = Long.MAX_VALUE, max = 0;
+		for (int i=0; i<1000; i++) {
+			long now = i*100*MS;
+			network.offer(packet(i, 100), now);
+			long delay = network.nextDeparture() - now;
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+			// Nothing leaves the network before its time
+			assertEquals(0, network.flush(now + delay - 1, output));
+			assertEquals(1, network.flush(now + delay, output));
+		}
+		assertTrue(min >= 40*MS && max <= 60*MS);
+		// The jitter is spread over the whole range
+		assertTrue(min < 42*MS && max > 58*MS);
+		assertEquals(-1, network.nextDeparture());
+	}
+
+	@Test
+	public void reordering() throws IOException {
+		NetworkImpairment network = new NetworkImpairment().setDelay(100, 0).setReorder(20).setSeed(SEED);
+		Recorder output = new Recorder();
+		for (int i=0; i<PACKETS; i++) {
+			network.offer(packet(i, 100), i*MS);
+		}
+		network.flush(PACKETS*MS + 100*MS, output);
+		assertEquals(PACKETS, output.packets.size());
+		assertEquals(0.20, (double) network.getReorderedCount()/PACKETS, 0.01);
+		int overtaken = 0;
+		for (int i=1; i<PACKETS; i++) {
+			if (output.packets.get(i) < output.packets.get(i-1)) overtaken++;
+		}
+		assertTrue(overtaken > 0);
+	}
+
+	@Test
+	public void duplication() throws IOException {
+		NetworkImpairment network = new NetworkImpairment().setDuplicate(10).setSeed(SEED);
+		Recorder output = new Recorder();
+		int copies = 0;
+		for (int i=0; i<PACKETS; i++) {
+			copies += network.offer(packet(i, 100), i*MS);
+			network.flush(i*MS, output);
+		}
+		assertEquals(copies, output.packets.size());
+		assertEquals(PACKETS + network.getDuplicatedCount(), copies);
+		assertEquals(0.10, (double) network.getDuplicatedCount()/PACKETS, 0.01);
+	}
+
+	@Test
+	public void bandwidthCap() throws IOException {
+		// 1250 bytes take 10 ms at 1 Mbit/s, packets that would wait more than 100 ms are dropped
+		NetworkImpairment network = new NetworkImpairment().setBandwidth(1000000, 100).setSeed(SEED);
+		Recorder output = new Recorder();
+		int accepted = 0;
+		for (int i=0; i<100; i++) {
+			accepted += network.offer(packet(i, 1250), 0);
+		}
+		assertEquals(11, accepted);
+		assertEquals(89, network.getLostCount());
+		for (int i=1; i<=accepted; i++) {
+			assertEquals(i*10*MS, network.nextDeparture());
+			assertEquals(1, network.flush(i*10*MS, output));
+		}
+		assertEquals(accepted, output.packets.size());
+	}
+
+	@Test
+	public void blockedOutput() throws IOException {
+		NetworkImpairment network = new NetworkImpairment().setSeed(SEED);
+		NetworkImpairment.Output full = new NetworkImpairment.Output() {
+			@Override
+			public boolean send(ByteBuffer packet) {
+				return false;
+			}
+		};
+		for (int i=0; i<3; i++) {
+			network.offer(packet(i, 100), 0);
+		}
+		// The packets stay in the network until the output takes them
+		assertEquals(0, network.flush(0, full));
+		Recorder output = new Recorder();
+		assertEquals(3, network.flush(0, output));
+		assertEquals(0, (int) output.packets.get(0));
+		assertEquals(2, (int) output.packets.get(2));
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the packets reserved in the FIFO of the {@link RtpSocket} are sent in the order
+ * in which they were reserved, whatever the order in which other threads complete them.
+ */
+public class RtpSocketTest {
+
+	private final static int PACKETS = 32768;
+	private final static int RUN = 16;
+	private final static int THREADS = 4;
+
+	/** The RtpSocket drops the first packets of a stream. */
+	private final static int WARM_UP = 31;
+
+	private RtpSocket socket;
+	private ExecutorService workers;
+	private final ByteArrayOutputStream connection = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() {
+		socket = new RtpSocket();
+		socket.setClockFrequency(90000);
+		socket.setOutputStream(connection, (byte) 0);
+		workers = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		workers.shutdownNow();
+	}
+
+	/** Returns the packets written on channel 0, RTCP is on channel 1. */
+	private List<byte[]> readPackets() {
+		byte[] data = connection.toByteArray();
+		List<byte[]> packets = new ArrayList<>();
+		int i = 0;
+		while (i+4 <= data.length) {
+			int length = (data[i+2]&0xFF)<<8 | data[i+3]&0xFF;
+			if (i+4+length > data.length) break;
+			if (data[i+1] == 0) {
+				byte[] packet = new byte[length];
+				System.arraycopy(data, i+4, packet, 0, length);
+				packets.add(packet);
+			}
+			i += 4+length;
+		}
+		return packets;
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | buffer[offset+3]&0xFF;
+	}
+
+	@Test
+	public void completedOutOfOrder() throws Exception {
+		final Random random = new Random(42);
+		final int count = socket.getBufferCount();
+		for (int first=0; first<PACKETS; first+=RUN) {
+			final int slot = socket.reserveBuffers(RUN);
+			final int number = first;
+			final List<Integer> order = new ArrayList<>();
+			for (int i=0; i<RUN; i++) order.add(i);
+			Collections.shuffle(order, random);
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					// The packets of a run are completed in a random order, and the runs by several threads
+					for (int i : order) {
+						int s = (slot+i)%count, n = number+i;
+						byte[] packet = socket.getBuffer(s);
+						packet[12] = (byte) (n>>24);
+						packet[13] = (byte) (n>>16);
+						packet[14] = (byte) (n>>8);
+						packet[15] = (byte) n;
+						socket.setTimestamp(s, n*1000000L);
+						socket.completeBuffer(s, 16);
+					}
+				}
+			});
+		}
+		workers.shutdown();
+		assertTrue(workers.awaitTermination(10, TimeUnit.SECONDS));
+
+		List<byte[]> packets = readPackets();
+		for (int i=0; i<1000 && packets.size() < PACKETS-WARM_UP; i++) {
+			Thread.sleep(10);
+			packets = readPackets();
+		}
+		assertEquals(PACKETS-WARM_UP, packets.size());
+
+		int firstSequence = (packets.get(0)[2]&0xFF)<<8 | packets.get(0)[3]&0xFF;
+		for (int i=0; i<packets.size(); i++) {
+			byte[] packet = packets.get(i);
+			assertEquals("packet "+i, WARM_UP+i, readInt(packet, 12));
+			assertEquals("sequence of packet "+i, (firstSequence+i)&0xFFFF, (packet[2]&0xFF)<<8 | packet[3]&0xFF);
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the RTSP server reads the body of a request only when its Content-Length is sane.
+ */
+public class RtspRequestTest {
+
+	private static RtspServer.Request parse(String length, String content) throws IOException {
+		String request = "SET_PARAMETER rtsp://192.168.1.2:8086/ RTSP/1.0\r\n" +
+				"CSeq: 7\r\n" +
+				"Content-Length: " + length + "\r\n" +
+				"\r\n" +
+				content;
+		return RtspServer.Request.parseRequest(new BufferedReader(new StringReader(request)), null);
+	}
+
+	private static String rejected(String length) throws IOException {
+		try {
+			parse(length, "");
+		} catch (RtspServer.RejectedRequestException e) {
+			assertEquals(" 7", e.request.headers.get("cseq"));
+			return e.status;
+		}
+		fail("Content-Length "+length+" accepted");
+		return null;
+	}
+
+	@Test
+	public void readsContent() throws IOException {
+		RtspServer.Request request = parse("13", "bitrate: 500\n");
+		assertEquals("SET_PARAMETER", request.method);
+		assertEquals("bitrate: 500\n", request.content);
+		StringBuilder content = new StringBuilder();
+		while (content.length() < RtspServer.Request.MAX_CONTENT_LENGTH) content.append('x');
+		assertEquals(content.toString(), parse(""+content.length(), content.toString()).content);
+	}
+
+	@Test
+	public void rejectsLargeContent() throws IOException {
+		assertEquals(RtspServer.Response.STATUS_REQUEST_ENTITY_TOO_LARGE, rejected(""+(RtspServer.Request.MAX_CONTENT_LENGTH+1)));
+		assertEquals(RtspServer.Response.STATUS_REQUEST_ENTITY_TOO_LARGE, rejected("2000000000"));
+	}
+
+	@Test
+	public void rejectsInvalidContentLength() throws IOException {
+		assertEquals(RtspServer.Response.STATUS_BAD_REQUEST, rejected("-1"));
+		assertEquals(RtspServer.Response.STATUS_BAD_REQUEST, rejected("99999999999"));
+		assertEquals(RtspServer.Response.STATUS_BAD_REQUEST, rejected("ten"));
+	}
+
+}
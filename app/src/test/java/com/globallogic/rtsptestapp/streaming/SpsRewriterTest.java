@@ -0,0 +1,291 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rewrites the SPS of real encoders and parses the result again with a parser of its own:
+ * every field must be kept but the bitstream restriction, which must declare no reordering.
+ */
+public class SpsRewriterTest {
+
+	/** Baseline 720x576 from an IP camera, without VUI. */
+	private final static String NO_VUI = "6742001e95a82d0499";
+
+	/** Main 1920x1080 from an IP camera, a VUI with timing info and emulation prevention bytes, no bitstream restriction. */
+	private final static String NO_RESTRICTION = "674d402995a01e0089f9610000030001000003003284";
+
+	/** High 1280x720 from x264, 4 reference frames and a bitstream restriction with 2 reordered frames. */
+	private final static String X264 = "6764001facd9405005bb0110000003001000000303c0f1831960";
+
+	/** Baseline 640x480, the bitstream restriction already declares no reordering. */
+	private final static String LOW_DELAY = "67420029e2901407b602dc04040690789115";
+
+	/** Baseline 1280x720 from a Qualcomm encoder, with VCL HRD parameters and no bitstream restriction. */
+	private final static String HRD = "6742801fda014016e950c0c0c0da1426a0";
+
+	/**
+	 * The SPS of x264 above with seq_scaling_matrix_present_flag set: explicit JVT lists,
+	 * absent lists and lists that use the default matrix, as x264 writes them with --cqm.
+	 */
+	private final static String SCALING_LISTS = "6764001fad94747610e2315148464fffe4a226290dc9e2be4fc9fc9f93e4f372649211d9405005bb0110000003001000000303c0f1831960";
+
+	private final static String[] RESTRICTION = {"bitstream_restriction_flag", "motion_vectors_over_pic_boundaries_flag",
+		"max_bytes_per_pic_denom", "max_bits_per_mb_denom", "log2_max_mv_length_horizontal", "log2_max_mv_length_vertical",
+		"max_num_reorder_frames", "max_dec_frame_buffering"};
+
+	private static byte[] bytes(String hex) {
+		byte[] data = new byte[hex.length()/2];
+		for (int i=0; i<data.length; i++) data[i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+		return data;
+	}
+
+	/** Reads the syntax elements of the SPS, section 7.3.2.1.1 and annex E.1.1, in the order in which they appear. */
+	private static class Parser {
+
+		final Map<String, Long> fields = new LinkedHashMap<>();
+		private final byte[] data;
+		private int bit = 0;
+
+		Parser(byte[] nal) {
+			// Removes the emulation prevention bytes, and checks that they were needed
+			byte[] rbsp = new byte[nal.length];
+			int length = 0, zeros = 0;
+			for (int i=1; i<nal.length; i++) {
+				if (zeros >= 2) assertTrue("start code emulated at "+i, (nal[i]&0xFF) > 2);
+				if (zeros >= 2 && nal[i] == 3) {
+					assertTrue("useless emulation prevention byte at "+i, i+1 == nal.length || (nal[i+1]&0xFF) <= 3);
+					zeros = 0;
+					continue;
+				}
+				zeros = nal[i] == 0 ? zeros+1 : 0;
+				rbsp[length++] = nal[i];
+			}
+			data = new byte[length];
+			System.arraycopy(rbsp, 0, data, 0, length);
+			parse();
+		}
+
+		private long u(int count) {
+			long value = 0;
+			for (int i=0; i<count; i++) {
+				assertTrue("end of the SPS", bit < data.length*8);
+				value = (value<<1) | ((data[bit>>3] >> (7-(bit&7))) & 1);
+				bit++;
+			}
+			return value;
+		}
+
+		private long ue() {
+			int zeros = 0;
+			while (u(1) == 0) zeros++;
+			return (1L<<zeros) - 1 + u(zeros);
+		}
+
+		private long se() {
+			long value = ue();
+			return (value & 1) == 1 ? (value+1)/2 : -(value/2);
+		}
+
+		private long put(String name, long value) {
+			String key = name;
+			for (int i=1; fields.containsKey(key); i++) key = name+"["+i+"]";
+			fields.put(key, value);
+			return value;
+		}
+
+		private void parse() {
+			long profile = put("profile_idc", u(8));
+			put("constraint_flags", u(8));
+			put("level_idc", u(8));
+			put("seq_parameter_set_id", ue());
+			if (profile == 100 || profile == 110 || profile == 122 || profile == 244) {
+				long chroma = put("chroma_format_idc", ue());
+				if (chroma == 3) put("separate_colour_plane_flag", u(1));
+				put("bit_depth_luma_minus8", ue());
+				put("bit_depth_chroma_minus8", ue());
+				put("qpprime_y_zero_transform_bypass_flag", u(1));
+				if (put("seq_scaling_matrix_present_flag", u(1)) == 1) {
+					for (int i=0; i<(chroma != 3 ? 8 : 12); i++) {
+						if (put("seq_scaling_list_present_flag", u(1)) == 0) continue;
+						long last = 8, next = 8;
+						for (int j=0; j<(i<6 ? 16 : 64); j++) {
+							if (next != 0) next = (last + put("delta_scale", se()) + 256) % 256;
+							last = next == 0 ? last : next;
+						}
+					}
+				}
+			}
+			put("log2_max_frame_num_minus4", ue());
+			long pocType = put("pic_order_cnt_type", ue());
+			if (pocType == 0) {
+				put("log2_max_pic_order_cnt_lsb_minus4", ue());
+			} else if (pocType == 1) {
+				put("delta_pic_order_always_zero_flag", u(1));
+				put("offset_for_non_ref_pic", se());
+				put("offset_for_top_to_bottom_field", se());
+				long cycle = put("num_ref_frames_in_pic_order_cnt_cycle", ue());
+				for (int i=0; i<cycle; i++) put("offset_for_ref_frame", se());
+			}
+			put("max_num_ref_frames", ue());
+			put("gaps_in_frame_num_value_allowed_flag", u(1));
+			put("pic_width_in_mbs_minus1", ue());
+			put("pic_height_in_map_units_minus1", ue());
+			if (put("frame_mbs_only_flag", u(1)) == 0) put("mb_adaptive_frame_field_flag", u(1));
+			put("direct_8x8_inference_flag", u(1));
+			if (put("frame_cropping_flag", u(1)) == 1) {
+				for (int i=0; i<4; i++) put("frame_crop_offset", ue());
+			}
+			if (put("vui_parameters_present_flag", u(1)) == 1) parseVui();
+			assertEquals("rbsp_stop_one_bit", 1, u(1));
+			while (bit < data.length*8) assertEquals("rbsp_alignment_zero_bit", 0, u(1));
+		}
+
+		private void parseVui() {
+			if (put("aspect_ratio_info_present_flag", u(1)) == 1) {
+				if (put("aspect_ratio_idc", u(8)) == 255) put("sar", u(32));
+			}
+			if (put("overscan_info_present_flag", u(1)) == 1) put("overscan_appropriate_flag", u(1));
+			if (put("video_signal_type_present_flag", u(1)) == 1) {
+				put("video_format", u(3));
+				put("video_full_range_flag", u(1));
+				if (put("colour_description_present_flag", u(1)) == 1) put("colour_description", u(24));
+			}
+			if (put("chroma_loc_info_present_flag", u(1)) == 1) {
+				put("chroma_sample_loc_type_top_field", ue());
+				put("chroma_sample_loc_type_bottom_field", ue());
+			}
+			if (put("timing_info_present_flag", u(1)) == 1) {
+				put("num_units_in_tick", u(32));
+				put("time_scale", u(32));
+				put("fixed_frame_rate_flag", u(1));
+			}
+			long nalHrd = put("nal_hrd_parameters_present_flag", u(1));
+			if (nalHrd == 1) parseHrd();
+			long vclHrd = put("vcl_hrd_parameters_present_flag", u(1));
+			if (vclHrd == 1) parseHrd();
+			if (nalHrd == 1 || vclHrd == 1) put("low_delay_hrd_flag", u(1));
+			put("pic_struct_present_flag", u(1));
+			if (put(RESTRICTION[0], u(1)) == 1) {
+				put(RESTRICTION[1], u(1));
+				for (int i=2; i<RESTRICTION.length; i++) put(RESTRICTION[i], ue());
+			}
+		}
+
+		private void parseHrd() {
+			long count = put("cpb_cnt_minus1", ue())+1;
+			put("bit_rate_scale", u(4));
+			put("cpb_size_scale", u(4));
+			for (int i=0; i<count; i++) {
+				put("bit_rate_value_minus1", ue());
+				put("cpb_size_value_minus1", ue());
+				put("cbr_flag", u(1));
+			}
+			put("initial_cpb_removal_delay_length_minus1", u(5));
+			put("cpb_removal_delay_length_minus1", u(5));
+			put("dpb_output_delay_length_minus1", u(5));
+			put("time_offset_length", u(5));
+		}
+
+	}
+
+	/**
+	 * Rewrites the SPS and checks that the fields that are not part of the bitstream restriction are the same,
+	 * and that rewriting it again changes nothing.
+	 * @return The fields of the rewritten SPS
+	 */
+	private static Map<String, Long> rewrite(String hex) {
+		byte[] sps = bytes(hex);
+		Map<String, Long> before = new Parser(sps).fields;
+		byte[] rewritten = SpsRewriter.rewrite(sps);
+		assertNotSame("the SPS was not rewritten", sps, rewritten);
+		assertEquals(sps[0], rewritten[0]);
+		Map<String, Long> after = new Parser(rewritten).fields;
+
+		for (String name : RESTRICTION) before.remove(name);
+		before.remove("vui_parameters_present_flag");
+		for (Map.Entry<String, Long> field : before.entrySet()) {
+			assertEquals(field.getKey(), field.getValue(), after.get(field.getKey()));
+		}
+		// The flags of a VUI added to the SPS are all cleared
+		for (Map.Entry<String, Long> field : after.entrySet()) {
+			String name = field.getKey();
+			if (before.containsKey(name) || name.equals("vui_parameters_present_flag") || Arrays.asList(RESTRICTION).contains(name)) continue;
+			assertEquals(name, 0L, (long) field.getValue());
+		}
+		assertEquals(1L, (long) after.get("vui_parameters_present_flag"));
+
+		assertEquals(1L, (long) after.get("bitstream_restriction_flag"));
+		assertEquals(0L, (long) after.get("max_num_reorder_frames"));
+		assertEquals(Math.max(1, after.get("max_num_ref_frames")), (long) after.get("max_dec_frame_buffering"));
+
+		assertSame(rewritten, SpsRewriter.rewrite(rewritten));
+		return after;
+	}
+
+	@Test
+	public void addsVui() {
+		byte[] sps = bytes(NO_VUI);
+		assertFalse(new Parser(sps).fields.containsKey("timing_info_present_flag"));
+		Map<String, Long> after = rewrite(NO_VUI);
+		assertEquals(0L, (long) after.get("timing_info_present_flag"));
+		assertEquals(0L, (long) after.get("nal_hrd_parameters_present_flag"));
+		assertEquals(0L, (long) after.get("vcl_hrd_parameters_present_flag"));
+		assertEquals(1L, (long) after.get("max_dec_frame_buffering"));
+	}
+
+	@Test
+	public void addsBitstreamRestriction() {
+		assertEquals(0L, (long) new Parser(bytes(NO_RESTRICTION)).fields.get("bitstream_restriction_flag"));
+		Map<String, Long> after = rewrite(NO_RESTRICTION);
+		assertEquals(50L, (long) after.get("time_scale"));
+		assertEquals(16L, (long) after.get("log2_max_mv_length_horizontal"));
+	}
+
+	@Test
+	public void patchesBitstreamRestriction() {
+		Map<String, Long> before = new Parser(bytes(X264)).fields;
+		assertEquals(2L, (long) before.get("max_num_reorder_frames"));
+		Map<String, Long> after = rewrite(X264);
+		assertEquals(4L, (long) after.get("max_dec_frame_buffering"));
+		// The fields that precede max_num_reorder_frames are those of x264
+		for (int i=1; i<6; i++) assertEquals(RESTRICTION[i], before.get(RESTRICTION[i]), after.get(RESTRICTION[i]));
+	}
+
+	@Test
+	public void keepsLowDelaySps() {
+		byte[] sps = bytes(LOW_DELAY);
+		assertSame(sps, SpsRewriter.rewrite(sps));
+	}
+
+	@Test
+	public void keepsScalingLists() {
+		Map<String, Long> before = new Parser(bytes(SCALING_LISTS)).fields;
+		assertEquals(1L, (long) before.get("seq_scaling_matrix_present_flag"));
+		Map<String, Long> after = rewrite(SCALING_LISTS);
+		// 16+1+16+64+1 deltas, the lists that use the default matrix only have one
+		assertTrue(after.containsKey("delta_scale[97]"));
+		assertFalse(after.containsKey("delta_scale[98]"));
+		assertEquals(1280/16-1, (long) after.get("pic_width_in_mbs_minus1"));
+	}
+
+	@Test
+	public void keepsHrdParameters() {
+		Map<String, Long> after = rewrite(HRD);
+		assertEquals(0L, (long) after.get("nal_hrd_parameters_present_flag"));
+		assertEquals(1L, (long) after.get("vcl_hrd_parameters_present_flag"));
+		assertTrue(after.containsKey("low_delay_hrd_flag"));
+	}
+
+	@Test
+	public void keepsSpsItCannotParse() {
+		byte[] truncated = bytes(X264.substring(0, 16));
+		assertSame(truncated, SpsRewriter.rewrite(truncated));
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.globallogic.rtsptestapp.streaming;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the last message of each type is sent again when that type has been silent
+ * for {@link TelemetryPacketizer#REFRESH_INTERVAL}, even while messages of other types keep coming.
+ */
+public class TelemetryPacketizerTest {
+
+	private TelemetryPacketizer packetizer;
+	private final ByteArrayOutputStream connection = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() {
+		TelemetryHub.getInstance().clear();
+		packetizer = new TelemetryPacketizer();
+		packetizer.getRtpSocket().setOutputStream(connection, (byte) 0);
+	}
+
+	@After
+	public void tearDown() {
+		packetizer.stop();
+		TelemetryHub.getInstance().clear();
+	}
+
+	/** Returns the number of RTP packets of each type of message written on channel 0. */
+	private int[] countPackets() {
+		byte[] data = connection.toByteArray();
+		int[] count = new int[TelemetryHub.TYPE_MANEUVER+1];
+		int i = 0;
+		while (i+4 <= data.length) {
+			int length = (data[i+2]&0xFF)<<8 | data[i+3]&0xFF;
+			if (i+4+length > data.length) break;
+			if (data[i+1] == 0) count[data[i+4+12] & 0x0F]++;
+			i += 4+length;
+		}
+		return count;
+	}
+
+	@Test
+	public void refreshesSilentTypes() throws InterruptedException {
+		TelemetryHub hub = TelemetryHub.getInstance();
+		packetizer.start();
+		// More than the packets the RtpSocket drops when it starts
+		for (int i=0; i<40; i++) hub.publishLocation(45, 4, 0, 10);
+		Thread.sleep(100);
+		hub.publishManeuver(200, "turn", "left", "Turn left");
+		long end = System.currentTimeMillis() + 2*TelemetryPacketizer.REFRESH_INTERVAL + 300;
+		while (System.currentTimeMillis() < end) {
+			hub.publishLocation(45, 4, 0, 10);
+			Thread.sleep(50);
+		}
+		// Sent once, then again after each interval
+		int[] count = countPackets();
+		assertEquals(3, count[TelemetryHub.TYPE_MANEUVER]);
+		assertEquals(0, count[TelemetryHub.TYPE_PROGRESS]);
+	}
+
+}